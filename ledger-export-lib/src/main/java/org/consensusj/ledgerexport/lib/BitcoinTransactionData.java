@@ -21,37 +21,71 @@ import org.consensusj.bitcoin.json.pojo.BitcoinTransactionInfo;
 
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
+import java.util.stream.IntStream;
 
 /**
- * Information accumulator for a single Bitcoin transaction
+ * Information accumulator for a single Bitcoin transaction. The fields of each "info" are copied to a
+ * {@link TransactionColumns} store, so the info object isn't retained.
  */
 public class BitcoinTransactionData implements TransactionData {
+    /** Store for the wallet entries of the transaction */
+    protected final TransactionColumns columns;
     /** Transaction timestamp */
     protected final Instant time;
     /** Transaction id/hash */
     protected final Sha256Hash txId;
-    /** info records for the transaction */
-    protected final List<BitcoinTransactionInfo> infos = new ArrayList<>();
-    private final List<Address> addresses = new ArrayList<>();
+    /** Number of confirmations when the first wallet entry was fetched */
+    protected final int confirmations;
+    /** wallet entries for the transaction */
+    protected final List<TransactionColumns.WalletEntry> entries = new ArrayList<>(1);
+    private int[] addressIds = new int[0];
 
     /**
      * Create an instance
+     * @param columns store to copy transaction infos to
      * @param bitcoinTransactionInfo first transaction info returned for this transaction id
      */
-    public BitcoinTransactionData(BitcoinTransactionInfo bitcoinTransactionInfo) {
-        this.time = bitcoinTransactionInfo.getTime();
-        this.txId = bitcoinTransactionInfo.getTxId();
-        infos.add(bitcoinTransactionInfo);
+    public BitcoinTransactionData(TransactionColumns columns, BitcoinTransactionInfo bitcoinTransactionInfo) {
+        this(columns, bitcoinTransactionInfo.getTxId(), TransactionColumns.WalletRow.of(bitcoinTransactionInfo));
     }
 
     /**
-     * Add an additional "info" for this transaction
+     * Create an instance
+     * @param columns store to copy wallet entries to
+     * @param txId transaction id
+     * @param walletRow first wallet entry returned for this transaction id
+     */
+    public BitcoinTransactionData(TransactionColumns columns, Sha256Hash txId, TransactionColumns.WalletRow walletRow) {
+        this.columns = columns;
+        this.time = Instant.ofEpochSecond(walletRow.time());
+        this.txId = txId;
+        this.confirmations = walletRow.confirmations();
+        entries.add(columns.add(walletRow));
+    }
+
+    /**
+     * Add an additional "info" for this transaction. An info for the same output and category
+     * as one already added (e.g. when paged {@code listtransactions} windows overlap) is ignored.
      * @param bitcoinTransactionInfo additional info
      * @return chainable this
      */
     public BitcoinTransactionData add(BitcoinTransactionInfo bitcoinTransactionInfo) {
-        infos.add(bitcoinTransactionInfo);
+        return add(TransactionColumns.WalletRow.of(bitcoinTransactionInfo));
+    }
+
+    /**
+     * Add an additional wallet entry for this transaction. An entry for the same output and category
+     * as one already added is ignored.
+     * @param walletRow additional entry
+     * @return chainable this
+     */
+    public BitcoinTransactionData add(TransactionColumns.WalletRow walletRow) {
+        if (entries.stream().noneMatch(e -> isSameEntry(e, walletRow))) {
+            entries.add(columns.add(walletRow));
+        }
         return this;
     }
 
@@ -60,7 +94,10 @@ public class BitcoinTransactionData implements TransactionData {
      * @param addressesToAdd additional address
      */
     public void add(List<Address> addressesToAdd) {
-        addresses.addAll(addressesToAdd);
+        int[] ids = columns.addressIds(addressesToAdd);
+        int[] all = Arrays.copyOf(addressIds, addressIds.length + ids.length);
+        System.arraycopy(ids, 0, all, addressIds.length, ids.length);
+        addressIds = all;
     }
 
     @Override
@@ -73,17 +110,31 @@ public class BitcoinTransactionData implements TransactionData {
         return txId;
     }
 
+    /**
+     * @return number of confirmations when the first wallet entry was fetched. The transaction's block is at most
+     * {@code tipHeight - confirmations + 1}, for the height of any later tip.
+     */
+    public int confirmations() {
+        return confirmations;
+    }
+
     /**
      * @return all addresses collected (so far) for this transaction
      */
     public List<Address> addresses() {
-        return addresses;
+        return IntStream.of(addressIds).mapToObj(columns::address).toList();
     }
 
     /**
-     * @return all transaction infos collected (so far) for this transaction
+     * @return all wallet entries collected (so far) for this transaction
      */
-    public List<BitcoinTransactionInfo> transactionInfos() {
-        return infos;
+    public List<TransactionColumns.WalletEntry> walletEntries() {
+        return entries;
+    }
+
+    private static boolean isSameEntry(TransactionColumns.WalletEntry a, TransactionColumns.WalletRow b) {
+        return a.getVout() == b.vout()
+                && Objects.equals(a.getCategory(), b.category())
+                && Objects.equals(a.getAddress(), b.address());
     }
 }
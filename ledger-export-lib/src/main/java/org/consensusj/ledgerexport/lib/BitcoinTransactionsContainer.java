@@ -28,10 +28,17 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 
 /**
- * Container that accumulates information for multiple transactions
+ * Container that accumulates information for multiple transactions.
+ * <p>
+ * Wallet and Omni transactions can be added in any order and from multiple threads. An Omni transaction added
+ * before its wallet transaction is held in a pending table and joined when the wallet transaction is added.
  */
 public class BitcoinTransactionsContainer {
-    Map<Sha256Hash, TransactionData> map = new ConcurrentHashMap<>();
+    TxIdTable<TransactionData> map = new TxIdTable<>();
+    // Only modified inside map.compute() for the same txId, which serializes it with adding the wallet transaction,
+    // or by takePendingOmni() once nothing more is being added
+    private final Map<Sha256Hash, TransactionColumns.OmniEntry> pendingOmni = new ConcurrentHashMap<>();
+    private final TransactionColumns columns = new TransactionColumns();
 
     /**
      * Add transaction information. Creates a new "transaction data" or adds to
@@ -39,11 +46,26 @@ public class BitcoinTransactionsContainer {
      * @param info transaction info
      */
     public void add(BitcoinTransactionInfo info) {
-        map.compute(info.getTxId(),
-            (k, existing) -> (existing == null)
-                                ? new OmniTransactionData(info)
-                                : ((OmniTransactionData) existing).add(info)
-        );
+        add(info.getTxId(), TransactionColumns.WalletRow.of(info));
+    }
+
+    /**
+     * Add a wallet entry. Creates a new "transaction data" or adds to existing.
+     * @param txId transaction id
+     * @param walletRow fields of the wallet entry
+     */
+    public void add(Sha256Hash txId, TransactionColumns.WalletRow walletRow) {
+        ExportEvents.ContainerInsert event = new ExportEvents.ContainerInsert();
+        event.begin();
+        map.compute(txId, (k, existing) -> {
+            if (existing != null) {
+                return ((OmniTransactionData) existing).add(walletRow);
+            }
+            OmniTransactionData data = new OmniTransactionData(columns, k, walletRow);
+            TransactionColumns.OmniEntry pending = pendingOmni.remove(k);
+            return (pending != null) ? data.add(pending) : data;
+        });
+        event.report(txId, "wallet");
     }
 
     /**
@@ -52,34 +74,81 @@ public class BitcoinTransactionsContainer {
      * @param addresses related addresses
      */
     public void add(Sha256Hash txId, List<Address> addresses) {
+        ExportEvents.ContainerInsert event = new ExportEvents.ContainerInsert();
+        event.begin();
         OmniTransactionData data = (OmniTransactionData) map.get(txId);
         data.add(addresses);
+        event.report(txId, "addresses");
     }
 
     /**
+     * Add Omni transaction information to its wallet transaction, or hold it until the wallet transaction is added
      * @param ot transaction info to add
      */
     public void add(OmniTransactionInfo ot) {
-        OmniTransactionData data = (OmniTransactionData) map.get(ot.getTxId());
-        data.add(ot);
+        ExportEvents.ContainerInsert event = new ExportEvents.ContainerInsert();
+        event.begin();
+        TransactionData data = map.compute(ot.getTxId(), (k, existing) -> {
+            if (existing == null) {
+                pendingOmni.put(k, columns.add(ot));
+                return null;
+            }
+            return ((OmniTransactionData) existing).add(ot);
+        });
+        event.report(ot.getTxId(), (data != null) ? "omni" : "omniPending");
+    }
+
+    /**
+     * @return Omni transactions whose wallet transaction hasn't been added
+     */
+    public Collection<TransactionColumns.OmniEntry> pendingOmniTransactions() {
+        return pendingOmni.values();
+    }
+
+    /**
+     * Remove a pending Omni transaction, to add it to a wallet transaction that isn't held by this container.
+     * Must not be called while transactions are being added.
+     * @param txId transaction id
+     * @return the Omni entry for the id or {@code null} if none is pending
+     */
+    TransactionColumns.OmniEntry takePendingOmni(Sha256Hash txId) {
+        return pendingOmni.remove(txId);
     }
 
     /**
      * @param omd match data to add
      */
     public void add(OmniMatchData omd) {
+        ExportEvents.ContainerInsert event = new ExportEvents.ContainerInsert();
+        event.begin();
         map.put(omd.txId(), omd);
+        event.report(omd.txId(), "match");
+    }
+
+    /**
+     * @param txId transaction id
+     * @return the transaction data for the id or {@code null} if none
+     */
+    public TransactionData get(Sha256Hash txId) {
+        return map.get(txId);
+    }
+
+    /**
+     * @return store holding the wallet and Omni entries of the transactions
+     */
+    public TransactionColumns columns() {
+        return columns;
     }
 
     /**
-     * @return set of transaction ids in the container
+     * @return snapshot of the set of transaction ids in the container
      */
     public Set<Sha256Hash> keys() {
-        return map.keySet();
+        return map.keys();
     }
 
     /**
-     * @return Collection of {@link TransactionData} objects
+     * @return snapshot of the {@link TransactionData} objects
      */
     public Collection<TransactionData> values() {
         return map.values();
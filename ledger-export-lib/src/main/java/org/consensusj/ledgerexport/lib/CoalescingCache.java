@@ -0,0 +1,95 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * In-memory cache of asynchronous lookups that coalesces requests: concurrent and repeated requests for the same key
+ * share one future, so each key is looked up once. Keys are requested many at a time, so the keys that need a lookup
+ * can be looked up together (e.g. in one batch). Failed lookups are removed so a later request can retry.
+ * @param <K> key type
+ * @param <V> value type
+ */
+class CoalescingCache<K, V> {
+    private final Function<List<K>, List<CompletableFuture<V>>> batchLookup;
+    private final Map<K, CompletableFuture<V>> futures = new ConcurrentHashMap<>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong lookupCount = new AtomicLong();
+
+    /**
+     * @param batchLookup function to look up the values for a list of keys, returning one future per key in the same order
+     */
+    CoalescingCache(Function<List<K>, List<CompletableFuture<V>>> batchLookup) {
+        this.batchLookup = batchLookup;
+    }
+
+    /**
+     * @param keys keys to look up
+     * @return one future per key in the same order, each shared with all other requests for the same key
+     */
+    List<CompletableFuture<V>> getAll(List<K> keys) {
+        List<CompletableFuture<V>> results = new ArrayList<>(keys.size());
+        List<K> missedKeys = new ArrayList<>();
+        List<CompletableFuture<V>> missed = new ArrayList<>();
+        for (K key : keys) {
+            requestCount.incrementAndGet();
+            CompletableFuture<V> placeholder = new CompletableFuture<>();
+            CompletableFuture<V> existing = futures.putIfAbsent(key, placeholder);
+            if (existing == null) {
+                missedKeys.add(key);
+                missed.add(placeholder);
+                results.add(placeholder);
+            } else {
+                results.add(existing);
+            }
+        }
+        if (missedKeys.isEmpty()) {
+            return results;
+        }
+        lookupCount.addAndGet(missedKeys.size());
+        List<CompletableFuture<V>> lookups;
+        try {
+            lookups = batchLookup.apply(missedKeys);
+        } catch (RuntimeException e) {
+            lookups = missedKeys.stream().map(k -> CompletableFuture.<V>failedFuture(e)).toList();
+        }
+        for (int i = 0; i < missedKeys.size(); i++) {
+            K key = missedKeys.get(i);
+            CompletableFuture<V> placeholder = missed.get(i);
+            lookups.get(i).whenComplete((v, t) -> {
+                if (t != null) {
+                    futures.remove(key, placeholder);
+                    placeholder.completeExceptionally(t);
+                } else {
+                    placeholder.complete(v);
+                }
+            });
+        }
+        return results;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CoalescingCache[size=%d, requests=%d, lookups=%d]", futures.size(), requestCount.get(), lookupCount.get());
+    }
+}
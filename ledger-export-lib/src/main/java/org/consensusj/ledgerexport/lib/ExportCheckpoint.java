@@ -0,0 +1,111 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * The last block included in an export. Transactions in this block and in all blocks before it
+ * have been exported, so an incremental export can start with the following block.
+ * <p>
+ * The checkpoint also records the wallet addresses that have placed MetaDEx orders. An order placed before the
+ * checkpoint can be matched after it, so an incremental export looks up the trade history of these addresses
+ * as well as of the addresses that placed orders in the new blocks.
+ * @param blockHash hash of the last exported block
+ * @param height height of the last exported block
+ * @param tradingAddresses addresses (as strings) that placed MetaDEx orders in or before the last exported block,
+ *                         or {@code null} if unknown (a checkpoint file written by an earlier version)
+ */
+public record ExportCheckpoint(Sha256Hash blockHash, int height, SortedSet<String> tradingAddresses) {
+    private static final String HASH_KEY = "blockhash";
+    private static final String HEIGHT_KEY = "height";
+    private static final String TRADING_ADDRESSES_KEY = "tradingaddresses";
+
+    /**
+     * Copy the trading addresses
+     */
+    public ExportCheckpoint {
+        tradingAddresses = (tradingAddresses != null) ? Collections.unmodifiableSortedSet(new TreeSet<>(tradingAddresses)) : null;
+    }
+
+    /**
+     * A checkpoint with no trading addresses
+     * @param blockHash hash of the last exported block
+     * @param height height of the last exported block
+     */
+    public ExportCheckpoint(Sha256Hash blockHash, int height) {
+        this(blockHash, height, new TreeSet<>());
+    }
+
+    /**
+     * Read a checkpoint file
+     * @param file path to a checkpoint file
+     * @return the checkpoint or empty if the file doesn't exist
+     * @throws IOException if the file exists but can't be read
+     */
+    public static Optional<ExportCheckpoint> read(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return Optional.empty();
+        }
+        Properties props = new Properties();
+        try (Reader reader = Files.newBufferedReader(file)) {
+            props.load(reader);
+        }
+        String hash = props.getProperty(HASH_KEY);
+        String height = props.getProperty(HEIGHT_KEY);
+        if (hash == null || height == null) {
+            throw new IOException("Invalid checkpoint file: " + file);
+        }
+        String addresses = props.getProperty(TRADING_ADDRESSES_KEY);
+        SortedSet<String> tradingAddresses = (addresses != null)
+                ? new TreeSet<>(Arrays.stream(addresses.split(",")).filter(a -> !a.isEmpty()).toList())
+                : null;
+        return Optional.of(new ExportCheckpoint(Sha256Hash.wrap(hash), Integer.parseInt(height), tradingAddresses));
+    }
+
+    /**
+     * Write this checkpoint to a file. A temporary file is written and then moved into place so
+     * an interrupted write never leaves a partial checkpoint.
+     * @param file path to the checkpoint file
+     * @throws IOException if the file can't be written
+     */
+    public void write(Path file) throws IOException {
+        Properties props = new Properties();
+        props.setProperty(HASH_KEY, blockHash.toString());
+        props.setProperty(HEIGHT_KEY, Integer.toString(height));
+        if (tradingAddresses != null) {
+            props.setProperty(TRADING_ADDRESSES_KEY, String.join(",", tradingAddresses));
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp)) {
+            props.store(writer, "WalletLedgerExport checkpoint");
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.util.List;
+
+/**
+ * JDK Flight Recorder events of an export, shown under "Ledger Export" next to the JVM's own events.
+ * <p>
+ * Each event is created and {@link Event#begin() begun} before the work it times and reported after it. The
+ * {@code report} methods only fill in fields and commit if a recording has the event enabled, so when nothing is
+ * recording an event costs a check and (usually scalar-replaced) allocation.
+ */
+final class ExportEvents {
+    private static final String category = "Ledger Export";
+
+    private ExportEvents() {
+    }
+
+    @Name("org.consensusj.ledgerexport.RpcCall")
+    @Label("RPC Call")
+    @Category({category, "RPC"})
+    @Description("A single JSON-RPC call")
+    static final class RpcCall extends Event {
+        @Label("Method")
+        String method;
+        @Label("Transaction Id")
+        @Description("Transaction id parameter, if any")
+        String txId;
+        @Label("Response Size")
+        @Description("Size of the response, if known")
+        @DataAmount
+        long bytes;
+        @Label("Failed")
+        boolean failed;
+
+        void report(String method, List<Object> params, long bytes, boolean failed) {
+            if (shouldCommit()) {
+                this.method = method;
+                this.txId = txIdParam(params);
+                this.bytes = bytes;
+                this.failed = failed;
+                commit();
+            }
+        }
+
+        // Per-transaction methods take the transaction id (a 64-digit hex string) as the first parameter
+        private static String txIdParam(List<Object> params) {
+            return (!params.isEmpty() && params.get(0) instanceof String s && s.length() == 64) ? s : null;
+        }
+    }
+
+    @Name("org.consensusj.ledgerexport.BatchFlush")
+    @Label("RPC Batch")
+    @Category({category, "RPC"})
+    @Description("A batch of JSON-RPC calls sent in one request")
+    static final class BatchFlush extends Event {
+        @Label("Method")
+        String method;
+        @Label("Calls")
+        int calls;
+        @Label("Errors")
+        long errors;
+        @Label("Response Size")
+        @DataAmount
+        long bytes;
+
+        void report(String method, int calls, long errors, long bytes) {
+            if (shouldCommit()) {
+                this.method = method;
+                this.calls = calls;
+                this.errors = errors;
+                this.bytes = bytes;
+                commit();
+            }
+        }
+    }
+
+    @Name("org.consensusj.ledgerexport.ContainerInsert")
+    @Label("Container Insert")
+    @Category({category, "Collect"})
+    @Description("Wallet, Omni or match data added to a transactions container")
+    @StackTrace(false)
+    static final class ContainerInsert extends Event {
+        @Label("Transaction Id")
+        String txId;
+        @Label("Kind")
+        @Description("wallet, omni, omniPending, addresses or match")
+        String kind;
+
+        void report(Sha256Hash txId, String kind) {
+            if (shouldCommit()) {
+                this.txId = txId.toString();
+                this.kind = kind;
+                commit();
+            }
+        }
+    }
+
+    @Name("org.consensusj.ledgerexport.Conversion")
+    @Label("Conversion")
+    @Category({category, "Convert"})
+    @Description("Conversion of the data of a transaction to a ledger transaction")
+    @StackTrace(false)
+    static final class Conversion extends Event {
+        @Label("Transaction Id")
+        String txId;
+        @Label("Kind")
+        @Description("omniReceived, omniSent, bitcoin, bitcoinSelfSend or omniMatch")
+        String kind;
+        @Label("Splits")
+        int splits;
+
+        void report(TransactionData data, String kind, LedgerTransaction transaction) {
+            if (shouldCommit()) {
+                this.txId = data.txId().toString();
+                this.kind = kind;
+                this.splits = transaction.splits().size();
+                commit();
+            }
+        }
+    }
+
+    @Name("org.consensusj.ledgerexport.OutputFlush")
+    @Label("Output Flush")
+    @Category({category, "Output"})
+    @Description("Buffered ledger output written to the output channel")
+    static final class OutputFlush extends Event {
+        @Label("Size")
+        @DataAmount
+        long bytes;
+        @Label("Entries")
+        @Description("Ledger transactions written so far")
+        long entries;
+
+        void report(long bytes, long entries) {
+            if (shouldCommit()) {
+                this.bytes = bytes;
+                this.entries = entries;
+                commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Metrics of an export: one {@link ExportTimer} per JSON-RPC method, per export stage ({@code initialize},
+ * {@code collectData}, {@code convertToLedger}, {@code output}) and per kind of transaction conversion.
+ * <p>
+ * Timers are created when first used and, if an {@link MBeanServer} was given, registered as MXBeans named
+ * {@code org.consensusj.ledgerexport:type=<RpcMethod|Stage|Conversion>,name=<name>}.
+ * A summary of all timers is available as JSON with {@link #toJson(ObjectMapper)}.
+ */
+public final class ExportMetrics {
+    private static final Logger log = LoggerFactory.getLogger(ExportMetrics.class);
+    /** JMX domain of the registered timers */
+    public static final String DOMAIN = "org.consensusj.ledgerexport";
+
+    private final MBeanServer server;
+    private final Map<String, ExportTimer> rpc = new ConcurrentHashMap<>();
+    private final Map<String, ExportTimer> stages = new ConcurrentHashMap<>();
+    private final Map<String, ExportTimer> conversions = new ConcurrentHashMap<>();
+    private final Set<ObjectName> registered = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Metrics that aren't registered with JMX
+     */
+    public ExportMetrics() {
+        this(null);
+    }
+
+    /**
+     * @param server MBean server to register timers with or {@code null} for none
+     */
+    public ExportMetrics(MBeanServer server) {
+        this.server = server;
+    }
+
+    /**
+     * @param method JSON-RPC method name
+     * @return the timer for the method
+     */
+    public ExportTimer rpc(String method) {
+        return timer(rpc, "RpcMethod", method);
+    }
+
+    /**
+     * @param name export stage, e.g. {@code collectData}
+     * @return the timer for the stage
+     */
+    public ExportTimer stage(String name) {
+        return timer(stages, "Stage", name);
+    }
+
+    /**
+     * @param type kind of conversion, e.g. {@code omniSend}
+     * @return the timer for the conversion
+     */
+    public ExportTimer conversion(String type) {
+        return timer(conversions, "Conversion", type);
+    }
+
+    /**
+     * @param mapper mapper used to create the JSON nodes
+     * @return JSON object with {@code rpc}, {@code stages} and {@code conversions} objects containing the
+     *         values of each timer, sorted by name
+     */
+    public ObjectNode toJson(ObjectMapper mapper) {
+        ObjectNode json = mapper.createObjectNode();
+        addJson(json.putObject("rpc"), rpc);
+        addJson(json.putObject("stages"), stages);
+        addJson(json.putObject("conversions"), conversions);
+        return json;
+    }
+
+    /**
+     * Unregister all timers registered by this object from JMX, e.g. so a later export in the same JVM can register
+     * its own
+     */
+    public void unregister() {
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                log.warn("Can't unregister {}", name, e);
+            }
+            registered.remove(name);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ExportMetrics[rpc=%d, stages=%d, conversions=%d]", rpc.size(), stages.size(), conversions.size());
+    }
+
+    private ExportTimer timer(Map<String, ExportTimer> timers, String type, String name) {
+        ExportTimer timer = timers.get(name);
+        return (timer != null) ? timer : timers.computeIfAbsent(name, n -> register(type, n, new ExportTimer()));
+    }
+
+    private ExportTimer register(String type, String name, ExportTimer timer) {
+        if (server != null) {
+            try {
+                ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + name);
+                server.registerMBean(timer, objectName);
+                registered.add(objectName);
+            } catch (JMException e) {
+                // E.g. another export in this JVM already registered the name, the timer still works
+                log.warn("Can't register {} timer {}", type, name, e);
+            }
+        }
+        return timer;
+    }
+
+    private static void addJson(ObjectNode json, Map<String, ExportTimer> timers) {
+        new TreeMap<>(timers).forEach((name, timer) -> json.putObject(name)
+                .put("count", timer.getCount())
+                .put("items", timer.getItemCount())
+                .put("errors", timer.getErrorCount())
+                .put("bytes", timer.getBytes())
+                .put("totalMillis", timer.getTotalMillis())
+                .put("meanMillis", timer.getMeanMillis())
+                .put("p50Millis", timer.getP50Millis())
+                .put("p90Millis", timer.getP90Millis())
+                .put("p99Millis", timer.getP99Millis())
+                .put("maxMillis", timer.getMaxMillis()));
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * The streaming pipeline of a {@link StreamingAccountingExporter}: collect → convert → filter → output. Stages are
+ * connected by {@link SubmissionPublisher}s with bounded buffers. A stage blocks in {@code submit} when the next
+ * stage's buffer is full, which in turn fills its own buffer, so backpressure reaches the collecting stage.
+ */
+final class ExportPipeline {
+    private final Function<TransactionData, LedgerTransaction> convert;
+    private final Consumer<LedgerTransaction> output;
+    private final Runnable flush;
+    private final int conversionParallelism;
+    private final Executor executor;
+    private final int bufferCapacity;
+
+    /**
+     * @param exporter exporter that provides the stages
+     * @param conversionParallelism number of transactions to convert concurrently, {@code 1} to convert in the stage
+     * @param executor executor to run the stages (and concurrent conversions) on
+     * @param bufferCapacity maximum number of items buffered between two stages
+     */
+    ExportPipeline(StreamingAccountingExporter exporter, int conversionParallelism, Executor executor, int bufferCapacity) {
+        this(exporter::convertToLedger, exporter::output, exporter::flush, conversionParallelism, executor, bufferCapacity);
+    }
+
+    /**
+     * @param convert the convert stage, called concurrently with parallelism greater than one
+     * @param output the output stage, called by one thread at a time
+     * @param flush called when the output stage completes
+     * @param conversionParallelism number of transactions to convert concurrently, {@code 1} to convert in the stage
+     * @param executor executor to run the stages (and concurrent conversions) on
+     * @param bufferCapacity maximum number of items buffered between two stages
+     */
+    ExportPipeline(Function<TransactionData, LedgerTransaction> convert, Consumer<LedgerTransaction> output, Runnable flush,
+                   int conversionParallelism, Executor executor, int bufferCapacity) {
+        if (conversionParallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.convert = convert;
+        this.output = output;
+        this.flush = flush;
+        this.conversionParallelism = conversionParallelism;
+        this.executor = executor;
+        this.bufferCapacity = bufferCapacity;
+    }
+
+    /**
+     * Start the pipeline
+     * @param source given a consumer, passes it each transaction in chronological order
+     * @param filter only output entries that match, called by one thread at a time
+     * @return a future for the number of entries output
+     */
+    CompletableFuture<Long> run(Consumer<Consumer<TransactionData>> source, Predicate<LedgerTransaction> filter) {
+        SubmissionPublisher<TransactionData> collected = new SubmissionPublisher<>(executor, bufferCapacity);
+        MappingProcessor<TransactionData, LedgerTransaction> converted = new MappingProcessor<>(convert, conversionParallelism, executor, bufferCapacity);
+        MappingProcessor<LedgerTransaction, LedgerTransaction> filtered = new MappingProcessor<>(t -> filter.test(t) ? t : null, 1, executor, bufferCapacity);
+        OutputSubscriber outputStage = new OutputSubscriber(output, flush);
+        collected.subscribe(converted);
+        converted.subscribe(filtered);
+        filtered.subscribe(outputStage);
+        CompletableFuture.runAsync(() -> source.accept(transaction -> {
+                    // Stop collecting if a later stage failed
+                    if (!collected.hasSubscribers()) {
+                        throw new CancellationException("export pipeline failed");
+                    }
+                    collected.submit(transaction);
+                }), executor)
+                .whenComplete((v, t) -> {
+                    if (t != null) {
+                        collected.closeExceptionally(t);
+                    } else {
+                        collected.close();
+                    }
+                });
+        return outputStage.result;
+    }
+
+    /**
+     * A stage that maps each item, in order, and publishes the results. A {@code null} result is dropped.
+     * With parallelism greater than one, up to that many items are mapped concurrently on the executor.
+     * @param <T> input type
+     * @param <R> output type
+     */
+    static final class MappingProcessor<T, R> extends SubmissionPublisher<R> implements Flow.Processor<T, R> {
+        private final Function<? super T, ? extends R> function;
+        private final int parallelism;
+        private final Executor executor;
+        // Only accessed by the delivering thread
+        private final Queue<CompletableFuture<R>> pending = new ArrayDeque<>();
+        private Flow.Subscription subscription;
+
+        MappingProcessor(Function<? super T, ? extends R> function, int parallelism, Executor executor, int bufferCapacity) {
+            super(executor, bufferCapacity);
+            this.function = function;
+            this.parallelism = parallelism;
+            this.executor = executor;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(parallelism);
+        }
+
+        @Override
+        public void onNext(T item) {
+            try {
+                if (parallelism == 1) {
+                    publish(function.apply(item));
+                } else {
+                    pending.add(CompletableFuture.supplyAsync(() -> function.apply(item), executor));
+                    // Publish completed results in order, waiting for the oldest when the window is full
+                    while (!pending.isEmpty() && (pending.peek().isDone() || pending.size() >= parallelism)) {
+                        publish(pending.remove().join());
+                    }
+                }
+                if (!hasSubscribers()) {
+                    throw new CancellationException("downstream stage failed");
+                }
+                subscription.request(1);
+            } catch (RuntimeException e) {
+                subscription.cancel();
+                closeExceptionally(e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            closeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            try {
+                while (!pending.isEmpty()) {
+                    publish(pending.remove().join());
+                }
+                close();
+            } catch (RuntimeException e) {
+                closeExceptionally(e);
+            }
+        }
+
+        private void publish(R result) {
+            if (result != null) {
+                submit(result);
+            }
+        }
+    }
+
+    /**
+     * The final stage, outputs each entry and flushes when complete
+     */
+    static final class OutputSubscriber implements Flow.Subscriber<LedgerTransaction> {
+        private final Consumer<LedgerTransaction> output;
+        private final Runnable flush;
+        private final CompletableFuture<Long> result = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+        private long count;
+
+        OutputSubscriber(Consumer<LedgerTransaction> output, Runnable flush) {
+            this.output = output;
+            this.flush = flush;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(LedgerTransaction entry) {
+            try {
+                output.accept(entry);
+                count++;
+                subscription.request(1);
+            } catch (RuntimeException e) {
+                subscription.cancel();
+                result.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            try {
+                flush.run();
+                result.complete(count);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+}
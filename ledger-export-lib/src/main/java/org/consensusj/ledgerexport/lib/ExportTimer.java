@@ -0,0 +1,164 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and times events of one kind, e.g. requests for a JSON-RPC method or invocations of an export stage.
+ * Times are kept in a log-linear histogram (four buckets per power of two, so percentiles are within 25%).
+ * Thread-safe, recording doesn't lock or allocate.
+ */
+public final class ExportTimer implements ExportTimerMXBean {
+    private static final int subBucketBits = 2;
+    private static final int subBuckets = 1 << subBucketBits;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder items = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    private final AtomicLongArray histogram = new AtomicLongArray(64 * subBuckets);
+
+    ExportTimer() {
+    }
+
+    /**
+     * Record an event
+     * @param nanos duration of the event in nanoseconds
+     * @param itemCount number of items processed
+     * @param byteCount number of bytes transferred, or zero if unknown
+     * @param errorCount number of errors
+     */
+    public void record(long nanos, long itemCount, long byteCount, long errorCount) {
+        nanos = Math.max(nanos, 0);
+        count.increment();
+        items.add(itemCount);
+        bytes.add(byteCount);
+        errors.add(errorCount);
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+        histogram.incrementAndGet(bucket(nanos));
+    }
+
+    /**
+     * Record an event that started at {@code startNanos} and ends now
+     * @param startNanos value of {@link System#nanoTime()} when the event started
+     * @param itemCount number of items processed
+     */
+    public void recordSince(long startNanos, long itemCount) {
+        record(System.nanoTime() - startNanos, itemCount, 0, 0);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getItemCount() {
+        return items.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    @Override
+    public double getTotalMillis() {
+        return totalNanos.sum() / 1e6;
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long n = count.sum();
+        return (n > 0) ? totalNanos.sum() / 1e6 / n : 0;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return percentileNanos(0.50) / 1e6;
+    }
+
+    @Override
+    public double getP90Millis() {
+        return percentileNanos(0.90) / 1e6;
+    }
+
+    @Override
+    public double getP99Millis() {
+        return percentileNanos(0.99) / 1e6;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ExportTimer[count=%d, items=%d, errors=%d, mean=%.3fms, p99=%.3fms]",
+                getCount(), getItemCount(), getErrorCount(), getMeanMillis(), getP99Millis());
+    }
+
+    // The upper bound of the bucket containing the percentile, but no more than the maximum
+    private long percentileNanos(double fraction) {
+        long total = 0;
+        long[] counts = new long[histogram.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+            total += counts[i];
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(upperBound(i), maxNanos.get());
+            }
+        }
+        return 0;
+    }
+
+    // Values below subBuckets have their own bucket, larger values are split into subBuckets per power of two
+    private static int bucket(long nanos) {
+        if (nanos < subBuckets) {
+            return (int) nanos;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (msb - subBucketBits)) & (subBuckets - 1);
+        return (msb - subBucketBits + 1) * subBuckets + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < subBuckets) {
+            return bucket;
+        }
+        int msb = bucket / subBuckets + subBucketBits - 1;
+        long step = 1L << (msb - subBucketBits);
+        long lower = (1L << msb) + (bucket % subBuckets) * step;
+        return lower + step - 1;
+    }
+}
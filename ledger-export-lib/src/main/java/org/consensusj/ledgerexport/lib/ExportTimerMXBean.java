@@ -0,0 +1,71 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+/**
+ * JMX view of an {@link ExportTimer}
+ */
+public interface ExportTimerMXBean {
+    /**
+     * @return number of timed events (e.g. HTTP requests or stage invocations)
+     */
+    long getCount();
+
+    /**
+     * @return number of items processed by the events (e.g. calls in a batch or transactions)
+     */
+    long getItemCount();
+
+    /**
+     * @return number of errors
+     */
+    long getErrorCount();
+
+    /**
+     * @return number of bytes transferred, where known
+     */
+    long getBytes();
+
+    /**
+     * @return total time of all events in milliseconds
+     */
+    double getTotalMillis();
+
+    /**
+     * @return mean time of an event in milliseconds
+     */
+    double getMeanMillis();
+
+    /**
+     * @return median time of an event in milliseconds (approximate)
+     */
+    double getP50Millis();
+
+    /**
+     * @return 90th percentile time of an event in milliseconds (approximate)
+     */
+    double getP90Millis();
+
+    /**
+     * @return 99th percentile time of an event in milliseconds (approximate)
+     */
+    double getP99Millis();
+
+    /**
+     * @return maximum time of an event in milliseconds
+     */
+    double getMaxMillis();
+}
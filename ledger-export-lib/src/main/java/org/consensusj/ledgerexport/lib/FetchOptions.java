@@ -0,0 +1,111 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+/**
+ * Options that control how {@link OmniExportClient} fetches data from the server.
+ * @param pageSize number of {@code listtransactions} and {@code omni_listtransactions} entries to request per call,
+ *                 or {@link #UNPAGED} to request all entries with a single call
+ * @param batchSize maximum number of per-transaction calls to send in one JSON-RPC batch request, or {@link #UNBATCHED}
+ *                  to send a request per call. Batching requires a {@link JsonRpcBatchClient}.
+ * @param maxInFlight upper limit for the number of concurrent requests to the server. The actual limit
+ *                    adapts to server latency and errors, see {@link RpcScheduler}.
+ * @param virtualThreads if {@code true} run each RPC call on a new virtual thread, otherwise use a pool of
+ *                       platform threads
+ * @param streamed if {@code true} decode {@code listtransactions} results while they are read from the server.
+ *                 Streaming requires a {@link JsonRpcBatchClient}, streamed pages are requested one after another
+ *                 (without overlap) and streamed results aren't recorded, so it is not used with a recording.
+ * @param memoryBudget maximum number of wallet entries to hold in memory during a full fetch, or {@link #UNLIMITED}.
+ *                     More entries are sorted in temporary files, see {@link OmniExportClient#fetch(java.util.function.Consumer)}.
+ */
+public record FetchOptions(int pageSize, int batchSize, int maxInFlight, boolean virtualThreads, boolean streamed, int memoryBudget) {
+    /** Page size that disables paging */
+    public static final int UNPAGED = 0;
+
+    /** Batch size that disables batching */
+    public static final int UNBATCHED = 0;
+
+    /** Memory budget that holds all wallet entries in memory */
+    public static final int UNLIMITED = 0;
+
+    /** Default maximum number of concurrent requests */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+
+    /** Default options: no paging, no batching, platform threads, no streaming, no memory budget */
+    public static final FetchOptions DEFAULT = new FetchOptions(UNPAGED, UNBATCHED, DEFAULT_MAX_IN_FLIGHT, false, false, UNLIMITED);
+
+    /**
+     * Options without a memory budget
+     * @param pageSize number of entries to request per call or {@link #UNPAGED}
+     * @param batchSize maximum number of per-transaction calls per batch request or {@link #UNBATCHED}
+     * @param maxInFlight upper limit for the number of concurrent requests to the server
+     * @param virtualThreads if {@code true} run each RPC call on a new virtual thread
+     * @param streamed if {@code true} decode {@code listtransactions} results while they are read
+     */
+    public FetchOptions(int pageSize, int batchSize, int maxInFlight, boolean virtualThreads, boolean streamed) {
+        this(pageSize, batchSize, maxInFlight, virtualThreads, streamed, UNLIMITED);
+    }
+
+    /**
+     * Options without streaming
+     * @param pageSize number of entries to request per call or {@link #UNPAGED}
+     * @param batchSize maximum number of per-transaction calls per batch request or {@link #UNBATCHED}
+     * @param maxInFlight upper limit for the number of concurrent requests to the server
+     * @param virtualThreads if {@code true} run each RPC call on a new virtual thread
+     */
+    public FetchOptions(int pageSize, int batchSize, int maxInFlight, boolean virtualThreads) {
+        this(pageSize, batchSize, maxInFlight, virtualThreads, false);
+    }
+
+    /**
+     * Validate options
+     */
+    public FetchOptions {
+        if (pageSize < 0) {
+            throw new IllegalArgumentException("pageSize must not be negative");
+        }
+        if (batchSize < 0) {
+            throw new IllegalArgumentException("batchSize must not be negative");
+        }
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("memoryBudget must not be negative");
+        }
+    }
+
+    /**
+     * @return {@code true} if wallet transactions should be fetched a page at a time
+     */
+    public boolean isPaged() {
+        return pageSize != UNPAGED;
+    }
+
+    /**
+     * @return {@code true} if per-transaction calls should be sent in batches
+     */
+    public boolean isBatched() {
+        return batchSize != UNBATCHED;
+    }
+
+    /**
+     * @return {@code true} if a full fetch should sort wallet entries in temporary files
+     */
+    public boolean isSpilled() {
+        return memoryBudget != UNLIMITED;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import java.io.IOException;
+
+/**
+ * A JSON-RPC request failed with an HTTP status other than OK, e.g. {@link #SERVICE_UNAVAILABLE} when Bitcoin Core's
+ * work queue is full
+ */
+public class HttpStatusException extends IOException {
+    /** HTTP status of a server that is overloaded */
+    public static final int SERVICE_UNAVAILABLE = 503;
+
+    private final int statusCode;
+
+    /**
+     * @param statusCode HTTP status code
+     * @param message detail message
+     */
+    public HttpStatusException(int statusCode, String message) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * @param statusCode HTTP status code
+     * @param message detail message
+     * @param cause exception thrown by the transport
+     */
+    public HttpStatusException(int statusCode, String message, Throwable cause) {
+        super(message, cause);
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * @return HTTP status code
+     */
+    public int statusCode() {
+        return statusCode;
+    }
+}
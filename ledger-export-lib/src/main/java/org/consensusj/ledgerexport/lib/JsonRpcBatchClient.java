@@ -0,0 +1,242 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Minimal JSON-RPC client that sends <b>batch</b> requests: a JSON array of requests in a single HTTP POST.
+ * Used alongside {@link foundation.omni.rpc.OmniClient} (which sends one request per POST) to reduce
+ * the number of round trips when many calls of the same method are needed.
+ * <p>
+ * It can also send a single request and <b>stream</b> the result to a {@link ResultReader}, so a large result
+ * is decoded as it arrives rather than held in memory as a whole.
+ */
+public class JsonRpcBatchClient {
+    private final URI server;
+    private final String authHeader;
+    private final ObjectMapper mapper;
+    private final HttpClient httpClient;
+    private final ExportMetrics metrics;
+
+    /**
+     * Result (or error) of one request in a batch
+     * @param result the result or {@code null} if there was an error
+     * @param error the error or {@code null} if there was no error
+     */
+    public record Response(JsonNode result, JsonNode error) {
+        /**
+         * @return {@code true} if the server returned an error for this request
+         */
+        public boolean isError() {
+            return error != null && !error.isNull();
+        }
+    }
+
+    /**
+     * Reads a streamed result, see {@link #stream(String, List, ResultReader)}
+     * @param <T> type of value read
+     */
+    @FunctionalInterface
+    public interface ResultReader<T> {
+        /**
+         * @param parser parser positioned at the first token of the result. The reader must consume the
+         *               entire result.
+         * @return value read
+         * @throws IOException if the result can't be read
+         */
+        T read(JsonParser parser) throws IOException;
+    }
+
+    /**
+     * @param server URI of JSON-RPC server (including wallet path, if any)
+     * @param username RPC username
+     * @param password RPC password
+     * @param mapper object mapper used to serialize requests (should be the mapper used by the main client)
+     */
+    public JsonRpcBatchClient(URI server, String username, String password, ObjectMapper mapper) {
+        this(server, username, password, mapper, new ExportMetrics());
+    }
+
+    /**
+     * @param server URI of JSON-RPC server (including wallet path, if any)
+     * @param username RPC username
+     * @param password RPC password
+     * @param mapper object mapper used to serialize requests (should be the mapper used by the main client)
+     * @param metrics records the time, calls, errors and response bytes of each request by method
+     */
+    public JsonRpcBatchClient(URI server, String username, String password, ObjectMapper mapper, ExportMetrics metrics) {
+        this.server = server;
+        this.authHeader = "Basic " + Base64.getEncoder()
+                .encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8));
+        this.mapper = mapper;
+        this.httpClient = HttpClient.newHttpClient();
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the object mapper
+     */
+    public ObjectMapper getMapper() {
+        return mapper;
+    }
+
+    /**
+     * Send a batch of calls to the same method and wait for the responses.
+     * @param method JSON-RPC method name
+     * @param paramsList one list of parameters per call
+     * @return one response per call, in the same order as {@code paramsList}
+     * @throws IOException if the HTTP request fails or the response is not a valid batch response, an
+     *                     {@link HttpStatusException} if the server returns an HTTP error status
+     */
+    public List<Response> send(String method, List<List<Object>> paramsList) throws IOException {
+        ArrayNode batch = mapper.createArrayNode();
+        for (int id = 0; id < paramsList.size(); id++) {
+            ObjectNode request = batch.addObject();
+            request.put("jsonrpc", "2.0");
+            request.put("id", id);
+            request.put("method", method);
+            request.set("params", mapper.valueToTree(paramsList.get(id)));
+        }
+        HttpRequest request = HttpRequest.newBuilder(server)
+                .header("Authorization", authHeader)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(mapper.writeValueAsBytes(batch)))
+                .build();
+        long start = System.nanoTime();
+        long bytes = 0;
+        long errors = paramsList.size();
+        ExportEvents.BatchFlush event = new ExportEvents.BatchFlush();
+        event.begin();
+        try {
+            HttpResponse<byte[]> httpResponse;
+            try {
+                httpResponse = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending batch");
+            }
+            bytes = httpResponse.body().length;
+            if (httpResponse.statusCode() != 200) {
+                throw new HttpStatusException(httpResponse.statusCode(), "Batch " + method + " failed with HTTP status " + httpResponse.statusCode());
+            }
+            JsonNode responses = mapper.readTree(httpResponse.body());
+            if (!responses.isArray() || responses.size() != paramsList.size()) {
+                throw new IOException("Invalid batch response for " + method);
+            }
+            // Responses may be returned in any order, so put each one back in the position of its request
+            List<Response> results = new ArrayList<>(paramsList.size());
+            paramsList.forEach(p -> results.add(null));
+            for (JsonNode response : responses) {
+                JsonNode id = response.get("id");
+                if (id == null || !id.canConvertToInt() || id.asInt() < 0 || id.asInt() >= results.size() || results.get(id.asInt()) != null) {
+                    throw new IOException("Invalid batch response for " + method + ": missing, unknown or duplicate id " + id);
+                }
+                results.set(id.asInt(), new Response(response.get("result"), response.get("error")));
+            }
+            errors = results.stream().filter(Response::isError).count();
+            return results;
+        } finally {
+            metrics.rpc(method).record(System.nanoTime() - start, paramsList.size(), bytes, errors);
+            event.report(method, paramsList.size(), errors, bytes);
+        }
+    }
+
+    /**
+     * Send a single call and decode its result while it is read from the HTTP response.
+     * @param method JSON-RPC method name
+     * @param params parameters
+     * @param reader reads the result from the response stream
+     * @param <T> type of value read
+     * @return the value read by {@code reader} or {@code null} if the result was {@code null}
+     * @throws IOException if the HTTP request fails, the server returns an error, or {@code reader} fails, an
+     *                     {@link HttpStatusException} if the server returns an HTTP error status without a JSON-RPC error
+     */
+    public <T> T stream(String method, List<Object> params, ResultReader<T> reader) throws IOException {
+        ObjectNode call = mapper.createObjectNode();
+        call.put("jsonrpc", "2.0");
+        call.put("id", 0);
+        call.put("method", method);
+        call.set("params", mapper.valueToTree(params));
+        HttpRequest request = HttpRequest.newBuilder(server)
+                .header("Authorization", authHeader)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(mapper.writeValueAsBytes(call)))
+                .build();
+        long start = System.nanoTime();
+        long bytes = 0;
+        long errors = 1;
+        ExportEvents.RpcCall event = new ExportEvents.RpcCall();
+        event.begin();
+        HttpResponse<InputStream> httpResponse;
+        try {
+            httpResponse = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending " + method);
+        } catch (IOException e) {
+            metrics.rpc(method).record(System.nanoTime() - start, 1, bytes, errors);
+            event.report(method, params, bytes, true);
+            throw e;
+        }
+        // Servers return errors with a non-200 status, with a JSON-RPC error in the body if there is one
+        try (InputStream body = httpResponse.body(); JsonParser parser = mapper.createParser(body)) {
+            try {
+                if (httpResponse.statusCode() != 200 && httpResponse.statusCode() != 500) {
+                    throw new HttpStatusException(httpResponse.statusCode(), method + " failed with HTTP status " + httpResponse.statusCode());
+                }
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new IOException("Invalid response for " + method);
+                }
+                T result = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    JsonToken token = parser.nextToken();
+                    if (field.equals("error") && token != JsonToken.VALUE_NULL) {
+                        throw new IOException(method + " returned error: " + parser.readValueAsTree());
+                    } else if (field.equals("result") && token != JsonToken.VALUE_NULL) {
+                        result = reader.read(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                errors = 0;
+                return result;
+            } finally {
+                bytes = Math.max(parser.getCurrentLocation().getByteOffset(), 0);
+                metrics.rpc(method).record(System.nanoTime() - start, 1, bytes, errors);
+                event.report(method, params, bytes, errors != 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+
+/**
+ * Formats transaction times like {@code yyyy-MM-dd HH:mm:ss} in a time zone, the same as
+ * {@link LedgerTransaction#toLedger()}. Output is mostly chronological, so the date prefix of the current day (and
+ * the span of epoch seconds it covers at one UTC offset) is cached and the time of day is formatted by hand.
+ * Not thread-safe.
+ */
+final class LedgerTimeFormat {
+    private static final DateTimeFormatter DATE_PREFIX_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd ");
+
+    private final ZoneRules rules;
+    // The cached day: epoch seconds [start, end) all have date prefix datePrefix, the day starts at localMidnight
+    private long start = 0;
+    private long end = 0;
+    private long localMidnight;
+    private String datePrefix;
+
+    /**
+     * @param zone time zone to format times in
+     */
+    LedgerTimeFormat(ZoneId zone) {
+        this.rules = zone.getRules();
+    }
+
+    /**
+     * @param builder builder to append to
+     * @param time time to format
+     */
+    void appendTo(StringBuilder builder, Instant time) {
+        long epochSecond = time.getEpochSecond();
+        if (epochSecond < start || epochSecond >= end) {
+            cacheDay(time);
+        }
+        int secondOfDay = (int) (epochSecond - localMidnight);
+        builder.append(datePrefix);
+        appendTwoDigits(builder, secondOfDay / 3600);
+        builder.append(':');
+        appendTwoDigits(builder, secondOfDay / 60 % 60);
+        builder.append(':');
+        appendTwoDigits(builder, secondOfDay % 60);
+    }
+
+    private void cacheDay(Instant time) {
+        ZoneOffset offset = rules.getOffset(time);
+        long localSecond = time.getEpochSecond() + offset.getTotalSeconds();
+        LocalDate date = LocalDate.ofEpochDay(Math.floorDiv(localSecond, 86400));
+        localMidnight = date.toEpochDay() * 86400 - offset.getTotalSeconds();
+        datePrefix = DATE_PREFIX_FORMATTER.format(date);
+        // Limit the span to the one UTC offset, so the time of day is simply seconds since midnight
+        ZoneOffsetTransition previous = rules.previousTransition(time.plusSeconds(1));
+        ZoneOffsetTransition next = rules.nextTransition(time);
+        start = (previous != null) ? Math.max(localMidnight, previous.toEpochSecond()) : localMidnight;
+        end = (next != null) ? Math.min(localMidnight + 86400, next.toEpochSecond()) : localMidnight + 86400;
+    }
+
+    private static void appendTwoDigits(StringBuilder builder, int value) {
+        builder.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+}
@@ -21,8 +21,10 @@ import java.math.BigDecimal;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.Comparator;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
 
 /**
  * Representation of a Bitcoin/Omni Transaction for a plain-text accounting app like ledger-cli.
@@ -30,23 +32,176 @@ import java.util.stream.Collectors;
 public record LedgerTransaction(Sha256Hash txId,
                          Instant time,
                          String description,
-                         List<String> comments,
+                         List<LedgerTransaction.Comment> comments,
                          List<Split> splits) {
     private static final DateTimeFormatter DEFAULT_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
     /**
-     * A "split" to balance this transaction to an account
-     * @param account account to balance against
-     * @param amount amount
-     * @param currency currency type
+     * Output order, the same as {@link TransactionData#CHRONOLOGICAL} for the transactions they were imported from
      */
-    record Split(String account, BigDecimal amount, String currency) {
+    public static final Comparator<LedgerTransaction> CHRONOLOGICAL = Comparator.comparing(LedgerTransaction::time)
+            .thenComparing(LedgerTransaction::txId);
+
+    /** Account names, the output form is indented and padded to the amount column */
+    static final SymbolTable ACCOUNTS = new SymbolTable(account -> "    " + account + " ".repeat(Math.max(40 - account.length(), 0)) + " ");
+
+    /** Currency codes, the output form is quoted if the code contains {@code #} */
+    static final SymbolTable CURRENCIES = new SymbolTable(currency -> currency.contains("#") ? '"' + currency + '"' : currency);
+
+    /**
+     * A comment line. Comments are rendered when the transaction is output, so implementations keep the structured
+     * fields and format them in {@link #appendTo(StringBuilder)}.
+     */
+    public interface Comment {
+        /**
+         * Append the comment text (without the leading {@code ;} or a line separator)
+         * @param builder builder to append to
+         */
+        void appendTo(StringBuilder builder);
+
+        /**
+         * @return the comment text
+         */
+        default String text() {
+            StringBuilder builder = new StringBuilder();
+            appendTo(builder);
+            return builder.toString();
+        }
+
+        /**
+         * @param text comment text
+         * @return a comment with already-rendered text
+         */
+        static Comment of(String text) {
+            return new Text(text);
+        }
+    }
+
+    private record Text(String text) implements Comment {
+        @Override
+        public void appendTo(StringBuilder builder) {
+            builder.append(text);
+        }
+    }
+
+    /**
+     * A "split" to balance this transaction to an account. The amount is fixed-point: a number of units of
+     * 10<sup>-scale</sup>, e.g. satoshis (scale 8) for BTC and divisible Omni properties, or whole tokens (scale 0)
+     * for indivisible Omni properties. The account and currency are ids in {@link #ACCOUNTS} and {@link #CURRENCIES}.
+     * @param accountId id of the account to balance against
+     * @param units amount in units of 10<sup>-scale</sup>
+     * @param scale number of decimal places of the amount
+     * @param currencyId id of the currency type
+     */
+    public record Split(int accountId, long units, int scale, int currencyId) {
+        /**
+         * Validate
+         */
+        public Split {
+            if (scale < 0) {
+                throw new IllegalArgumentException("scale must not be negative");
+            }
+        }
+
+        /**
+         * Create from account and currency names
+         * @param account account to balance against
+         * @param units amount in units of 10<sup>-scale</sup>
+         * @param scale number of decimal places of the amount
+         * @param currency currency type
+         */
+        Split(String account, long units, int scale, String currency) {
+            this(ACCOUNTS.id(account), units, scale, CURRENCIES.id(currency));
+        }
+
+        /**
+         * Create from a {@link BigDecimal} amount
+         * @param account account to balance against
+         * @param amount amount, must fit in a {@code long} at its scale
+         * @param currency currency type
+         */
+        Split(String account, BigDecimal amount, String currency) {
+            this(account, nonNegativeScale(amount).unscaledValue().longValueExact(), nonNegativeScale(amount).scale(), currency);
+        }
+
+        /**
+         * @return account to balance against
+         */
+        public String account() {
+            return ACCOUNTS.name(accountId);
+        }
+
+        /**
+         * @return currency type
+         */
+        public String currency() {
+            return CURRENCIES.name(currencyId);
+        }
+
+        /**
+         * @return the amount as a {@link BigDecimal}
+         */
+        public BigDecimal amount() {
+            return BigDecimal.valueOf(units, scale);
+        }
+
         public String toLedger() {
-            String currencyOutput = currency.contains("#")
-                    ? String.format("\"%s\"", currency)
-                    : currency;
-            return String.format("    %-40s %s %s", account, amount.toPlainString(), currencyOutput);
+            StringBuilder builder = new StringBuilder(64);
+            appendTo(builder);
+            return builder.toString();
+        }
+
+        /**
+         * Append in Ledger-CLI format, without a line separator
+         * @param builder builder to append to
+         */
+        void appendTo(StringBuilder builder) {
+            builder.append(ACCOUNTS.output(accountId));
+            appendAmount(builder, units, scale);
+            builder.append(' ').append(CURRENCIES.output(currencyId));
+        }
+
+        // Append the plain (no exponent) decimal string, the same as BigDecimal.valueOf(units, scale).toPlainString()
+        static void appendAmount(StringBuilder builder, long units, int scale) {
+            if (units < 0) {
+                builder.append('-');
+            }
+            // Digits are appended least-significant first and then reversed. The remaining value is kept
+            // negative so Long.MIN_VALUE doesn't overflow.
+            int start = builder.length();
+            long remaining = (units < 0) ? units : -units;
+            int digits = 0;
+            do {
+                if (digits == scale && scale > 0) {
+                    builder.append('.');
+                }
+                builder.append((char) ('0' - remaining % 10));
+                remaining /= 10;
+                digits++;
+            } while (remaining != 0 || digits <= scale);
+            for (int i = start, j = builder.length() - 1; i < j; i++, j--) {
+                char c = builder.charAt(i);
+                builder.setCharAt(i, builder.charAt(j));
+                builder.setCharAt(j, c);
+            }
         }
+
+        private static BigDecimal nonNegativeScale(BigDecimal amount) {
+            return (amount.scale() < 0) ? amount.setScale(0) : amount;
+        }
+    }
+
+    /**
+     * Render the comments, e.g. before holding the transaction for a long time. Lazy comments can refer to the
+     * collected transaction data, which would otherwise be retained as long as the transaction.
+     * @return a transaction with already-rendered comments, or this transaction if they all are
+     */
+    public LedgerTransaction withRenderedComments() {
+        if (comments.stream().allMatch(c -> c instanceof Text)) {
+            return this;
+        }
+        List<Comment> rendered = comments.stream().map(c -> Comment.of(c.text())).toList();
+        return new LedgerTransaction(txId, time, description, rendered, splits);
     }
 
     @Override
@@ -59,16 +214,48 @@ public record LedgerTransaction(Sha256Hash txId,
      * @return Multi-line Ledger-CLI entry
      */
     public String toLedger() {
-        var commentLines = comments()
-                .stream()
-                .map(c -> String.format("; %s", c))
-                .collect(Collectors.joining("\n", "\n", "\n"));
-        var timeString = time.atZone(ZoneId.systemDefault()).format(DEFAULT_TIME_FORMATTER);
-        var mainLine = String.format("%s %2$s\n", timeString, description);
-        var splitLines = splits.stream()
-                        .map(Split::toLedger)
-                        .collect(Collectors.joining("\n", "", "\n"));
-        return commentLines + mainLine + splitLines;
+        StringBuilder builder = new StringBuilder(256);
+        appendTo(builder);
+        return builder.toString();
+    }
+
+    /**
+     * Append in Ledger-CLI format, see {@link #toLedger()}
+     * @param builder builder to append to
+     */
+    void appendTo(StringBuilder builder) {
+        // A blank line, the comment lines, the main line, and the split lines
+        appendHeaderTo(builder, null);
+        if (splits.isEmpty()) {
+            builder.append('\n');
+        }
+        for (Split split : splits) {
+            split.appendTo(builder);
+            builder.append('\n');
+        }
+    }
+
+    /**
+     * Append the blank line, the comment lines and the main line, see {@link #toLedger()}
+     * @param builder builder to append to
+     * @param timeFormat format for the time, or {@code null} for the default formatter in the system time zone
+     */
+    void appendHeaderTo(StringBuilder builder, LedgerTimeFormat timeFormat) {
+        builder.append('\n');
+        if (comments.isEmpty()) {
+            builder.append('\n');
+        }
+        for (Comment comment : comments) {
+            builder.append("; ");
+            comment.appendTo(builder);
+            builder.append('\n');
+        }
+        if (timeFormat != null) {
+            timeFormat.appendTo(builder, time);
+        } else {
+            DEFAULT_TIME_FORMATTER.formatTo(time.atZone(ZoneId.systemDefault()), builder);
+        }
+        builder.append(' ').append(description).append('\n');
     }
 
     /**
@@ -77,6 +264,37 @@ public record LedgerTransaction(Sha256Hash txId,
      * @return true if any split matches this account
      */
     public boolean matchesAccount(String matchString) {
-        return splits().stream().anyMatch(s -> s.account().contains(matchString));
+        return accountFilter(matchString).test(this);
+    }
+
+    /**
+     * Create a filter equivalent to {@link #matchesAccount(String)} that is faster for many transactions, because
+     * it checks each account once and then compares account ids.
+     * @param matchString A full or partial account name
+     * @return predicate that is true for transactions with a split that matches the account. It isn't thread-safe.
+     */
+    public static Predicate<LedgerTransaction> accountFilter(String matchString) {
+        return splitAccountFilter(ACCOUNTS.containing(matchString));
+    }
+
+    /**
+     * Create a filter for transactions with a split to an account that starts with a prefix, e.g. {@code Income:}
+     * for all income accounts
+     * @param prefix start of the account name
+     * @return predicate that is true for transactions with a split that matches the account. It isn't thread-safe.
+     */
+    public static Predicate<LedgerTransaction> accountPrefixFilter(String prefix) {
+        return splitAccountFilter(ACCOUNTS.matching(account -> account.startsWith(prefix)));
+    }
+
+    private static Predicate<LedgerTransaction> splitAccountFilter(IntPredicate matchingAccount) {
+        return transaction -> {
+            for (Split split : transaction.splits) {
+                if (matchingAccount.test(split.accountId())) {
+                    return true;
+                }
+            }
+            return false;
+        };
     }
 }
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+
+/**
+ * Writes {@link LedgerTransaction}s in Ledger-CLI format (the same text as {@link LedgerTransaction#toLedger()}
+ * followed by a line separator) to a channel, through a large direct buffer. The comment and main lines are rendered
+ * into a reused {@link StringBuilder} and encoded as UTF-8; split lines are written from the pre-encoded account
+ * and currency bytes of the symbol tables. Not thread-safe.
+ */
+public final class LedgerWriter implements Closeable, Flushable {
+    private static final int defaultBufferSize = 1 << 20;
+    private static final byte[] lineSeparator = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final LedgerTimeFormat timeFormat;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final StringBuilder builder = new StringBuilder(1024);
+    private final StringBuilder amountBuilder = new StringBuilder(32);
+    private char[] chars = new char[1024];
+    private long entryCount;
+    private long byteCount;
+    private long markEntryCount;
+    private long markByteCount;
+
+    /**
+     * Write with times in the system default time zone
+     * @param channel channel to write to, for example a {@link java.nio.channels.FileChannel}
+     */
+    public LedgerWriter(WritableByteChannel channel) {
+        this(channel, ZoneId.systemDefault(), defaultBufferSize);
+    }
+
+    /**
+     * @param channel channel to write to, for example a {@link java.nio.channels.FileChannel}
+     * @param zone time zone for transaction times
+     * @param bufferSize size of the output buffer in bytes
+     */
+    public LedgerWriter(WritableByteChannel channel, ZoneId zone, int bufferSize) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.timeFormat = new LedgerTimeFormat(zone);
+    }
+
+    /**
+     * Write a transaction. It is buffered, see {@link #flush()}.
+     * @param transaction transaction to write
+     * @throws UncheckedIOException if writing to the channel fails
+     */
+    public void write(LedgerTransaction transaction) {
+        try {
+            builder.setLength(0);
+            transaction.appendHeaderTo(builder, timeFormat);
+            encode(builder);
+            if (transaction.splits().isEmpty()) {
+                put((byte) '\n');
+            }
+            for (LedgerTransaction.Split split : transaction.splits()) {
+                put(LedgerTransaction.ACCOUNTS.outputBytes(split.accountId()));
+                amountBuilder.setLength(0);
+                LedgerTransaction.Split.appendAmount(amountBuilder, split.units(), split.scale());
+                ensureRemaining(amountBuilder.length() + 1);
+                for (int i = 0; i < amountBuilder.length(); i++) {
+                    buffer.put((byte) amountBuilder.charAt(i));     // ASCII
+                }
+                buffer.put((byte) ' ');
+                put(LedgerTransaction.CURRENCIES.outputBytes(split.currencyId()));
+                put((byte) '\n');
+            }
+            put(lineSeparator);
+            entryCount++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write buffered output to the channel
+     * @throws IOException if writing to the channel fails
+     */
+    @Override
+    public void flush() throws IOException {
+        ExportEvents.OutputFlush event = new ExportEvents.OutputFlush();
+        event.begin();
+        buffer.flip();
+        int bytes = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            byteCount += channel.write(buffer);
+        }
+        buffer.clear();
+        event.report(bytes, entryCount);
+    }
+
+    /**
+     * Mark the current position, e.g. before writing the entries of a block, so they can be discarded if writing
+     * them fails part way, see {@link #discard()}
+     */
+    public void mark() {
+        markEntryCount = entryCount;
+        markByteCount = byteCount();
+    }
+
+    /**
+     * Discard the output written since {@link #mark()} (or since the writer was created). Buffered output is
+     * dropped, and output that was already written to the channel is truncated if the channel is a
+     * {@link SeekableByteChannel} (e.g. a {@link java.nio.channels.FileChannel}).
+     * @throws IOException if output was written to a channel that can't be truncated, or truncating fails
+     */
+    public void discard() throws IOException {
+        if (byteCount <= markByteCount) {
+            buffer.position((int) (markByteCount - byteCount));
+        } else if (channel instanceof SeekableByteChannel seekable) {
+            buffer.clear();
+            seekable.truncate(seekable.size() - (byteCount - markByteCount));
+            byteCount = markByteCount;
+        } else {
+            throw new IOException("Can't discard " + (byteCount - markByteCount) + " bytes already written to " + channel);
+        }
+        entryCount = markEntryCount;
+    }
+
+    /**
+     * Flush and close the channel
+     * @throws IOException if writing to or closing the channel fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return number of transactions written
+     */
+    public long entryCount() {
+        return entryCount;
+    }
+
+    /**
+     * @return number of bytes written, including those not yet flushed
+     */
+    public long byteCount() {
+        return byteCount + buffer.position();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LedgerWriter[entries=%d, bytes=%d]", entryCount, byteCount());
+    }
+
+    private void encode(StringBuilder text) throws IOException {
+        int length = text.length();
+        if (length > chars.length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        text.getChars(0, length, chars, 0);
+        CharBuffer in = CharBuffer.wrap(chars, 0, length);
+        encoder.reset();
+        while (encoder.encode(in, buffer, true).isOverflow()) {
+            flush();
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            flush();
+        }
+    }
+
+    private void put(byte b) throws IOException {
+        ensureRemaining(1);
+        buffer.put(b);
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.capacity()) {
+            flush();
+            ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+            while (wrapped.hasRemaining()) {
+                byteCount += channel.write(wrapped);
+            }
+        } else {
+            ensureRemaining(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private void ensureRemaining(int count) throws IOException {
+        if (buffer.remaining() < count) {
+            flush();
+        }
+    }
+}
@@ -15,6 +15,8 @@
  */
 package org.consensusj.ledgerexport.lib;
 
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonNode;
 import foundation.omni.Ecosystem;
 import foundation.omni.json.pojo.OmniTradeInfo;
 import foundation.omni.json.pojo.OmniTransactionInfo;
@@ -24,17 +26,37 @@ import org.bitcoinj.core.Address;
 import org.bitcoinj.core.Sha256Hash;
 import org.consensusj.bitcoin.json.pojo.BitcoinTransactionInfo;
 import org.consensusj.bitcoin.json.pojo.WalletTransactionInfo;
+import org.consensusj.jsonrpc.JsonRpcStatusException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
@@ -43,14 +65,121 @@ import java.util.stream.Stream;
 public class OmniExportClient {
     private static final Logger log = LoggerFactory.getLogger(OmniExportClient.class);
     private static final int minConfirmations = 1;
+    private static final int initialInFlight = 4;
     private final OmniClient client;
+    private final FetchOptions options;
+    private final JsonRpcBatchClient batchClient;
+    private final RpcScheduler scheduler;
+    private final RpcResultCache cache;
+    private final RpcRecording recording;
+    private final WalletEntryReader walletEntryReader;
+    private final ExportMetrics metrics;
+    // Block times never change, so they are shared by all fetches
+    private final CoalescingCache<Sha256Hash, BlockTimes> blockTimes = new CoalescingCache<>(this::getBlockTimes);
 
     /**
      * Construct from a JSON-RPC client
      * @param client JSON-RPC client configured to talk to a Bitcoin Core or Omni Core server.
      */
     public OmniExportClient(OmniClient client) {
+        this(client, FetchOptions.DEFAULT);
+    }
+
+    /**
+     * Construct from a JSON-RPC client and fetch options
+     * @param client JSON-RPC client configured to talk to a Bitcoin Core or Omni Core server.
+     * @param options options controlling how data is fetched
+     */
+    public OmniExportClient(OmniClient client, FetchOptions options) {
+        this(client, options, null);
+    }
+
+    /**
+     * Construct from a JSON-RPC client, fetch options, and a client for sending batch requests
+     * @param client JSON-RPC client configured to talk to a Bitcoin Core or Omni Core server.
+     * @param options options controlling how data is fetched
+     * @param batchClient client for sending batches (and streaming {@code listtransactions} results) from the same
+     *                    server, or {@code null} to send a request per call
+     */
+    public OmniExportClient(OmniClient client, FetchOptions options, JsonRpcBatchClient batchClient) {
+        this(client, options, batchClient, null);
+    }
+
+    /**
+     * Construct from a JSON-RPC client, fetch options, a client for sending batch requests, and a result cache
+     * @param client JSON-RPC client configured to talk to a Bitcoin Core or Omni Core server.
+     * @param options options controlling how data is fetched
+     * @param batchClient client for sending batches (and streaming {@code listtransactions} results) from the same
+     *                    server, or {@code null} to send a request per call
+     * @param cache cache for per-transaction results of deeply-confirmed transactions, or {@code null} for no caching
+     */
+    public OmniExportClient(OmniClient client, FetchOptions options, JsonRpcBatchClient batchClient, RpcResultCache cache) {
+        this(client, options, batchClient, cache, null);
+    }
+
+    /**
+     * Construct from a JSON-RPC client, fetch options, a client for sending batch requests, a result cache, and
+     * a recording of RPC responses
+     * @param client JSON-RPC client configured to talk to a Bitcoin Core or Omni Core server.
+     * @param options options controlling how data is fetched
+     * @param batchClient client for sending batches (and streaming {@code listtransactions} results) from the same
+     *                    server, or {@code null} to send a request per call
+     * @param cache cache for per-transaction results of deeply-confirmed transactions, or {@code null} for no caching
+     * @param recording recording to add responses to (record mode) or answer calls from (replay mode, the server
+     *                  isn't contacted), or {@code null} for neither
+     */
+    public OmniExportClient(OmniClient client, FetchOptions options, JsonRpcBatchClient batchClient, RpcResultCache cache, RpcRecording recording) {
+        this(client, options, batchClient, cache, recording, new ExportMetrics());
+    }
+
+    /**
+     * Construct from a JSON-RPC client, fetch options, a client for sending batch requests, a result cache,
+     * a recording of RPC responses, and metrics
+     * @param client JSON-RPC client configured to talk to a Bitcoin Core or Omni Core server.
+     * @param options options controlling how data is fetched
+     * @param batchClient client for sending batches (and streaming {@code listtransactions} results) from the same
+     *                    server, or {@code null} to send a request per call
+     * @param cache cache for per-transaction results of deeply-confirmed transactions, or {@code null} for no caching
+     * @param recording recording to add responses to (record mode) or answer calls from (replay mode, the server
+     *                  isn't contacted), or {@code null} for neither
+     * @param metrics records the time and errors of each single call by method. Response sizes aren't known for
+     *                single calls, so they are only recorded by {@code batchClient}, which should share the metrics.
+     */
+    public OmniExportClient(OmniClient client, FetchOptions options, JsonRpcBatchClient batchClient, RpcResultCache cache, RpcRecording recording, ExportMetrics metrics) {
         this.client = client;
+        this.options = options;
+        this.batchClient = batchClient;
+        this.cache = cache;
+        this.recording = recording;
+        this.metrics = metrics;
+        this.walletEntryReader = new WalletEntryReader(client.getNetParams(), minConfirmations);
+        ExecutorService executor = options.virtualThreads()
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : newRpcExecutor();
+        this.scheduler = new RpcScheduler(executor, Math.min(initialInFlight, options.maxInFlight()), options.maxInFlight());
+    }
+
+    /**
+     * @return the metrics RPC calls are recorded in
+     */
+    public ExportMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the scheduler that all RPC calls go through (e.g. to read its in-flight metrics)
+     */
+    public RpcScheduler scheduler() {
+        return scheduler;
+    }
+
+    // Threads are only created for calls the scheduler lets run, so the pool is bounded by maxInFlight
+    private static ExecutorService newRpcExecutor() {
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "rpc-call");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     /**
@@ -58,40 +187,287 @@ public class OmniExportClient {
      * @return list of transaction data objects
      */
     public List<TransactionData> fetch() {
+        List<TransactionData> transactions = new ArrayList<>();
+        fetch(transactions::add);
+        return Collections.unmodifiableList(transactions);
+    }
+
+    /**
+     * Fetch all transactions, passing each one to a consumer in {@link TransactionData#CHRONOLOGICAL} order as soon
+     * as no transaction that is still being fetched can precede it. Returns when all transactions have been passed.
+     * <p>
+     * With a {@link FetchOptions#memoryBudget() memory budget}, wallet entries are sorted in temporary files while
+     * they are fetched instead of being held in memory, and the transactions are passed to the consumer after all
+     * wallet entries, Omni transactions and DEx matches have been fetched. The Omni transactions and DEx matches
+     * (usually far fewer than the wallet entries) are still held in memory.
+     * @param consumer consumer of the transactions, called by one thread at a time
+     */
+    public void fetch(Consumer<TransactionData> consumer) {
+        if (options.isSpilled()) {
+            fetchSpilled(consumer);
+        } else {
+            fetch(this::fetchWalletTransactions, BlockRange.ALL, Set.of(), consumer);
+        }
+    }
+
+    /**
+     * Fetch only the transactions confirmed since a checkpoint. Only transactions with at least
+     * {@code safeDepth} confirmations are returned, so a chain reorganization shallower than {@code safeDepth}
+     * blocks can't change a transaction that has already been exported. Transactions in shallower blocks
+     * will be returned by a later call that uses the returned checkpoint.
+     * @param since the checkpoint of the previous export or {@code null} to fetch the entire history
+     * @param safeDepth minimum number of confirmations for a transaction to be exported
+     * @return the new transactions sorted by time and a checkpoint to use for the next call
+     */
+    public IncrementalFetch fetchSince(ExportCheckpoint since, int safeDepth) {
+        if (safeDepth < 1) {
+            throw new IllegalArgumentException("safeDepth must be at least 1");
+        }
+        JsonNode sinceBlock = listSinceBlock(since, safeDepth).join();
+        Sha256Hash lastBlockHash = Sha256Hash.wrap(sinceBlock.get("lastblock").asText());
+        int lastHeight = getBlockHeight(lastBlockHash).join();
+        sinceBlock.path("removed").forEach(removed ->
+                log.warn("Transaction {} was removed by a reorg deeper than {} blocks and may already have been exported", removed.path("txid").asText(), safeDepth));
+        int startHeight = (since != null) ? since.height() + 1 : 0;
+        if (lastHeight < startHeight) {
+            // The safe block is at or below the checkpoint, nothing new to export
+            return new IncrementalFetch(List.of(), since);
+        }
+        // The heights follow from the confirmations in the same response: the tip is safeDepth - 1 blocks above
+        // lastblock. A transaction at or below the checkpoint was moved there by a reorg deeper than safeDepth,
+        // and its old block may already have been exported, so it is skipped rather than exported twice.
+        int tipHeight = lastHeight + safeDepth - 1;
+        JavaType listType = client.getMapper().getTypeFactory().constructCollectionType(List.class, BitcoinTransactionInfo.class);
+        List<BitcoinTransactionInfo> walletTxs = client.getMapper().<List<BitcoinTransactionInfo>>convertValue(sinceBlock.get("transactions"), listType)
+                .stream()
+                .filter(t -> t.getConfirmations() >= safeDepth)
+                .filter(t -> {
+                    int height = tipHeight - t.getConfirmations() + 1;
+                    if (height < startHeight) {
+                        log.warn("Skipping transaction {} in block {}, at or before the checkpoint (a reorg deeper than {} blocks), it may already have been exported", t.getTxId(), height, safeDepth);
+                        return false;
+                    }
+                    return true;
+                })
+                .toList();
+        // Orders placed before the checkpoint can be matched in the new blocks
+        Set<Address> knownTradingAddresses = (since == null)
+                ? Set.of()
+                : (since.tradingAddresses() != null)
+                    ? since.tradingAddresses().stream().map(a -> Address.fromString(client.getNetParams(), a)).collect(Collectors.toSet())
+                    : null;
+        List<TransactionData> transactions = new ArrayList<>();
+        Set<Address> tradingAddresses = fetch(container -> {
+                    walletTxs.forEach(container::add);
+                    return CompletableFuture.completedFuture(container);
+                },
+                new BlockRange(startHeight, lastHeight),
+                knownTradingAddresses,
+                transactions::add);
+        ExportCheckpoint next = new ExportCheckpoint(lastBlockHash, lastHeight,
+                tradingAddresses.stream().map(Address::toString).collect(Collectors.toCollection(TreeSet::new)));
+        return new IncrementalFetch(Collections.unmodifiableList(transactions), next);
+    }
+
+    /**
+     * Get the hash of the best block, e.g. to poll for new blocks before calling {@link #fetchSince(ExportCheckpoint, int)}
+     * @return hash of the tip of the best chain
+     */
+    public Sha256Hash getBestBlockHash() {
+        return call("getbestblockhash", List.of())
+                .thenApply(hash -> Sha256Hash.wrap(hash.asText()))
+                .join();
+    }
+
+    /**
+     * Result of an incremental fetch
+     * @param transactions transactions confirmed since the previous checkpoint, sorted by time
+     * @param checkpoint checkpoint to use for the next incremental fetch
+     */
+    public record IncrementalFetch(List<TransactionData> transactions, ExportCheckpoint checkpoint) {}
+
+    /**
+     * Range of block heights (inclusive) to fetch Omni data for
+     * @param startBlock first block
+     * @param endBlock last block
+     */
+    record BlockRange(int startBlock, int endBlock) {
+        // These are the default values of omni_listtransactions
+        static final BlockRange ALL = new BlockRange(0, 999_999_999);
+
+        boolean contains(int height) {
+            return height >= startBlock && height <= endBlock;
+        }
+    }
+
+    // Run the fetch pipeline using walletFetcher to add wallet transactions to the container, passing the
+    // transactions to consumer in order as they are completed. DEx matches in range are fetched for the trading
+    // addresses of the Omni transactions in range and knownTradingAddresses (if null, they are found from the
+    // Omni transactions in all blocks). Returns all the trading addresses.
+    private Set<Address> fetch(Function<BitcoinTransactionsContainer, CompletableFuture<BitcoinTransactionsContainer>> walletFetcher, BlockRange range, Set<Address> knownTradingAddresses, Consumer<TransactionData> consumer) {
         // Query if we have an Omni server and don't attempt to retrieve Omni data with Omni-only JSON-RPC methods
-        boolean isOmni = client.isOmniServer().join();
+        boolean isOmni = isOmniServer();
 
         // Create a mutable container that holds (potentially) mutable data items
         BitcoinTransactionsContainer container = new BitcoinTransactionsContainer();
 
+        // Transactions are released downstream when no source can still add (or complete) an earlier one.
+        // listtransactions returns the newest page first, so nothing is released until all wallet transactions
+        // (and Omni transactions, which are also returned newest first) have arrived. Then each one is held until its
+        // addresses have been fetched. DEx matches are held back until all trade histories
+        // have arrived, then released in block order as block times arrive.
+        OrderedEmitter emitter = new OrderedEmitter(consumer);
+        OrderedEmitter.Source walletSource = emitter.newSource("wallet");
+        OrderedEmitter.Source omniSource = emitter.newSource("omni");
+        OrderedEmitter.Source matchSource = emitter.newSource("matches");
+
         // Fetch all wallet transactions and add to container
         // Some subsequent fetches assume there is a BitcoinTransactionData to add to, so they must wait for this to complete
-        CompletableFuture<BitcoinTransactionsContainer> walletFetchComplete = fetchWalletTransactions(container);
+        CompletableFuture<BitcoinTransactionsContainer> walletFetchComplete = walletFetcher.apply(container);
 
         // Get list of addresses from wallet Transaction detail and add to each TransactionData
-        CompletableFuture<BitcoinTransactionsContainer> addressQueriesComplete = walletFetchComplete.thenCompose(this::fetchWalletAddresses);
+        CompletableFuture<BitcoinTransactionsContainer> addressQueriesComplete = walletFetchComplete.thenCompose(c -> {
+            CompletableFuture<BitcoinTransactionsContainer> addressQueries = fetchWalletAddresses(c, walletSource);
+            walletSource.close();
+            return addressQueries;
+        });
 
         CompletableFuture<Void> allQueriesComplete;
+        Set<Address> tradingAddresses = ConcurrentHashMap.newKeySet();
         if (isOmni) {
-            // Get a list of Omni Transactions, add to each one to a TransactionData, and return the complete list
-            CompletableFuture<List<OmniTransactionInfo>> omniTxsFuture = walletFetchComplete.thenCompose(this::fetchWalletOmniTransactions);
+            // Get a list of Omni Transactions, (paged or not) while wallet transactions are still being fetched.
+            // Each one is added to its TransactionData as soon as both have arrived.
+            CompletableFuture<List<OmniTransactionInfo>> omniTxsFuture = fetchWalletOmniTransactions(container, range)
+                    .whenComplete((l, t) -> omniSource.close());
 
             // Get a list of matched Omni trades
-            CompletableFuture<List<OmniMatchData>> omniMatchesFuture = omniTxsFuture.thenCompose(this::fetchWalletOmniMatches);
+            CompletableFuture<List<OmniMatch>> omniMatchesFuture = omniTxsFuture.thenCompose(l -> fetchWalletOmniMatches(l, range, knownTradingAddresses, tradingAddresses));
 
-            // Merge the list of matched trades into the container
-            CompletableFuture<Void> matchesMerged = omniMatchesFuture.thenAccept(mList -> mList.forEach(container::add));
+            // Merge the list of matched trades into the container, after the wallet transactions they replace
+            CompletableFuture<Void> matchesMerged = omniMatchesFuture
+                    .thenCombine(walletFetchComplete, (matches, c) -> matches)
+                    .thenCompose(matches -> mergeWalletOmniMatches(container, matches, matchSource));
 
             allQueriesComplete = CompletableFuture.allOf(addressQueriesComplete, matchesMerged);
         } else {
+            if (knownTradingAddresses != null) {
+                tradingAddresses.addAll(knownTradingAddresses);
+            }
+            omniSource.close();
+            matchSource.close();
             allQueriesComplete = addressQueriesComplete.thenAccept(ignored -> {});
         }
 
-        // Wait for all "leaf" (leaves in the async chain) futures to complete
+        // Wait for all "leaf" (leaves in the async chain) futures to complete, and for the last transactions they
+        // released to be passed downstream (possibly by another thread)
         allQueriesComplete.join();
+        emitter.awaitDelivered();
+        if (!container.pendingOmniTransactions().isEmpty()) {
+            log.warn("Ignoring {} Omni transactions without a matching wallet transaction", container.pendingOmniTransactions().size());
+        }
+        log.info("Fetch complete: {}", scheduler);
+        if (cache != null) {
+            log.info("RPC result cache: {}", cache);
+        }
+        log.debug("Block time cache: {}", blockTimes);
+        log.debug("Emitter: {}", emitter);
+        return tradingAddresses;
+    }
+
+    // Fetch all transactions holding at most options.memoryBudget() wallet entries in memory. The wallet entries are
+    // sorted in temporary files while the Omni transactions and DEx matches are fetched, then read back a chunk at a
+    // time. The addresses of each chunk are looked up while the previous chunk is passed to the consumer, so up to
+    // two chunks of transactions are in memory at once.
+    private void fetchSpilled(Consumer<TransactionData> consumer) {
+        boolean isOmni = isOmniServer();
+
+        // Only holds Omni transactions (as pending entries), they are taken when their wallet transactions are read back
+        BitcoinTransactionsContainer container = new BitcoinTransactionsContainer();
+        try (WalletEntrySort walletEntries = new WalletEntrySort(Path.of(System.getProperty("java.io.tmpdir")), options.memoryBudget(), client.getNetParams())) {
+            CompletableFuture<Void> walletFetchComplete = fetchWalletTransactions(walletEntries::add);
+            CompletableFuture<List<OmniMatchData>> matchesFuture = isOmni
+                    ? fetchWalletOmniTransactions(container, BlockRange.ALL)
+                        .thenCompose(l -> fetchWalletOmniMatches(l, BlockRange.ALL, Set.of(), ConcurrentHashMap.newKeySet()))
+                        .thenCompose(this::timeWalletOmniMatches)
+                    : CompletableFuture.completedFuture(List.of());
+            walletFetchComplete.join();
+            List<OmniMatchData> matches = matchesFuture.join();
+            log.info("Sorted wallet entries: {}", walletEntries);
 
-        // Convert the container to a sorted list of TransactionData
-        return container.stream().sorted(Comparator.comparing(TransactionData::time)).toList();
+            SortedWalletTransactions walletTxs = new SortedWalletTransactions(walletEntries.sorted());
+            // A match replaces the wallet transaction with the same id
+            Set<Sha256Hash> replaced = matches.stream().map(TransactionData::txId).collect(Collectors.toSet());
+            int matchIndex = 0;
+            List<OmniTransactionData> chunk = List.of();
+            List<CompletableFuture<WalletTransactionInfo>> chunkLookups = List.of();
+            do {
+                List<OmniTransactionData> nextChunk = walletTxs.nextChunk(options.memoryBudget(), container, replaced);
+                List<CompletableFuture<WalletTransactionInfo>> nextChunkLookups = getTransactions(nextChunk.stream().map(TransactionData::txId).toList());
+                for (int i = 0; i < chunk.size(); i++) {
+                    OmniTransactionData txData = chunk.get(i);
+                    txData.add(getAddresses(chunkLookups.get(i).join()));
+                    while (matchIndex < matches.size() && TransactionData.CHRONOLOGICAL.compare(matches.get(matchIndex), txData) < 0) {
+                        consumer.accept(matches.get(matchIndex++));
+                    }
+                    consumer.accept(txData);
+                }
+                chunk = nextChunk;
+                chunkLookups = nextChunkLookups;
+            } while (!chunk.isEmpty() || walletTxs.hasNext());
+            matches.subList(matchIndex, matches.size()).forEach(consumer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (!container.pendingOmniTransactions().isEmpty()) {
+            log.warn("Ignoring {} Omni transactions without a matching wallet transaction", container.pendingOmniTransactions().size());
+        }
+        log.info("Fetch complete: {}", scheduler);
+        if (cache != null) {
+            log.info("RPC result cache: {}", cache);
+        }
+        log.debug("Block time cache: {}", blockTimes);
+    }
+
+    // Groups wallet entries sorted by WalletEntrySort into transactions, a chunk at a time
+    private static final class SortedWalletTransactions {
+        private final Iterator<WalletEntrySort.Entry> entries;
+        private WalletEntrySort.Entry next;
+
+        SortedWalletTransactions(Iterator<WalletEntrySort.Entry> entries) {
+            this.entries = entries;
+            this.next = entries.hasNext() ? entries.next() : null;
+        }
+
+        boolean hasNext() {
+            return next != null;
+        }
+
+        // The transactions of the next maxEntries entries (and of any more entries of the last transaction), with
+        // their Omni entries taken from container. Transactions in replaced are read but not returned.
+        List<OmniTransactionData> nextChunk(int maxEntries, BitcoinTransactionsContainer container, Set<Sha256Hash> replaced) {
+            // The chunk's entries are no longer referenced once its transactions have been passed on
+            TransactionColumns columns = new TransactionColumns();
+            List<OmniTransactionData> chunk = new ArrayList<>();
+            OmniTransactionData current = null;
+            int count = 0;
+            while (next != null && (count < maxEntries || (current != null && current.txId().equals(next.txId())))) {
+                if (current != null && current.txId().equals(next.txId())) {
+                    current.add(next.row());
+                } else {
+                    current = new OmniTransactionData(columns, next.txId(), next.row());
+                    TransactionColumns.OmniEntry omniEntry = container.takePendingOmni(next.txId());
+                    if (omniEntry != null) {
+                        current.add(omniEntry);
+                    }
+                    if (!replaced.contains(next.txId())) {
+                        chunk.add(current);
+                    }
+                }
+                count++;
+                next = entries.hasNext() ? entries.next() : null;
+            }
+            return chunk;
+        }
     }
 
     /**
@@ -101,9 +477,46 @@ public class OmniExportClient {
      */
     public CompletableFuture<BitcoinTransactionsContainer> fetchWalletTransactions(BitcoinTransactionsContainer container) {
         // We have to do this one synchronously, because subsequent queries assume there is a BitcoinTransactionData to add to
-        return listAllTransactions()
-                .thenAccept(list -> list.forEach(container::add))
-                .thenApply(v -> container);
+        return fetchWalletTransactions(container::add).thenApply(v -> container);
+    }
+
+    // Fetch all wallet entries, passing each confirmed entry to sink (which may be called by several threads)
+    private CompletableFuture<Void> fetchWalletTransactions(BiConsumer<Sha256Hash, TransactionColumns.WalletRow> sink) {
+        if (isStreaming()) {
+            return options.isPaged()
+                    ? streamWalletTransactionPages(sink, 0)
+                    : streamTransactions(sink, Integer.MAX_VALUE, 0).thenAccept(count -> {});
+        } else {
+            return options.isPaged()
+                    ? fetchWalletTransactionPages(sink, 0)
+                    : listAllTransactions().thenAccept(list -> list.forEach(t -> sink.accept(t.getTxId(), TransactionColumns.WalletRow.of(t))));
+        }
+    }
+
+    // Fetch the page of wallet transactions starting at skip and all pages after it, passing each page to the
+    // sink as it arrives. The request for the next page is sent before the current page is processed.
+    private CompletableFuture<Void> fetchWalletTransactionPages(BiConsumer<Sha256Hash, TransactionColumns.WalletRow> sink, int skip) {
+        return listTransactionsPage(skip).thenCompose(page -> {
+            CompletableFuture<Void> nextPages = (page.size() < options.pageSize())
+                    ? CompletableFuture.completedFuture(null)
+                    : fetchWalletTransactionPages(sink, skip + options.pageSize());
+            log.debug("Received listtransactions page at {}, {} entries", skip, page.size());
+            page.stream()
+                    .filter(t -> t.getConfirmations() >= minConfirmations)
+                    .forEach(t -> sink.accept(t.getTxId(), TransactionColumns.WalletRow.of(t)));
+            return nextPages;
+        });
+    }
+
+    // Streamed pages are passed to the sink while they are read, so the next page is requested after the
+    // current page has been read (and we know whether it was full)
+    private CompletableFuture<Void> streamWalletTransactionPages(BiConsumer<Sha256Hash, TransactionColumns.WalletRow> sink, int skip) {
+        return streamTransactions(sink, options.pageSize(), skip).thenCompose(count -> {
+            log.debug("Streamed listtransactions page at {}, {} entries", skip, count);
+            return (count < options.pageSize())
+                    ? CompletableFuture.completedFuture(null)
+                    : streamWalletTransactionPages(sink, skip + options.pageSize());
+        });
     }
 
     /**
@@ -112,10 +525,31 @@ public class OmniExportClient {
      * @return A future that for convenience returns with the container
      */
     public CompletableFuture<BitcoinTransactionsContainer> fetchWalletAddresses(BitcoinTransactionsContainer container) {
-        CompletableFuture[] addressQueries = container.values().stream()
+        return fetchWalletAddresses(container, null);
+    }
+
+    // If source isn't null, each transaction is held by it until its addresses have been added. The lookups are
+    // sent oldest transaction first, so the source's watermark advances as they complete.
+    private CompletableFuture<BitcoinTransactionsContainer> fetchWalletAddresses(BitcoinTransactionsContainer container, OrderedEmitter.Source source) {
+        List<OmniTransactionData> txDatas = container.values().stream()
                 .filter(td -> td instanceof OmniTransactionData)
                 .map(td -> (OmniTransactionData) td)
-                .map(this::fetchAddressesForTxData)
+                .sorted(TransactionData.CHRONOLOGICAL)
+                .toList();
+        if (source != null) {
+            txDatas.forEach(source::hold);
+        }
+        List<CompletableFuture<WalletTransactionInfo>> walletTxs = getTransactions(txDatas.stream().map(TransactionData::txId).toList());
+        // TODO: Add full bitcoinj Transaction here instead of addresses?? (addresses can be extracted later)
+        CompletableFuture<?>[] addressQueries = IntStream.range(0, txDatas.size())
+                .mapToObj(i -> walletTxs.get(i).thenAccept(wt -> {
+                    OmniTransactionData txData = txDatas.get(i);
+                    txData.add(this.getAddresses(wt));
+                    if (source != null) {
+                        // A DEx match with the same id replaces the transaction in the container, and is added by the match source
+                        source.addIfCurrent(txData, t -> container.get(t.txId()) == t);
+                    }
+                }))
                 .toArray(CompletableFuture[]::new);
         return CompletableFuture.allOf(addressQueries).thenApply(v -> container);
     }
@@ -126,20 +560,58 @@ public class OmniExportClient {
      * @return A future that for convenience returns with the container
      */
     public CompletableFuture<List<OmniTransactionInfo>> fetchWalletOmniTransactions(BitcoinTransactionsContainer container) {
-        return listAllOmniTransactions()
+        return fetchWalletOmniTransactions(container, BlockRange.ALL);
+    }
+
+    private CompletableFuture<List<OmniTransactionInfo>> fetchWalletOmniTransactions(BitcoinTransactionsContainer container, BlockRange range) {
+        if (options.isPaged()) {
+            return fetchWalletOmniTransactionPages(container, range, 0);
+        }
+        CompletableFuture<List<OmniTransactionInfo>> omniTxs = range.equals(BlockRange.ALL)
+                ? listAllOmniTransactions()
+                : listOmniTransactions(range);
+        return omniTxs
                 .thenApply(list -> {
                     list.forEach(container::add);
                     return list;
                 });
     }
 
-    private CompletableFuture<List<OmniMatchData>> fetchWalletOmniMatches(List<OmniTransactionInfo> omniTransactionInfos) {
-        return fetchWalletOmniMatchesWithoutTime(omniTransactionInfos)
-                .thenCompose(this::fetchWalletOmniMatchesWithTime);
+    // Fetch the page of Omni transactions starting at skip and all pages after it, adding each page to the
+    // container as it arrives. Returns all the (confirmed) transactions from this page and the pages after it.
+    private CompletableFuture<List<OmniTransactionInfo>> fetchWalletOmniTransactionPages(BitcoinTransactionsContainer container, BlockRange range, int skip) {
+        return listOmniTransactionsPage(range, skip).thenCompose(page -> {
+            CompletableFuture<List<OmniTransactionInfo>> nextPages = (page.size() < options.pageSize())
+                    ? CompletableFuture.completedFuture(List.of())
+                    : fetchWalletOmniTransactionPages(container, range, skip + options.pageSize());
+            log.debug("Received omni_listtransactions page at {}, {} entries", skip, page.size());
+            List<OmniTransactionInfo> confirmed = page.stream()
+                    .filter(t -> t.getConfirmations() >= minConfirmations)
+                    .toList();
+            confirmed.forEach(container::add);
+            return nextPages.thenApply(rest -> Stream.concat(confirmed.stream(), rest.stream()).toList());
+        });
     }
 
-    private CompletableFuture<List<OmniMatch>> fetchWalletOmniMatchesWithoutTime(List<OmniTransactionInfo> omniTransactionInfos) {
-        CompletableFuture<List<OmniTradeInfo>>[] tradeHistoryRequests = this.getOmniTradingAddresses(omniTransactionInfos).stream()
+    // The trade history of an address includes matches in all blocks, so only the matches in range are kept.
+    // The trading addresses that were queried are added to tradingAddresses.
+    private CompletableFuture<List<OmniMatch>> fetchWalletOmniMatches(List<OmniTransactionInfo> omniTransactionInfos, BlockRange range, Set<Address> knownTradingAddresses, Set<Address> tradingAddresses) {
+        // Without known addresses, find them from all Omni transactions (e.g. for a checkpoint from an earlier version)
+        CompletableFuture<Collection<Address>> known = (knownTradingAddresses != null)
+                ? CompletableFuture.completedFuture(knownTradingAddresses)
+                : listAllOmniTransactions().thenApply(this::getOmniTradingAddresses);
+        return known
+                .thenApply(k -> {
+                    tradingAddresses.addAll(k);
+                    tradingAddresses.addAll(getOmniTradingAddresses(omniTransactionInfos));
+                    return List.copyOf(tradingAddresses);
+                })
+                .thenCompose(this::fetchWalletOmniMatchesWithoutTime)
+                .thenApply(matches -> matches.stream().filter(m -> range.contains(m.match().getBlock())).toList());
+    }
+
+    private CompletableFuture<List<OmniMatch>> fetchWalletOmniMatchesWithoutTime(List<Address> tradingAddresses) {
+        CompletableFuture<List<OmniTradeInfo>>[] tradeHistoryRequests = tradingAddresses.stream()
                 .map(this::getTradeHistoryForAddress)
                 .toArray(CompletableFuture[]::new);
         return CompletableFuture.allOf(tradeHistoryRequests)
@@ -158,42 +630,141 @@ public class OmniExportClient {
      */
     record OmniMatch(OmniTradeInfo.Match match, OmniTradeInfo tradeInfo) {};
 
-    private CompletableFuture<List<OmniMatchData>> fetchWalletOmniMatchesWithTime(List<OmniMatch> matches) {
-        CompletableFuture<OmniMatchData>[] requests = matches.stream()
-                .map(m -> getMatchTime(m))
-                .toArray(CompletableFuture[]::new);
-        return CompletableFuture.allOf(requests)
-                .thenApply(v -> Stream.of(requests)
-                        .map(CompletableFuture::join)
-                        .toList()
-                );
+    // Add matches to the container (where a match replaces the wallet transaction with the same id) and the match
+    // source, in block order as block times arrive. A match's timestamp is the time of the block it is in. Many
+    // matches share a block (and often a transaction), so each block is looked up once rather than making a request
+    // per match, and the blocks are looked up together so the requests can be batched. Headers are cached like
+    // transactions, but heights are looked up every fetch, because a reorg can change the block at a height.
+    // Must be called after all wallet transactions have been added: matchSource holds the ones that will be
+    // replaced, and after each block advances to the block's median time past, which is earlier than the time of
+    // every later block.
+    private CompletableFuture<Void> mergeWalletOmniMatches(BitcoinTransactionsContainer container, List<OmniMatch> matches, OrderedEmitter.Source matchSource) {
+        // Only used by one stage at a time
+        Map<Sha256Hash, TransactionData> replaced = new HashMap<>();
+        matches.forEach(m -> {
+            TransactionData txData = container.get(m.match().getTxId());
+            if (txData instanceof OmniTransactionData && replaced.putIfAbsent(txData.txId(), txData) == null) {
+                matchSource.hold(txData);
+            }
+        });
+        return forEachMatchBlock(matches, (block, blockMatches) -> {
+                    blockMatches.forEach(m -> {
+                        OmniMatchData match = new OmniMatchData(block.time(), m.tradeInfo(), m.match());
+                        container.add(match);
+                        TransactionData walletTx = replaced.remove(match.txId());
+                        if (walletTx != null) {
+                            matchSource.add(walletTx, match);
+                        } else {
+                            matchSource.add(match);
+                        }
+                    });
+                    matchSource.advanceTo(block.medianTime());
+                })
+                .whenComplete((v, t) -> matchSource.close());
+    }
+
+    // Timestamp the matches with the times of their blocks. A later match with the same id replaces an earlier one,
+    // as in the container. Returns the matches sorted by TransactionData.CHRONOLOGICAL.
+    private CompletableFuture<List<OmniMatchData>> timeWalletOmniMatches(List<OmniMatch> matches) {
+        // Only used by one stage at a time
+        Map<Sha256Hash, OmniMatchData> timed = new HashMap<>();
+        return forEachMatchBlock(matches, (block, blockMatches) -> blockMatches.forEach(m -> {
+                    OmniMatchData match = new OmniMatchData(block.time(), m.tradeInfo(), m.match());
+                    timed.put(match.txId(), match);
+                }))
+                .thenApply(v -> timed.values().stream().sorted(TransactionData.CHRONOLOGICAL).toList());
     }
 
-    // Additional network request to get timestamp for an OmniMatch and return an OmniMatchData
-    // This requires that transaction indexing being enabled, which is a requirement for Omni Core
-    private CompletableFuture<OmniMatchData> getMatchTime(OmniMatch match) {
-        return client.supplyAsync(() -> client.getRawTransactionInfo(match.match().getTxId()))
-                .thenApply(raw -> new OmniMatchData(raw.getTime(), match.tradeInfo(), match.match()));
+    // Look up the times of the blocks the matches are in, passing each block's matches to blockConsumer in block
+    // order (one block at a time) as the times arrive
+    private CompletableFuture<Void> forEachMatchBlock(List<OmniMatch> matches, BiConsumer<BlockTimes, List<OmniMatch>> blockConsumer) {
+        TreeMap<Integer, List<OmniMatch>> matchesByHeight = matches.stream()
+                .collect(Collectors.groupingBy(m -> m.match().getBlock(), TreeMap::new, Collectors.toList()));
+        List<Integer> heights = List.copyOf(matchesByHeight.keySet());
+        List<CompletableFuture<Sha256Hash>> hashes = getBlockHashes(heights);
+        return CompletableFuture.allOf(hashes.toArray(CompletableFuture[]::new))
+                .thenCompose(v -> {
+                    List<CompletableFuture<BlockTimes>> times = blockTimes.getAll(hashes.stream().map(CompletableFuture::join).toList());
+                    CompletableFuture<Void> merged = CompletableFuture.completedFuture(null);
+                    for (int i = 0; i < heights.size(); i++) {
+                        List<OmniMatch> blockMatches = matchesByHeight.get(heights.get(i));
+                        merged = merged.thenCombine(times.get(i), (w, block) -> {
+                            blockConsumer.accept(block, blockMatches);
+                            return null;
+                        });
+                    }
+                    return merged;
+                });
     }
     
     private CompletableFuture<List<BitcoinTransactionInfo>> listAllTransactions() {
-        return client.supplyAsync(() -> client.listTransactions("*", Integer.MAX_VALUE))
+        return this.<List<BitcoinTransactionInfo>>call("listtransactions", listType(BitcoinTransactionInfo.class), "*", Integer.MAX_VALUE)
                 .thenApply(l -> l.stream().filter(t -> t.getConfirmations() >= minConfirmations).toList());
     }
 
+    // Unfiltered, so the caller can tell whether this was the last page
+    private CompletableFuture<List<BitcoinTransactionInfo>> listTransactionsPage(int skip) {
+        return call("listtransactions", listType(BitcoinTransactionInfo.class), "*", options.pageSize(), skip);
+    }
+
+    // Pass the confirmed entries of a listtransactions response to the sink as they are decoded, returning
+    // the number of entries (including unconfirmed entries) so the caller can tell whether this was the last page.
+    // Streaming retries are safe because wallet entries that were already added are ignored.
+    private CompletableFuture<Integer> streamTransactions(BiConsumer<Sha256Hash, TransactionColumns.WalletRow> sink, int count, int skip) {
+        return scheduler.submit("listtransactions", () -> batchClient.stream("listtransactions", List.of("*", count, skip),
+                parser -> walletEntryReader.read(parser, sink)));
+    }
+
     private CompletableFuture<List<OmniTransactionInfo>> listAllOmniTransactions() {
-        return client.supplyAsync(() -> client.omniListTransactions("", Integer.MAX_VALUE))
+        return this.<List<OmniTransactionInfo>>call("omni_listtransactions", listType(OmniTransactionInfo.class), "", Integer.MAX_VALUE)
                 .thenApply(l -> l.stream().filter(t -> t.getConfirmations() >= minConfirmations).toList());
     }
 
-    // Fetch addresses for a given BitcoinTransactionData and add them to the record
-    private CompletableFuture<Void> fetchAddressesForTxData(BitcoinTransactionData txData) {
-        return this.getTransaction(txData.txId()).thenAccept(wt ->
-                // TODO: Add full bitcoinj Transaction here instead of addresses?? (addresses can be extracted later)
-                txData.add(this.getAddresses(wt))
-        );
+    private CompletableFuture<List<OmniTransactionInfo>> listOmniTransactions(BlockRange range) {
+        return this.<List<OmniTransactionInfo>>call("omni_listtransactions", listType(OmniTransactionInfo.class), "*", Integer.MAX_VALUE, 0, range.startBlock(), range.endBlock())
+                .thenApply(l -> l.stream().filter(t -> t.getConfirmations() >= minConfirmations).toList());
+    }
+
+    // Unfiltered, so the caller can tell whether this was the last page
+    private CompletableFuture<List<OmniTransactionInfo>> listOmniTransactionsPage(BlockRange range, int skip) {
+        return call("omni_listtransactions", listType(OmniTransactionInfo.class), "*", options.pageSize(), skip, range.startBlock(), range.endBlock());
+    }
+
+    // Returns the "transactions" that are at least targetConfirmations deep, with "lastblock" set to the deepest such block.
+    // include_watchonly is left to the server default, the same as for listtransactions, so an incremental export
+    // includes the same entries as a full export.
+    private CompletableFuture<JsonNode> listSinceBlock(ExportCheckpoint since, int targetConfirmations) {
+        String sinceHash = (since != null) ? since.blockHash().toString() : "";
+        return call("listsinceblock", List.of(sinceHash, targetConfirmations));
+    }
+
+    private CompletableFuture<Integer> getBlockHeight(Sha256Hash blockHash) {
+        return call("getblockheader", List.of(blockHash.toString()))
+                .thenApply(header -> header.get("height").asInt());
+    }
+
+    // One future per height, in the same order
+    private List<CompletableFuture<Sha256Hash>> getBlockHashes(List<Integer> heights) {
+        return callAll("getblockhash", heights.stream().<List<Object>>map(List::of).toList()).stream()
+                .map(f -> f.thenApply(hash -> Sha256Hash.wrap(hash.asText())))
+                .toList();
     }
 
+    // One future per block hash, in the same order
+    private List<CompletableFuture<BlockTimes>> getBlockTimes(List<Sha256Hash> blockHashes) {
+        return lookupTransactions("getblockheader", blockHashes, hash -> List.of(hash.toString()), JsonNode.class).stream()
+                .map(f -> f.thenApply(header -> new BlockTimes(
+                        Instant.ofEpochSecond(header.get("time").asLong()),
+                        Instant.ofEpochSecond(header.get("mediantime").asLong()))))
+                .toList();
+    }
+
+    /**
+     * @param time block time
+     * @param medianTime median time past of the block, every later block has a later time
+     */
+    private record BlockTimes(Instant time, Instant medianTime) {}
+
     // Get a list of all addresses this wallet used to trade on the Omni MetaDEX (Synchronous because no I/O)
     private List<Address> getOmniTradingAddresses(Collection<OmniTransactionInfo> omniTxs) {
         return omniTxs.stream()
@@ -205,15 +776,166 @@ public class OmniExportClient {
 
     // Get a list of valid, non-test-ecosystem trades for address
     private CompletableFuture<List<OmniTradeInfo>> getTradeHistoryForAddress(Address address) {
-        return client.supplyAsync(() -> client.omniGetTradeHistoryForAddress(address, Integer.MAX_VALUE, null))
+        return this.<List<OmniTradeInfo>>call("omni_gettradehistoryforaddress", listType(OmniTradeInfo.class), address.toString(), Integer.MAX_VALUE)
                 .exceptionally(t -> Collections.emptyList())
                 .thenApply(trades -> trades.stream()
                         .filter(oti -> oti.isValid() && oti.getPropertyIdForSale().ecosystem() != Ecosystem.TOMNI)
                         .toList());
     }
 
-    private CompletableFuture<WalletTransactionInfo> getTransaction(Sha256Hash txId) {
-        return client.supplyAsync(() -> client.getTransaction(txId, false, false));
+    // One future per txId, in the same order
+    private List<CompletableFuture<WalletTransactionInfo>> getTransactions(List<Sha256Hash> txIds) {
+        return lookupTransactions("gettransaction", txIds, txId -> List.of(txId.toString(), false, false), WalletTransactionInfo.class);
+    }
+
+    // Call a per-transaction (or per-block) method once per txId (or block hash), returning one future per txId in the same order.
+    // Cached results are used if available, the remaining calls are sent in batches if batching is enabled,
+    // and results for deeply-confirmed transactions are added to the cache. Cached results are recorded like
+    // fetched ones, so a recording made with a cache can be replayed without it.
+    private <T> List<CompletableFuture<T>> lookupTransactions(String method, List<Sha256Hash> txIds, Function<Sha256Hash, List<Object>> params, Class<T> resultType) {
+        List<CompletableFuture<JsonNode>> results = new ArrayList<>(Collections.nCopies(txIds.size(), null));
+        List<Integer> misses = new ArrayList<>();
+        for (int i = 0; i < txIds.size(); i++) {
+            Optional<JsonNode> cached = (cache != null) ? cache.get(method, txIds.get(i)) : Optional.empty();
+            if (cached.isPresent()) {
+                results.set(i, recordCached(method, params.apply(txIds.get(i)), cached.get()));
+            } else {
+                misses.add(i);
+            }
+        }
+        List<List<Object>> missParams = misses.stream().map(i -> params.apply(txIds.get(i))).toList();
+        List<CompletableFuture<JsonNode>> fetched = callAll(method, missParams);
+        for (int j = 0; j < misses.size(); j++) {
+            Sha256Hash txId = txIds.get(misses.get(j));
+            results.set(misses.get(j), fetched.get(j).thenApply(result -> {
+                if (cache != null) {
+                    cache.putIfConfirmed(method, txId, result);
+                }
+                return result;
+            }));
+        }
+        return results.stream()
+                .map(f -> f.thenApply(result -> client.getMapper().convertValue(result, resultType)))
+                .toList();
+    }
+
+    // Call a method once per parameter list, in batches if batching is enabled, returning one future per call in the same order
+    private List<CompletableFuture<JsonNode>> callAll(String method, List<List<Object>> paramsList) {
+        return isBatching()
+                ? batchCall(method, paramsList)
+                : paramsList.stream().map(p -> call(method, p)).toList();
+    }
+
+    private CompletableFuture<JsonNode> recordCached(String method, List<Object> params, JsonNode result) {
+        if (recording != null && !recording.isReplay()) {
+            try {
+                recording.putResult(method, params, result);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        return CompletableFuture.completedFuture(result);
+    }
+
+    private CompletableFuture<JsonNode> call(String method, List<Object> params) {
+        return scheduler.submit(method, () -> send(method, params));
+    }
+
+    private <T> CompletableFuture<T> call(String method, JavaType resultType, Object... params) {
+        return call(method, Arrays.asList(params))
+                .thenApply(result -> client.getMapper().convertValue(result, resultType));
+    }
+
+    private JavaType listType(Class<?> elementType) {
+        return client.getMapper().getTypeFactory().constructCollectionType(List.class, elementType);
+    }
+
+    // Omni Core is the only server that implements omni_getinfo (this is a call, so it is recorded and replayed)
+    private boolean isOmniServer() {
+        try {
+            send("omni_getinfo", List.of());
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Every call (except batches, see batchCall) goes through here so it can be recorded or replayed
+    private JsonNode send(String method, List<Object> params) throws IOException {
+        if (recording != null && recording.isReplay()) {
+            return recording.get(method, params);
+        }
+        JsonNode result;
+        long start = System.nanoTime();
+        ExportEvents.RpcCall event = new ExportEvents.RpcCall();
+        event.begin();
+        try {
+            result = client.send(method, JsonNode.class, params.toArray());
+        } catch (IOException e) {
+            metrics.rpc(method).record(System.nanoTime() - start, 1, 0, 1);
+            event.report(method, params, 0, true);
+            if (recording != null) {
+                recording.putError(method, params, e);
+            }
+            throw withHttpStatus(e);
+        }
+        metrics.rpc(method).record(System.nanoTime() - start, 1, 0, 0);
+        event.report(method, params, 0, false);
+        if (recording != null) {
+            recording.putResult(method, params, result);
+        }
+        return result;
+    }
+
+    // The JSON-RPC client reports HTTP errors with its own exception, translate them so the scheduler can tell
+    // when the server is overloaded
+    private static IOException withHttpStatus(IOException e) {
+        return (e instanceof JsonRpcStatusException status)
+                ? new HttpStatusException(status.httpCode, e.getMessage(), e)
+                : e;
+    }
+
+    // Streamed results bypass send(), so they can't be recorded or replayed
+    private boolean isStreaming() {
+        return batchClient != null && options.streamed() && recording == null;
+    }
+
+    // Batches aren't replayed (each call in a recorded batch is recorded individually and replayed as a single call)
+    private boolean isBatching() {
+        return batchClient != null && options.isBatched() && (recording == null || !recording.isReplay());
+    }
+
+    // Call method once per entry in paramsList, sending up to batchSize calls per batch request.
+    // Returns one future per call, in the same order as paramsList.
+    private List<CompletableFuture<JsonNode>> batchCall(String method, List<List<Object>> paramsList) {
+        List<CompletableFuture<JsonNode>> results = new ArrayList<>(paramsList.size());
+        for (int start = 0; start < paramsList.size(); start += options.batchSize()) {
+            List<List<Object>> batchParams = paramsList.subList(start, Math.min(start + options.batchSize(), paramsList.size()));
+            CompletableFuture<List<JsonRpcBatchClient.Response>> batch = scheduler.submit("batch " + method, () -> batchClient.send(method, batchParams));
+            for (int i = 0; i < batchParams.size(); i++) {
+                int index = i;
+                results.add(batch.thenApply(responses -> batchResult(method, batchParams.get(index), responses.get(index))));
+            }
+        }
+        return results;
+    }
+
+    private JsonNode batchResult(String method, List<Object> params, JsonRpcBatchClient.Response response) {
+        try {
+            if (response.isError()) {
+                IOException error = new IOException(method + " returned error: " + response.error());
+                if (recording != null) {
+                    recording.putError(method, params, error);
+                }
+                throw error;
+            }
+            if (recording != null) {
+                recording.putResult(method, params, response.result());
+            }
+            return response.result();
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
     }
 
     // Get all addresses from the "Detail" list
@@ -20,20 +20,39 @@ import foundation.omni.rpc.OmniClient;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
 import java.nio.file.Files;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 // TODO: Extract Bitcoin-only transaction exporting to another (super?) class?
 /**
  * Omni Layer aware ledger exporter that uses {@link OmniClient}.
+ * <p>
+ * The {@code initialize}, {@code collectData}, {@code convertToLedger} and {@code output} stages (and conversions by
+ * kind of transaction) are timed in the metrics of the export client, see {@link OmniExportClient#metrics()}.
+ * In {@link #exportStreaming} the stages run concurrently, and each is timed by its wall time.
  */
-public class OmniLedgerExporter implements AccountingExporter {
+public class OmniLedgerExporter implements StreamingAccountingExporter {
     private final OmniClient client;
     private final File accountMapFile;
-    private final PrintStream out;
+    private final LedgerWriter writer;
     private final OmniExportClient exportClient;
+    private final int importParallelism;
+    private final ExportMetrics metrics;
+    private final ExportTimer initializeTimer;
+    private final ExportTimer collectTimer;
+    private final ExportTimer convertTimer;
+    private final ExportTimer outputTimer;
     private TransactionImporter importer;
 
     /**
@@ -43,35 +62,226 @@ public class OmniLedgerExporter implements AccountingExporter {
      * @param out A print stream to output transactions to
      */
     public OmniLedgerExporter(OmniClient client, File accountMapFile, PrintStream out) {
+        this(client, accountMapFile, out, FetchOptions.DEFAULT);
+    }
+
+    /**
+     *
+     * @param client JSON-RPC client instance
+     * @param accountMapFile CSV file to map to account names
+     * @param out A print stream to output transactions to
+     * @param fetchOptions options controlling how data is fetched from the server
+     */
+    public OmniLedgerExporter(OmniClient client, File accountMapFile, PrintStream out, FetchOptions fetchOptions) {
+        this(client, accountMapFile, out, new OmniExportClient(client, fetchOptions));
+    }
+
+    /**
+     *
+     * @param client JSON-RPC client instance
+     * @param accountMapFile CSV file to map to account names
+     * @param out A print stream to output transactions to
+     * @param exportClient a configured export client that uses {@code client}
+     */
+    public OmniLedgerExporter(OmniClient client, File accountMapFile, PrintStream out, OmniExportClient exportClient) {
+        this(client, accountMapFile, out, exportClient, 1);
+    }
+
+    /**
+     *
+     * @param client JSON-RPC client instance
+     * @param accountMapFile CSV file to map to account names
+     * @param out A print stream to output transactions to
+     * @param exportClient a configured export client that uses {@code client}
+     * @param importParallelism number of threads to convert transactions with in {@link #convertToLedger(List)}
+     */
+    public OmniLedgerExporter(OmniClient client, File accountMapFile, PrintStream out, OmniExportClient exportClient, int importParallelism) {
+        this(client, accountMapFile, new LedgerWriter(Channels.newChannel(out)), exportClient, importParallelism);
+    }
+
+    /**
+     *
+     * @param client JSON-RPC client instance
+     * @param accountMapFile CSV file to map to account names
+     * @param writer writer to output transactions to, e.g. to a {@link java.nio.channels.FileChannel}
+     * @param exportClient a configured export client that uses {@code client}
+     * @param importParallelism number of threads to convert transactions with in {@link #convertToLedger(List)}
+     *                          and number of transactions to convert concurrently in {@link #exportStreaming}
+     */
+    public OmniLedgerExporter(OmniClient client, File accountMapFile, LedgerWriter writer, OmniExportClient exportClient, int importParallelism) {
         this.client = client;
         this.accountMapFile = accountMapFile;
-        this.out = out;
-        exportClient = new OmniExportClient(client);
+        this.writer = writer;
+        this.exportClient = exportClient;
+        this.importParallelism = importParallelism;
+        this.metrics = exportClient.metrics();
+        this.initializeTimer = metrics.stage("initialize");
+        this.collectTimer = metrics.stage("collectData");
+        this.convertTimer = metrics.stage("convertToLedger");
+        this.outputTimer = metrics.stage("output");
     }
 
     @Override
     public void initialize() {
+        long start = System.nanoTime();
         List<AddressAccount> addressAccounts = (accountMapFile != null)
                 ? readAddressAccountCSV(accountMapFile)
                 : Collections.emptyList();
-        importer = new TransactionImporter(client.getNetParams(), addressAccounts);
+        importer = new TransactionImporter(client.getNetParams(), addressAccounts, metrics);
+        initializeTimer.recordSince(start, addressAccounts.size());
     }
 
     @Override
     public List<TransactionData> collectData() throws IOException {
-        return exportClient.fetch();
+        long start = System.nanoTime();
+        List<TransactionData> transactions = exportClient.fetch();
+        collectTimer.recordSince(start, transactions.size());
+        return transactions;
+    }
+
+    /**
+     * Collect transaction data, passing each transaction to a consumer (in chronological order) as soon as it is
+     * complete. Can be used in place of {@link #collectData()} to avoid holding a list of all transactions.
+     * @param consumer consumer of the transactions
+     */
+    @Override
+    public void collectData(Consumer<TransactionData> consumer) {
+        long start = System.nanoTime();
+        LongAdder count = new LongAdder();
+        try {
+            exportClient.fetch(transaction -> {
+                count.increment();
+                consumer.accept(transaction);
+            });
+        } finally {
+            collectTimer.recordSince(start, count.sum());
+        }
+    }
+
+    /**
+     * Collect only the transactions confirmed since the previous export. Can be used in place of {@link #collectData()}.
+     * @param since checkpoint of the previous export or {@code null} to collect the entire history
+     * @param safeDepth minimum number of confirmations for a transaction to be collected
+     * @return a chronologically sorted list of transactions and the checkpoint for the next export
+     */
+    public OmniExportClient.IncrementalFetch collectDataSince(ExportCheckpoint since, int safeDepth) {
+        long start = System.nanoTime();
+        OmniExportClient.IncrementalFetch fetch = exportClient.fetchSince(since, safeDepth);
+        collectTimer.recordSince(start, fetch.transactions().size());
+        return fetch;
     }
 
     @Override
     public List<LedgerTransaction> convertToLedger(List<TransactionData> transactions) {
-        return importer.importTransactions(transactions);
+        long start = System.nanoTime();
+        try {
+            List<LedgerTransaction> entries = importer.importTransactions(transactions, importParallelism);
+            convertTimer.recordSince(start, entries.size());
+            return entries;
+        } catch (RuntimeException e) {
+            convertTimer.record(System.nanoTime() - start, transactions.size(), 0, 1);
+            throw e;
+        }
+    }
+
+    /**
+     * Convert a single transaction, see {@link #convertToLedger(List)}. Not timed as a stage on its own: in
+     * {@link #exportStreaming} the wall time of all conversions is recorded as the {@code convertToLedger} stage.
+     * @param transaction collected data
+     * @return double-entry accounting transaction
+     */
+    @Override
+    public LedgerTransaction convertToLedger(TransactionData transaction) {
+        return importer.importTransaction(transaction);
     }
 
     @Override
     public void output(List<LedgerTransaction> entries) {
-        entries.stream()
-                .map(LedgerTransaction::toString)
-                .forEach(out::println);
+        long start = System.nanoTime();
+        long bytes = writer.byteCount();
+        try {
+            entries.forEach(this::output);
+            flush();
+            outputTimer.record(System.nanoTime() - start, entries.size(), writer.byteCount() - bytes, 0);
+        } catch (RuntimeException e) {
+            outputTimer.record(System.nanoTime() - start, entries.size(), writer.byteCount() - bytes, 1);
+            throw e;
+        }
+    }
+
+    /**
+     * Output a single entry, see {@link #output(List)}. Output is buffered until {@link #flush()}. Not timed as a
+     * stage on its own, like {@link #convertToLedger(TransactionData)}.
+     * @param entry the entry to output
+     */
+    @Override
+    public void output(LedgerTransaction entry) {
+        writer.write(entry);
+    }
+
+    /**
+     * Write buffered output
+     */
+    @Override
+    public void flush() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Long> exportStreaming(Consumer<Consumer<TransactionData>> source, Predicate<LedgerTransaction> filter, Executor executor, int bufferCapacity) {
+        // The stages run concurrently, so each is timed from the start of its first item to the end of its last
+        StageSpan convertSpan = new StageSpan();
+        StageSpan outputSpan = new StageSpan();
+        long bytes = writer.byteCount();
+        return new ExportPipeline(
+                        transaction -> convertSpan.time(() -> convertToLedger(transaction), 1),
+                        entry -> outputSpan.time(() -> {
+                            output(entry);
+                            return null;
+                        }, 1),
+                        () -> outputSpan.time(() -> {
+                            flush();
+                            return null;
+                        }, 0),
+                        importParallelism, executor, bufferCapacity)
+                .run(source, filter)
+                .whenComplete((count, t) -> {
+                    convertSpan.recordTo(convertTimer, 0);
+                    outputSpan.recordTo(outputTimer, writer.byteCount() - bytes);
+                });
+    }
+
+    // Wall time of a stage of a streaming export, from the start of its first call to the end of its last
+    private static final class StageSpan {
+        private final AtomicLong first = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong last = new AtomicLong(Long.MIN_VALUE);
+        private final LongAdder items = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        <T> T time(Supplier<T> call, long itemCount) {
+            long start = System.nanoTime();
+            first.accumulateAndGet(start, Math::min);
+            try {
+                T result = call.get();
+                items.add(itemCount);
+                return result;
+            } catch (RuntimeException e) {
+                errors.increment();
+                throw e;
+            } finally {
+                last.accumulateAndGet(System.nanoTime(), Math::max);
+            }
+        }
+
+        void recordTo(ExportTimer timer, long byteCount) {
+            if (first.get() != Long.MAX_VALUE) {
+                timer.record(last.get() - first.get(), items.sum(), byteCount, errors.sum());
+            }
+        }
     }
 
     // Simple CSV parsing
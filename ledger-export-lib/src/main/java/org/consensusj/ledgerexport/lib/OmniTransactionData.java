@@ -16,19 +16,30 @@
 package org.consensusj.ledgerexport.lib;
 
 import foundation.omni.json.pojo.OmniTransactionInfo;
+import org.bitcoinj.core.Sha256Hash;
 import org.consensusj.bitcoin.json.pojo.BitcoinTransactionInfo;
 
 /**
  * Extension of {@link BitcoinTransactionData} that stores OmniLayer info for the transaction
  */
 public class OmniTransactionData extends BitcoinTransactionData {
-    private OmniTransactionInfo omniTransactionInfo;
+    private TransactionColumns.OmniEntry omniEntry;
 
     /**
+     * @param columns store to copy transaction infos to
      * @param bitcoinTransactionInfo first transaction info returned for this transaction id
      */
-    public OmniTransactionData(BitcoinTransactionInfo bitcoinTransactionInfo) {
-        super(bitcoinTransactionInfo);
+    public OmniTransactionData(TransactionColumns columns, BitcoinTransactionInfo bitcoinTransactionInfo) {
+        super(columns, bitcoinTransactionInfo);
+    }
+
+    /**
+     * @param columns store to copy transaction infos to
+     * @param txId transaction id
+     * @param walletRow first wallet entry returned for this transaction id
+     */
+    public OmniTransactionData(TransactionColumns columns, Sha256Hash txId, TransactionColumns.WalletRow walletRow) {
+        super(columns, txId, walletRow);
     }
 
     /**
@@ -37,7 +48,16 @@ public class OmniTransactionData extends BitcoinTransactionData {
      * @return chainable this
      */
     public OmniTransactionData add(OmniTransactionInfo omniTransactionInfo) {
-        this.omniTransactionInfo = omniTransactionInfo;
+        return add(columns.add(omniTransactionInfo));
+    }
+
+    /**
+     * Add the Omni entry for this transaction
+     * @param omniEntry entry already copied to this transaction's store
+     * @return chainable this
+     */
+    public OmniTransactionData add(TransactionColumns.OmniEntry omniEntry) {
+        this.omniEntry = omniEntry;
         return this;
     }
 
@@ -48,14 +68,14 @@ public class OmniTransactionData extends BitcoinTransactionData {
      * @return {@code true} if Omni, {@code false} otherwise
      */
     public boolean isOmni() {
-        return omniTransactionInfo != null;
+        return omniEntry != null;
     }
 
     /**
      * @return omni Transaction information
      */
-    public OmniTransactionInfo omniTransactionInfo() {
-        return omniTransactionInfo;
+    public TransactionColumns.OmniEntry omniEntry() {
+        return omniEntry;
     }
 
 }
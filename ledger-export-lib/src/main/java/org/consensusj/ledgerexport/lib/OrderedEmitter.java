@@ -0,0 +1,265 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Passes transactions downstream in {@link TransactionData#CHRONOLOGICAL} order while they are still being fetched.
+ * <p>
+ * Each {@link Source} of transactions has a low watermark: a time before which it won't add (or change) any more
+ * transactions. Added transactions are buffered until their time is before the lowest watermark of all open sources,
+ * so only the out-of-order window is buffered. When all sources are closed the buffer is flushed.
+ * <p>
+ * A transaction added with the same id as a buffered one replaces it, as in {@link BitcoinTransactionsContainer}.
+ * All methods are thread-safe. The downstream consumer is called by one thread at a time and never while holding the
+ * emitter's lock, so it can block (e.g. on a full buffer) without blocking sources that add or advance: the
+ * transactions they release are queued and passed on by the thread that is already delivering.
+ */
+class OrderedEmitter {
+    private final Consumer<TransactionData> downstream;
+    private final TreeSet<TransactionData> buffer = new TreeSet<>(TransactionData.CHRONOLOGICAL);
+    private final Map<Sha256Hash, TransactionData> buffered = new HashMap<>();
+    private final List<Source> sources = new ArrayList<>();
+    // Released but not yet passed downstream
+    private final ArrayDeque<TransactionData> ready = new ArrayDeque<>();
+    private boolean delivering;
+    private long emitted;
+    private int maxBuffered;
+
+    /**
+     * @param downstream consumer of the ordered transactions
+     */
+    OrderedEmitter(Consumer<TransactionData> downstream) {
+        this.downstream = downstream;
+    }
+
+    /**
+     * A source of transactions. Its watermark is the lower of the time it has advanced to and the times of the
+     * transactions it holds.
+     */
+    final class Source {
+        private final String name;
+        private Instant watermark = Instant.MIN;
+        // Held transaction times, with counts
+        private final TreeMap<Instant, Integer> held = new TreeMap<>();
+        private boolean closed;
+
+        private Source(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Promise that no transactions earlier than {@code time} will be added, except held ones
+         * @param time new watermark
+         */
+        void advanceTo(Instant time) {
+            synchronized (OrderedEmitter.this) {
+                if (time.isAfter(watermark)) {
+                    watermark = time;
+                    OrderedEmitter.this.release();
+                }
+            }
+            deliver();
+        }
+
+        /**
+         * Hold back the watermark for a transaction that this source will add later (e.g. once a lookup completes)
+         * @param transaction transaction to hold
+         */
+        void hold(TransactionData transaction) {
+            synchronized (OrderedEmitter.this) {
+                held.merge(transaction.time(), 1, Integer::sum);
+            }
+        }
+
+        /**
+         * Stop holding a transaction and add it (or, if it was replaced, the transaction that replaced it)
+         * @param held transaction that was held
+         * @param transaction transaction to add
+         */
+        void add(TransactionData held, TransactionData transaction) {
+            synchronized (OrderedEmitter.this) {
+                unhold(held);
+                OrderedEmitter.this.add(transaction);
+            }
+            deliver();
+        }
+
+        /**
+         * Stop holding a transaction and add it, unless it has been replaced by a transaction that another source
+         * adds. The test is made holding the emitter's lock, so it can't race with the other source adding the
+         * replacement.
+         * @param held transaction that was held
+         * @param isCurrent test if the transaction hasn't been replaced
+         */
+        void addIfCurrent(TransactionData held, Predicate<TransactionData> isCurrent) {
+            synchronized (OrderedEmitter.this) {
+                unhold(held);
+                if (isCurrent.test(held)) {
+                    OrderedEmitter.this.add(held);
+                } else {
+                    OrderedEmitter.this.release();
+                }
+            }
+            deliver();
+        }
+
+        /**
+         * Add a transaction
+         * @param transaction transaction to add
+         */
+        void add(TransactionData transaction) {
+            synchronized (OrderedEmitter.this) {
+                OrderedEmitter.this.add(transaction);
+            }
+            deliver();
+        }
+
+        /**
+         * Promise that no more transactions will be added, except held ones
+         */
+        void close() {
+            advanceTo(Instant.MAX);
+        }
+
+        // Must hold the emitter's lock
+        private void unhold(TransactionData transaction) {
+            held.computeIfPresent(transaction.time(), (t, count) -> (count > 1) ? count - 1 : null);
+        }
+
+        // Must hold the emitter's lock
+        private Instant watermark() {
+            return held.isEmpty() || watermark.isBefore(held.firstKey()) ? watermark : held.firstKey();
+        }
+
+        @Override
+        public String toString() {
+            synchronized (OrderedEmitter.this) {
+                return String.format("%s[watermark=%s, held=%d]", name, watermark(), held.values().stream().mapToInt(Integer::intValue).sum());
+            }
+        }
+    }
+
+    /**
+     * @param name name of the source (for logging)
+     * @return a new source with a watermark of {@link Instant#MIN}, which holds back all transactions
+     */
+    synchronized Source newSource(String name) {
+        Source source = new Source(name);
+        sources.add(source);
+        return source;
+    }
+
+    /**
+     * @return number of transactions passed downstream
+     */
+    synchronized long emitted() {
+        return emitted;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("OrderedEmitter[emitted=%d, ready=%d, buffered=%d, maxBuffered=%d, sources=%s]", emitted, ready.size(), buffer.size(), maxBuffered, sources);
+    }
+
+    // Must hold this object's lock
+    private void add(TransactionData transaction) {
+        TransactionData replaced = buffered.put(transaction.txId(), transaction);
+        if (replaced != null) {
+            buffer.remove(replaced);
+        }
+        buffer.add(transaction);
+        maxBuffered = Math.max(maxBuffered, buffer.size());
+        release();
+    }
+
+    // Queue every buffered transaction that is earlier than all watermarks for delivery. Must hold this object's lock.
+    private void release() {
+        Instant low = sources.stream().map(Source::watermark).min(Instant::compareTo).orElse(Instant.MAX);
+        while (!buffer.isEmpty() && (low.equals(Instant.MAX) || buffer.first().time().isBefore(low))) {
+            TransactionData next = buffer.pollFirst();
+            buffered.remove(next.txId());
+            ready.add(next);
+        }
+    }
+
+    // Pass queued transactions downstream in order. Must not hold this object's lock. If another thread is
+    // delivering, it will also deliver the transactions queued by this one.
+    private void deliver() {
+        while (true) {
+            List<TransactionData> batch;
+            synchronized (this) {
+                if (delivering || ready.isEmpty()) {
+                    return;
+                }
+                delivering = true;
+                batch = new ArrayList<>(ready);
+                ready.clear();
+            }
+            int delivered = 0;
+            try {
+                for (TransactionData transaction : batch) {
+                    downstream.accept(transaction);
+                    delivered++;
+                }
+            } finally {
+                synchronized (this) {
+                    delivering = false;
+                    emitted += delivered;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until all released transactions have been passed downstream, including those being passed by another
+     * thread. Call after the sources are closed, so the downstream consumer isn't called after this returns.
+     */
+    void awaitDelivered() {
+        boolean interrupted = false;
+        while (true) {
+            deliver();
+            synchronized (this) {
+                if (!delivering && ready.isEmpty()) {
+                    break;
+                }
+                if (delivering) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A recording of JSON-RPC responses, used to re-run an export without a server.
+ * In <b>record</b> mode every response (result or error) is appended to the recording; in <b>replay</b> mode
+ * calls are answered from the recording.
+ * <p>
+ * A recording is a directory with two files. {@code responses.bin} holds one record per response: key length (4 bytes),
+ * key (UTF-8 method name and JSON parameters), error flag (1 byte), uncompressed length (4 bytes),
+ * compressed length (4 bytes), and the deflate-compressed JSON result or error message.
+ * {@code index.bin} maps each key to the offset of its latest record and is written on {@link #close()}.
+ * If the index is missing (the recording wasn't closed) it is rebuilt by scanning the responses.
+ * {@code options.bin} holds the page size the recording was made with (4 bytes). Calls are keyed by their
+ * parameters, which include the page size, so a recording can only be replayed with the same page size.
+ */
+public class RpcRecording implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(RpcRecording.class);
+    private static final String responsesFileName = "responses.bin";
+    private static final String indexFileName = "index.bin";
+    private static final String optionsFileName = "options.bin";
+
+    private final Path dir;
+    private final ObjectMapper mapper;
+    private final boolean replay;
+    private final FileChannel channel;
+    private final Map<String, Long> index = new HashMap<>();
+
+    /**
+     * A recorded error response
+     */
+    public static class RecordedErrorException extends IOException {
+        /**
+         * @param message error message from the original call
+         */
+        public RecordedErrorException(String message) {
+            super(message);
+        }
+    }
+
+    private RpcRecording(Path dir, ObjectMapper mapper, boolean replay, int pageSize) throws IOException {
+        this.dir = dir;
+        this.mapper = mapper;
+        this.replay = replay;
+        Path responses = dir.resolve(responsesFileName);
+        if (replay) {
+            checkPageSize(pageSize);
+            channel = FileChannel.open(responses, StandardOpenOption.READ);
+            if (Files.exists(dir.resolve(indexFileName))) {
+                readIndex();
+            } else {
+                scanResponses();
+            }
+            log.info("Replaying {} recorded responses from {}", index.size(), dir);
+        } else {
+            Files.createDirectories(dir);
+            Files.deleteIfExists(dir.resolve(indexFileName));
+            writePageSize(pageSize);
+            channel = FileChannel.open(responses, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            log.info("Recording responses to {}", dir);
+        }
+    }
+
+    /**
+     * Start a new recording, replacing any existing recording in the directory
+     * @param dir directory for the recording (created if needed)
+     * @param mapper mapper for serializing parameters and results
+     * @param pageSize page size of the export being recorded (see {@link FetchOptions#pageSize()})
+     * @return a recording in record mode
+     * @throws IOException if the files can't be created
+     */
+    public static RpcRecording record(Path dir, ObjectMapper mapper, int pageSize) throws IOException {
+        return new RpcRecording(dir, mapper, false, pageSize);
+    }
+
+    /**
+     * Open an existing recording for replay
+     * @param dir directory containing the recording
+     * @param mapper mapper for serializing parameters and reading results
+     * @param pageSize page size of the export being replayed, must be the page size the recording was made with
+     * @return a recording in replay mode
+     * @throws IOException if the recording can't be read or was made with a different page size
+     */
+    public static RpcRecording replay(Path dir, ObjectMapper mapper, int pageSize) throws IOException {
+        return new RpcRecording(dir, mapper, true, pageSize);
+    }
+
+    /**
+     * @return {@code true} if in replay mode, {@code false} if recording
+     */
+    public boolean isReplay() {
+        return replay;
+    }
+
+    /**
+     * Answer a call from the recording
+     * @param method JSON-RPC method name
+     * @param params parameters
+     * @return the recorded result
+     * @throws RecordedErrorException if the recorded response was an error
+     * @throws IOException if the call wasn't recorded or the recording can't be read
+     */
+    public JsonNode get(String method, List<Object> params) throws IOException {
+        String key = key(method, params);
+        Long offset;
+        synchronized (this) {
+            offset = index.get(key);
+        }
+        if (offset == null) {
+            throw new IOException("No recorded response for " + key);
+        }
+        ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(header, offset);
+        int keyLength = header.getInt(0);
+        ByteBuffer valueHeader = ByteBuffer.allocate(9);
+        readFully(valueHeader, offset + 4 + keyLength);
+        boolean isError = valueHeader.get(0) != 0;
+        int length = valueHeader.getInt(1);
+        ByteBuffer compressed = ByteBuffer.allocate(valueHeader.getInt(5));
+        readFully(compressed, offset + 4 + keyLength + 9);
+        byte[] value = inflate(compressed.array(), length);
+        if (isError) {
+            throw new RecordedErrorException(new String(value, StandardCharsets.UTF_8));
+        }
+        return mapper.readTree(value);
+    }
+
+    /**
+     * Record a successful response
+     * @param method JSON-RPC method name
+     * @param params parameters
+     * @param result result
+     * @throws IOException if the recording can't be written
+     */
+    public void putResult(String method, List<Object> params, JsonNode result) throws IOException {
+        append(key(method, params), false, mapper.writeValueAsBytes(result));
+    }
+
+    /**
+     * Record an error response
+     * @param method JSON-RPC method name
+     * @param params parameters
+     * @param error the error
+     * @throws IOException if the recording can't be written
+     */
+    public void putError(String method, List<Object> params, Throwable error) throws IOException {
+        String message = String.valueOf(error.getMessage());
+        append(key(method, params), true, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!replay) {
+            channel.force(false);
+            writeIndex();
+            log.info("Recorded {} responses ({} bytes) to {}", index.size(), channel.size(), dir);
+        }
+        channel.close();
+    }
+
+    private String key(String method, List<Object> params) throws IOException {
+        return method + " " + mapper.writeValueAsString(params);
+    }
+
+    private void append(String key, boolean isError, byte[] value) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = deflate(value);
+        ByteBuffer record = ByteBuffer.allocate(4 + keyBytes.length + 9 + compressed.length);
+        record.putInt(keyBytes.length)
+                .put(keyBytes)
+                .put((byte) (isError ? 1 : 0))
+                .putInt(value.length)
+                .putInt(compressed.length)
+                .put(compressed)
+                .flip();
+        synchronized (this) {
+            long offset = channel.size();
+            while (record.hasRemaining()) {
+                channel.write(record, offset + record.position());
+            }
+            index.put(key, offset);
+        }
+    }
+
+    private void writePageSize(int pageSize) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(dir.resolve(optionsFileName)))) {
+            out.writeInt(pageSize);
+        }
+    }
+
+    // Fail up front rather than with a missing response for the first page
+    private void checkPageSize(int pageSize) throws IOException {
+        int recordedPageSize;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(dir.resolve(optionsFileName)))) {
+            recordedPageSize = in.readInt();
+        }
+        if (recordedPageSize != pageSize) {
+            throw new IOException("Recording " + dir + " was made with page size " + recordedPageSize + ", not " + pageSize);
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(dir.resolve(indexFileName))))) {
+            out.writeInt(index.size());
+            for (Map.Entry<String, Long> entry : index.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        }
+    }
+
+    private void readIndex() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(dir.resolve(indexFileName))))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                index.put(in.readUTF(), in.readLong());
+            }
+        }
+    }
+
+    // Rebuild the index from the responses file, later records replace earlier ones with the same key
+    private void scanResponses() throws IOException {
+        long size = channel.size();
+        long offset = 0;
+        ByteBuffer intBuffer = ByteBuffer.allocate(4);
+        ByteBuffer valueHeader = ByteBuffer.allocate(9);
+        try {
+            while (offset < size) {
+                intBuffer.clear();
+                readFully(intBuffer, offset);
+                ByteBuffer keyBytes = ByteBuffer.allocate(intBuffer.getInt(0));
+                readFully(keyBytes, offset + 4);
+                valueHeader.clear();
+                readFully(valueHeader, offset + 4 + keyBytes.capacity());
+                long next = offset + 4 + keyBytes.capacity() + 9 + valueHeader.getInt(5);
+                if (next > size) {
+                    throw new EOFException();
+                }
+                index.put(new String(keyBytes.array(), StandardCharsets.UTF_8), offset);
+                offset = next;
+            }
+        } catch (EOFException e) {
+            log.warn("Ignoring truncated record at end of recording {}", dir);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static byte[] deflate(byte[] value) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(value);
+            deflater.finish();
+            byte[] buffer = new byte[Math.max(64, value.length / 2)];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            return Arrays.copyOf(buffer, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] compressed, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] value = new byte[length];
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                n += inflater.inflate(value, n, length - n);
+            }
+            return value;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt recorded response", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
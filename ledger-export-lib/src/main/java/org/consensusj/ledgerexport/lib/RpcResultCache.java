@@ -0,0 +1,293 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bitcoinj.core.Sha256Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Persistent cache of JSON-RPC results for deeply-confirmed transactions, which never change.
+ * Keyed by method name and transaction id.
+ * <p>
+ * Results are stored in an append-only log file and located with an in-memory index that is rebuilt by scanning
+ * the log on open. Each record is: method name length (1 byte), method name (ASCII), txid (32 bytes),
+ * result length (4 bytes), result (UTF-8 JSON). When the size of the cached results exceeds the limit the
+ * least-recently-used results are evicted, and the log is compacted when evicted results make up half of it.
+ * <p>
+ * The cache holds wallet-specific results (e.g. {@code gettransaction}) so each wallet needs its own file.
+ */
+public class RpcResultCache implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(RpcResultCache.class);
+    private static final int hashLength = 32;
+
+    private final Path file;
+    private final ObjectMapper mapper;
+    private final int minConfirmations;
+    private final long maxBytes;
+    // Access-ordered, so iteration starts with the least-recently-used result
+    private final LinkedHashMap<Key, Location> index = new LinkedHashMap<>(16, 0.75f, true);
+    private FileChannel channel;
+    private long liveBytes;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    private record Key(String method, Sha256Hash txId) {}
+    private record Location(long offset, int recordLength, int valueLength) {}
+
+    /**
+     * Open (or create) a cache file
+     * @param file path of the log file
+     * @param mapper mapper for reading and writing results
+     * @param minConfirmations only results with at least this many confirmations are cached
+     * @param maxBytes maximum size of cached results
+     * @throws IOException if the file can't be opened or read
+     */
+    public RpcResultCache(Path file, ObjectMapper mapper, int minConfirmations, long maxBytes) throws IOException {
+        this.file = file;
+        this.mapper = mapper;
+        this.minConfirmations = minConfirmations;
+        this.maxBytes = maxBytes;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        load();
+        log.info("Opened RPC result cache {} with {} results ({} bytes)", file, index.size(), liveBytes);
+    }
+
+    /**
+     * Look up a cached result. Only the index lookup holds the lock: the result is read from the log (and parsed)
+     * without it, so lookups aren't serialized behind disk I/O.
+     * @param method JSON-RPC method name
+     * @param txId transaction id
+     * @return the result if cached
+     */
+    public Optional<JsonNode> get(String method, Sha256Hash txId) {
+        Key key = new Key(method, txId);
+        boolean counted = false;
+        while (true) {
+            Location location;
+            FileChannel source;
+            synchronized (this) {
+                location = index.get(key);
+                if (!counted) {
+                    if (location == null) {
+                        missCount++;
+                    } else {
+                        hitCount++;
+                    }
+                    counted = true;
+                }
+                if (location == null) {
+                    return Optional.empty();
+                }
+                source = channel;
+            }
+            try {
+                ByteBuffer value = ByteBuffer.allocate(location.valueLength());
+                readFully(source, value, location.offset() + location.recordLength() - location.valueLength());
+                return Optional.of(mapper.readTree(value.array()));
+            } catch (ClosedChannelException e) {
+                // The log was compacted (and replaced) during the read, look up the new location
+                synchronized (this) {
+                    if (channel == source) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Cache a result if it is deep enough (has a {@code confirmations} property of at least the configured minimum)
+     * @param method JSON-RPC method name
+     * @param txId transaction id
+     * @param result JSON result
+     * @return {@code true} if the result was cached
+     */
+    public synchronized boolean putIfConfirmed(String method, Sha256Hash txId, JsonNode result) {
+        if (result.path("confirmations").asInt(0) < minConfirmations) {
+            return false;
+        }
+        Key key = new Key(method, txId);
+        if (index.containsKey(key)) {
+            return true;
+        }
+        try {
+            byte[] methodBytes = method.getBytes(StandardCharsets.US_ASCII);
+            byte[] value = mapper.writeValueAsBytes(result);
+            ByteBuffer record = ByteBuffer.allocate(1 + methodBytes.length + hashLength + 4 + value.length);
+            record.put((byte) methodBytes.length)
+                    .put(methodBytes)
+                    .put(txId.getBytes())
+                    .putInt(value.length)
+                    .put(value)
+                    .flip();
+            long offset = channel.size();
+            while (record.hasRemaining()) {
+                channel.write(record, offset + record.position());
+            }
+            index.put(key, new Location(offset, record.capacity(), value.length));
+            liveBytes += record.capacity();
+            evictIfFull();
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return number of lookups that found a cached result
+     */
+    public synchronized long hitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of lookups that didn't find a cached result
+     */
+    public synchronized long missCount() {
+        return missCount;
+    }
+
+    /**
+     * @return number of results evicted to stay within the size limit
+     */
+    public synchronized long evictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return number of cached results
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("RpcResultCache[results=%d, bytes=%d, hits=%d, misses=%d, evictions=%d]",
+                index.size(), liveBytes, hitCount, missCount, evictionCount);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+
+    private void evictIfFull() throws IOException {
+        Iterator<Map.Entry<Key, Location>> lru = index.entrySet().iterator();
+        while (liveBytes > maxBytes && lru.hasNext()) {
+            liveBytes -= lru.next().getValue().recordLength();
+            lru.remove();
+            evictionCount++;
+        }
+        if (channel.size() > 2 * Math.max(liveBytes, 1)) {
+            compact();
+        }
+    }
+
+    // Rewrite the log with only the live results, least-recently-used first
+    private void compact() throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".compact");
+        List<Map.Entry<Key, Location>> entries = new ArrayList<>(index.entrySet());
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long offset = 0;
+            for (Map.Entry<Key, Location> entry : entries) {
+                Location location = entry.getValue();
+                ByteBuffer record = ByteBuffer.allocate(location.recordLength());
+                readFully(channel, record, location.offset());
+                record.flip();
+                while (record.hasRemaining()) {
+                    out.write(record);
+                }
+                entry.setValue(new Location(offset, location.recordLength(), location.valueLength()));
+                offset += location.recordLength();
+            }
+            out.force(false);
+        }
+        channel.close();
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        log.debug("Compacted RPC result cache to {} bytes", channel.size());
+    }
+
+    // Build the index from the log. A truncated record at the end (from an interrupted write) is discarded.
+    private void load() throws IOException {
+        long size = channel.size();
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(1 + 255 + hashLength + 4);
+        while (offset < size) {
+            try {
+                header.clear().limit(1);
+                readFully(channel, header, offset);
+                int methodLength = header.get(0) & 0xff;
+                header.clear().limit(methodLength + hashLength + 4);
+                readFully(channel, header, offset + 1);
+                header.flip();
+                byte[] methodBytes = new byte[methodLength];
+                byte[] hash = new byte[hashLength];
+                header.get(methodBytes).get(hash);
+                int valueLength = header.getInt();
+                int recordLength = 1 + methodLength + hashLength + 4 + valueLength;
+                if (offset + recordLength > size) {
+                    throw new EOFException();
+                }
+                Location previous = index.put(new Key(new String(methodBytes, StandardCharsets.US_ASCII), Sha256Hash.wrap(hash)),
+                        new Location(offset, recordLength, valueLength));
+                liveBytes += recordLength - (previous != null ? previous.recordLength() : 0);
+                offset += recordLength;
+            } catch (EOFException e) {
+                log.warn("Discarding truncated record at end of RPC result cache {}", file);
+                channel.truncate(offset);
+                break;
+            }
+        }
+        evictIfFull();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs blocking RPC calls on an {@link Executor} with a limit on the number of calls in flight.
+ * The limit adapts to the server using AIMD (additive increase, multiplicative decrease):
+ * it grows while calls succeed with latency close to the lowest latency seen and is halved when the server
+ * reports it is overloaded or call latency shows the server is queueing requests. Until the first decrease the limit grows by one per
+ * completed call ("slow start"), after that by one per limit's worth of completed calls.
+ * <p>
+ * Some methods are much slower than others (e.g. {@code gettransaction} and {@code getblockhash}), so the lowest
+ * latency is tracked separately for each kind of call, see {@link #submit(String, Callable)}.
+ * <p>
+ * Calls that fail because the server is overloaded (an {@link HttpStatusException} with status 503, for example
+ * Bitcoin Core's {@code Work queue depth exceeded}) are retried a few times, after an exponentially growing delay,
+ * before their future fails.
+ * <p>
+ * A slot is freed (and the next queued call started) before a call's future is completed, so stages that depend on
+ * the result and run on the completing thread don't hold up other calls.
+ */
+public class RpcScheduler {
+    private static final Logger log = LoggerFactory.getLogger(RpcScheduler.class);
+    private static final int minLimit = 1;
+    private static final int maxRetries = 3;
+    private static final double latencyTolerance = 2.0;
+    private static final long latencySlackNanos = 20_000_000;   // Ignore latency changes of less than 20 ms
+    private static final int warmupSamples = 10;
+    private static final Duration defaultRetryDelay = Duration.ofMillis(100);
+
+    private final Executor executor;
+    private final int maxLimit;
+    private final Duration retryDelay;
+    private final Deque<Task<?>> queue = new ArrayDeque<>();
+
+    // All mutable state is guarded by this
+    private double limit;
+    private boolean slowStart = true;
+    private int inFlight;
+    private final Map<String, Baseline> baselines = new HashMap<>();
+    private long lastDecreaseNanos;
+    private long completedCount;
+    private long errorCount;
+    private long retryCount;
+    private int retryWaiting;
+
+    private static class Task<T> {
+        final String kind;
+        final Callable<T> call;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        int attempts;
+
+        Task(String kind, Callable<T> call) {
+            this.kind = kind;
+            this.call = call;
+        }
+    }
+
+    // Lowest latency of successful calls of one kind
+    private static class Baseline {
+        long minLatencyNanos = Long.MAX_VALUE;
+        long samples;
+    }
+
+    /**
+     * @param executor executor to run calls on (calls block the executing thread)
+     * @param initialLimit initial maximum number of calls in flight
+     * @param maxLimit upper bound for the adaptive limit
+     */
+    public RpcScheduler(Executor executor, int initialLimit, int maxLimit) {
+        this(executor, initialLimit, maxLimit, defaultRetryDelay);
+    }
+
+    /**
+     * @param executor executor to run calls on (calls block the executing thread)
+     * @param initialLimit initial maximum number of calls in flight
+     * @param maxLimit upper bound for the adaptive limit
+     * @param retryDelay delay before the first retry of an overloaded call, doubled for each further retry
+     */
+    RpcScheduler(Executor executor, int initialLimit, int maxLimit, Duration retryDelay) {
+        if (initialLimit < minLimit || maxLimit < initialLimit) {
+            throw new IllegalArgumentException("require 1 <= initialLimit <= maxLimit");
+        }
+        this.executor = executor;
+        this.limit = initialLimit;
+        this.maxLimit = maxLimit;
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Queue a blocking call to run when the in-flight limit permits. Its latency is compared with that of other
+     * calls submitted without a kind.
+     * @param call the call to make
+     * @param <T> result type
+     * @return a future for the result
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> call) {
+        return submit("", call);
+    }
+
+    /**
+     * Queue a blocking call to run when the in-flight limit permits
+     * @param kind kind of call, e.g. the JSON-RPC method. Its latency is only compared with that of calls of the
+     *             same kind to detect congestion.
+     * @param call the call to make
+     * @param <T> result type
+     * @return a future for the result
+     */
+    public <T> CompletableFuture<T> submit(String kind, Callable<T> call) {
+        Task<T> task = new Task<>(kind, call);
+        synchronized (this) {
+            queue.addLast(task);
+        }
+        dispatch();
+        return task.future;
+    }
+
+    /**
+     * @return number of calls currently executing
+     */
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return current in-flight limit
+     */
+    public synchronized int limit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return number of calls waiting for a free slot
+     */
+    public synchronized int queued() {
+        return queue.size();
+    }
+
+    /**
+     * @return number of overloaded calls waiting to be retried
+     */
+    public synchronized int retryWaiting() {
+        return retryWaiting;
+    }
+
+    /**
+     * @return number of calls completed successfully
+     */
+    public synchronized long completedCount() {
+        return completedCount;
+    }
+
+    /**
+     * @return number of failed call attempts (including attempts that were retried)
+     */
+    public synchronized long errorCount() {
+        return errorCount;
+    }
+
+    /**
+     * @return number of retried call attempts
+     */
+    public synchronized long retryCount() {
+        return retryCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("RpcScheduler[inFlight=%d, limit=%d, queued=%d, retryWaiting=%d, completed=%d, errors=%d, retries=%d]",
+                inFlight, (int) limit, queue.size(), retryWaiting, completedCount, errorCount, retryCount);
+    }
+
+    private void dispatch() {
+        List<Task<?>> ready = new ArrayList<>();
+        synchronized (this) {
+            while (inFlight < (int) limit && !queue.isEmpty()) {
+                ready.add(queue.removeFirst());
+                inFlight++;
+            }
+        }
+        ready.forEach(task -> executor.execute(() -> run(task)));
+    }
+
+    private <T> void run(Task<T> task) {
+        long start = System.nanoTime();
+        T result = null;
+        Throwable error = null;
+        try {
+            result = task.call.call();
+        } catch (Throwable t) {
+            error = t;
+        }
+        long now = System.nanoTime();
+        boolean overloaded = error != null && isOverload(error);
+        boolean retry = overloaded && ++task.attempts <= maxRetries;
+        synchronized (this) {
+            inFlight--;
+            adjustLimit(task.kind, now, now - start, error != null, overloaded);
+            if (retry) {
+                retryCount++;
+                retryWaiting++;
+            }
+        }
+        dispatch();
+        if (retry) {
+            // Back off, so a server that is already queueing isn't sent the call again at once. The delay is
+            // doubled for each retry, with jitter so calls rejected together aren't retried together.
+            long delayNanos = retryDelay.toNanos() << (task.attempts - 1);
+            delayNanos += ThreadLocalRandom.current().nextLong(delayNanos / 2 + 1);
+            CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS).execute(() -> {
+                synchronized (this) {
+                    retryWaiting--;
+                    queue.addFirst(task);
+                }
+                dispatch();
+            });
+        } else if (error == null) {
+            task.future.complete(result);
+        } else {
+            task.future.completeExceptionally(error);
+        }
+    }
+
+    // Must be called holding the lock
+    private void adjustLimit(String kind, long now, long latencyNanos, boolean failed, boolean overloaded) {
+        Baseline baseline = baselines.computeIfAbsent(kind, k -> new Baseline());
+        if (failed) {
+            errorCount++;
+        } else {
+            completedCount++;
+            baseline.samples++;
+            baseline.minLatencyNanos = Math.min(baseline.minLatencyNanos, latencyNanos);
+        }
+        boolean congested = overloaded
+                || (baseline.samples > warmupSamples && latencyNanos > baseline.minLatencyNanos * latencyTolerance + latencySlackNanos);
+        if (congested) {
+            // Decrease at most once per round trip, since calls already in flight saw the same conditions
+            if (now - lastDecreaseNanos > latencyNanos) {
+                limit = Math.max(minLimit, limit / 2);
+                slowStart = false;
+                lastDecreaseNanos = now;
+                log.debug("Decreased RPC limit to {} (latency {} ms, overloaded: {})", (int) limit, latencyNanos / 1_000_000, overloaded);
+            }
+        } else if (limit < maxLimit) {
+            limit = Math.min(maxLimit, limit + (slowStart ? 1 : 1 / limit));
+        }
+    }
+
+    // Is this error caused by the server rejecting requests because it is overloaded?
+    private static boolean isOverload(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof HttpStatusException e && e.statusCode() == HttpStatusException.SERVICE_UNAVAILABLE) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * An {@link AccountingExporter} that can also process one transaction at a time, so the stages can run as a
+ * streaming pipeline: {@link #exportStreaming(Predicate, Executor, int)} connects collection, conversion,
+ * filtering and output with {@link Flow} publishers and subscribers. Each stage runs concurrently with the others,
+ * and each buffers at most a fixed number of items, so a slow stage holds back the stages before it.
+ * <p>
+ * {@link #export()} runs the pipeline, the list-based methods remain for tools that need the whole list.
+ */
+public interface StreamingAccountingExporter extends AccountingExporter {
+    /**
+     * Runs the entire process as a streaming pipeline.
+     * @throws IOException an error occurred communicating with the server or writing output
+     */
+    @Override
+    default void export() throws IOException {
+        initialize();
+        try (ExecutorService executor = Executors.newCachedThreadPool()) {
+            exportStreaming(t -> true, executor, Flow.defaultBufferSize()).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException io) {
+                throw io.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Collect transaction data, passing each transaction to a consumer in chronological order.
+     * @param consumer consumer of the transactions
+     */
+    void collectData(Consumer<TransactionData> consumer);
+
+    /**
+     * Convert a single transaction, see {@link #convertToLedger(java.util.List)}
+     * @param transaction collected data
+     * @return double-entry accounting transaction
+     */
+    LedgerTransaction convertToLedger(TransactionData transaction);
+
+    /**
+     * Output a single entry, output may be buffered until {@link #flush()}
+     * @param entry the entry to output
+     */
+    void output(LedgerTransaction entry);
+
+    /**
+     * Write buffered output
+     */
+    void flush();
+
+    /**
+     * Collect, convert, filter and output transactions as a streaming pipeline. Call {@link #initialize()} first.
+     * @param filter only output entries that match
+     * @param executor executor to run the stages on, it needs a thread per stage
+     * @param bufferCapacity maximum number of items buffered between two stages
+     * @return a future for the number of entries output, completed after they are flushed
+     */
+    default CompletableFuture<Long> exportStreaming(Predicate<LedgerTransaction> filter, Executor executor, int bufferCapacity) {
+        return exportStreaming(this::collectData, filter, executor, bufferCapacity);
+    }
+
+    /**
+     * Convert, filter and output transactions from another source as a streaming pipeline, for example an
+     * already collected list. Call {@link #initialize()} first.
+     * @param source given a consumer, passes it each transaction in chronological order
+     * @param filter only output entries that match
+     * @param executor executor to run the stages on, it needs a thread per stage
+     * @param bufferCapacity maximum number of items buffered between two stages
+     * @return a future for the number of entries output, completed after they are flushed
+     */
+    default CompletableFuture<Long> exportStreaming(Consumer<Consumer<TransactionData>> source, Predicate<LedgerTransaction> filter, Executor executor, int bufferCapacity) {
+        return new ExportPipeline(this, 1, executor, bufferCapacity).run(source, filter);
+    }
+}
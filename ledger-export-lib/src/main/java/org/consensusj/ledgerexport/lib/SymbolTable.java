@@ -0,0 +1,146 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Interned symbols (e.g. account names or currency codes) with small integer ids, so they can be stored and compared
+ * as {@code int}s. Each symbol also has an output form (e.g. padded or quoted for Ledger-CLI), pre-computed as a
+ * {@code String} and as UTF-8 bytes. Symbols are never removed.
+ * <p>
+ * Looking up an existing symbol doesn't lock. Adding is synchronized, and the arrays are replaced (when they grow)
+ * by copies published through a volatile field, so ids can be resolved without locking by any thread.
+ */
+final class SymbolTable {
+    private final UnaryOperator<String> outputForm;
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile Entries entries = new Entries(16);
+
+    private record Entries(String[] names, String[] outputs, byte[][] outputBytes) {
+        Entries(int capacity) {
+            this(new String[capacity], new String[capacity], new byte[capacity][]);
+        }
+
+        Entries grow() {
+            int capacity = names.length * 2;
+            return new Entries(Arrays.copyOf(names, capacity), Arrays.copyOf(outputs, capacity), Arrays.copyOf(outputBytes, capacity));
+        }
+    }
+
+    /**
+     * @param outputForm function from a symbol to its output form
+     */
+    SymbolTable(UnaryOperator<String> outputForm) {
+        this.outputForm = outputForm;
+    }
+
+    /**
+     * @param symbol a symbol
+     * @return the id of the symbol, adding it if it is new
+     */
+    int id(String symbol) {
+        Integer id = ids.get(symbol);
+        return (id != null) ? id : add(symbol);
+    }
+
+    /**
+     * @param id symbol id
+     * @return the symbol
+     */
+    String name(int id) {
+        return entries.names()[id];
+    }
+
+    /**
+     * @param id symbol id
+     * @return the output form of the symbol
+     */
+    String output(int id) {
+        return entries.outputs()[id];
+    }
+
+    /**
+     * @param id symbol id
+     * @return the output form of the symbol encoded as UTF-8, must not be modified
+     */
+    byte[] outputBytes(int id) {
+        return entries.outputBytes()[id];
+    }
+
+    /**
+     * @return number of symbols
+     */
+    int size() {
+        return ids.size();
+    }
+
+    /**
+     * Create a predicate that tests whether a symbol contains a string. The result for each id is computed once.
+     * The predicate isn't thread-safe.
+     * @param substring string to search for
+     * @return predicate on symbol ids
+     */
+    IntPredicate containing(String substring) {
+        return matching(name -> name.contains(substring));
+    }
+
+    /**
+     * Create a predicate that tests symbols by name. The result for each id is computed once.
+     * The predicate isn't thread-safe.
+     * @param predicate predicate on symbol names
+     * @return predicate on symbol ids
+     */
+    IntPredicate matching(Predicate<String> predicate) {
+        return new IntPredicate() {
+            // 0 if not computed yet, 1 if it doesn't match, 2 if it does
+            private byte[] results = new byte[16];
+
+            @Override
+            public boolean test(int id) {
+                if (id >= results.length) {
+                    results = Arrays.copyOf(results, Math.max(id + 1, results.length * 2));
+                }
+                if (results[id] == 0) {
+                    results[id] = (byte) (predicate.test(name(id)) ? 2 : 1);
+                }
+                return results[id] == 2;
+            }
+        };
+    }
+
+    private synchronized int add(String symbol) {
+        Integer existing = ids.get(symbol);
+        if (existing != null) {
+            return existing;
+        }
+        int id = ids.size();
+        Entries e = (id == entries.names().length) ? entries.grow() : entries;
+        String output = outputForm.apply(symbol);
+        e.names()[id] = symbol;
+        e.outputs()[id] = output;
+        e.outputBytes()[id] = output.getBytes(StandardCharsets.UTF_8);
+        entries = e;
+        ids.put(symbol, id);
+        return id;
+    }
+}
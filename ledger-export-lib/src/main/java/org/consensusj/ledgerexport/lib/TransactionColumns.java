@@ -0,0 +1,495 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import foundation.omni.CurrencyID;
+import foundation.omni.json.pojo.OmniTransactionInfo;
+import foundation.omni.tx.Transactions.TransactionType;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.consensusj.bitcoin.json.pojo.BitcoinTransactionInfo;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Compact column-oriented store for the wallet ({@code listtransactions}) and Omni ({@code omni_listtransactions})
+ * entries of an export. Only the fields used to create ledger transactions are kept: times and amounts in
+ * {@code long[]} columns, and categories, labels, addresses and property ids dictionary-encoded as {@code int[]}
+ * columns. The JSON objects an entry was copied from can be garbage-collected as soon as it is added.
+ * <p>
+ * Entries are read through {@link WalletEntry} and {@link OmniEntry} views. Adding is synchronized; views can be read
+ * without locking by any thread that obtained the entry after it was added (e.g. through
+ * {@link BitcoinTransactionsContainer}), because columns are only replaced (when they grow) by copies published
+ * through a volatile field.
+ */
+public class TransactionColumns {
+    private static final int initialCapacity = 1024;
+    private static final int none = -1;
+    private static final long noFee = Long.MIN_VALUE;
+    private static final byte abandonedFlag = 1;
+    private static final byte conflictsFlag = 2;
+    private static final byte validFlag = 1;
+    private static final byte amountFlag = 2;
+    private static final TransactionType[] transactionTypes = TransactionType.values();
+
+    // All dictionaries and counts are only modified holding this object's lock
+    private final Dictionary<String> strings = new Dictionary<>();
+    private final Dictionary<Address> addresses = new Dictionary<>();
+    private final Dictionary<CurrencyID> properties = new Dictionary<>();
+    private volatile WalletColumns wallet = new WalletColumns(initialCapacity);
+    private volatile OmniColumns omni = new OmniColumns(initialCapacity);
+    private int walletCount;
+    private int omniCount;
+
+    private static final class WalletColumns {
+        final long[] time;          // Epoch seconds
+        final long[] amount;        // Satoshis
+        final long[] fee;           // Satoshis or noFee
+        final int[] vout;
+        final int[] category;
+        final int[] label;
+        final int[] comment;
+        final int[] address;
+        final byte[] flags;
+
+        WalletColumns(int capacity) {
+            time = new long[capacity];
+            amount = new long[capacity];
+            fee = new long[capacity];
+            vout = new int[capacity];
+            category = new int[capacity];
+            label = new int[capacity];
+            comment = new int[capacity];
+            address = new int[capacity];
+            flags = new byte[capacity];
+        }
+
+        WalletColumns(WalletColumns c, int capacity) {
+            time = Arrays.copyOf(c.time, capacity);
+            amount = Arrays.copyOf(c.amount, capacity);
+            fee = Arrays.copyOf(c.fee, capacity);
+            vout = Arrays.copyOf(c.vout, capacity);
+            category = Arrays.copyOf(c.category, capacity);
+            label = Arrays.copyOf(c.label, capacity);
+            comment = Arrays.copyOf(c.comment, capacity);
+            address = Arrays.copyOf(c.address, capacity);
+            flags = Arrays.copyOf(c.flags, capacity);
+        }
+    }
+
+    private static final class OmniColumns {
+        final int[] typeInt;
+        final int[] type;
+        final byte[] transactionType;   // TransactionType ordinal + 1, or 0 if unknown
+        final long[] amount;            // Unscaled value of the decimal amount
+        final byte[] amountScale;
+        final int[] propertyId;
+        final int[] propertyIdDesired;
+        final int[] sendingAddress;
+        final int[] referenceAddress;
+        final byte[] flags;
+
+        OmniColumns(int capacity) {
+            typeInt = new int[capacity];
+            type = new int[capacity];
+            transactionType = new byte[capacity];
+            amount = new long[capacity];
+            amountScale = new byte[capacity];
+            propertyId = new int[capacity];
+            propertyIdDesired = new int[capacity];
+            sendingAddress = new int[capacity];
+            referenceAddress = new int[capacity];
+            flags = new byte[capacity];
+        }
+
+        OmniColumns(OmniColumns c, int capacity) {
+            typeInt = Arrays.copyOf(c.typeInt, capacity);
+            type = Arrays.copyOf(c.type, capacity);
+            transactionType = Arrays.copyOf(c.transactionType, capacity);
+            amount = Arrays.copyOf(c.amount, capacity);
+            amountScale = Arrays.copyOf(c.amountScale, capacity);
+            propertyId = Arrays.copyOf(c.propertyId, capacity);
+            propertyIdDesired = Arrays.copyOf(c.propertyIdDesired, capacity);
+            sendingAddress = Arrays.copyOf(c.sendingAddress, capacity);
+            referenceAddress = Arrays.copyOf(c.referenceAddress, capacity);
+            flags = Arrays.copyOf(c.flags, capacity);
+        }
+    }
+
+    // Append-only dictionary, readable without locking like the columns
+    private static final class Dictionary<T> {
+        private final Map<T, Integer> ids = new HashMap<>();
+        private volatile Object[] values = new Object[16];
+
+        int id(T value) {
+            if (value == null) {
+                return none;
+            }
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = ids.size();
+                if (id == values.length) {
+                    values = Arrays.copyOf(values, id * 2);
+                }
+                values[id] = value;
+                ids.put(value, id);
+            }
+            return id;
+        }
+
+        @SuppressWarnings("unchecked")
+        T get(int id) {
+            return (id != none) ? (T) values[id] : null;
+        }
+
+        int size() {
+            return ids.size();
+        }
+    }
+
+    /**
+     * The fields of a wallet entry that are stored, for adding entries that weren't bound to a
+     * {@link BitcoinTransactionInfo} (e.g. by a streaming decoder)
+     * @param time epoch seconds
+     * @param amount amount in satoshis (negative for sends)
+     * @param fee fee in satoshis (negative) or {@link #NO_FEE}
+     * @param vout output index
+     * @param category category, e.g. {@code send} or {@code receive}
+     * @param label label or {@code null}
+     * @param comment comment or {@code null}
+     * @param address address or {@code null}
+     * @param abandoned {@code true} if the transaction was abandoned
+     * @param walletConflicts {@code true} if the transaction has wallet conflicts
+     * @param confirmations number of confirmations when the entry was fetched (not stored, see
+     *                      {@link BitcoinTransactionData#confirmations()})
+     */
+    public record WalletRow(long time, long amount, long fee, int vout, String category, String label, String comment,
+                            Address address, boolean abandoned, boolean walletConflicts, int confirmations) {
+        /** Value of {@code fee} for entries without a fee */
+        public static final long NO_FEE = noFee;
+
+        /**
+         * @param info entry from {@code listtransactions} (or similar)
+         * @return the stored fields of the entry
+         */
+        public static WalletRow of(BitcoinTransactionInfo info) {
+            return new WalletRow(info.getTime().getEpochSecond(),
+                    info.getAmount().getValue(),
+                    (info.getFee() != null) ? info.getFee().getValue() : NO_FEE,
+                    info.getVout(),
+                    info.getCategory(),
+                    info.getLabel(),
+                    info.getComment().orElse(null),
+                    info.getAddress(),
+                    info.isAbandoned(),
+                    info.getWalletConflicts() != null && !info.getWalletConflicts().isEmpty(),
+                    info.getConfirmations());
+        }
+    }
+
+    /**
+     * Copy the needed fields of a wallet entry
+     * @param info entry from {@code listtransactions} (or similar)
+     * @return a view of the copy
+     */
+    public WalletEntry add(BitcoinTransactionInfo info) {
+        return add(WalletRow.of(info));
+    }
+
+    /**
+     * Copy a wallet entry
+     * @param fields fields of the entry
+     * @return a view of the copy
+     */
+    public synchronized WalletEntry add(WalletRow fields) {
+        if (walletCount == wallet.time.length) {
+            wallet = new WalletColumns(wallet, walletCount * 2);
+        }
+        WalletColumns c = wallet;
+        int row = walletCount++;
+        c.time[row] = fields.time();
+        c.amount[row] = fields.amount();
+        c.fee[row] = fields.fee();
+        c.vout[row] = fields.vout();
+        c.category[row] = strings.id(fields.category());
+        c.label[row] = strings.id(fields.label());
+        c.comment[row] = strings.id(fields.comment());
+        c.address[row] = addresses.id(fields.address());
+        c.flags[row] = (byte) ((fields.abandoned() ? abandonedFlag : 0) | (fields.walletConflicts() ? conflictsFlag : 0));
+        return new WalletEntry(row);
+    }
+
+    /**
+     * Copy the needed fields of an Omni transaction
+     * @param info entry from {@code omni_listtransactions}
+     * @return a view of the copy
+     */
+    public synchronized OmniEntry add(OmniTransactionInfo info) {
+        if (omniCount == omni.typeInt.length) {
+            omni = new OmniColumns(omni, omniCount * 2);
+        }
+        OmniColumns c = omni;
+        int row = omniCount++;
+        c.typeInt[row] = info.getTypeInt();
+        c.type[row] = strings.id(info.getType());
+        c.transactionType[row] = (byte) info.transactionType().map(t -> t.ordinal() + 1).orElse(0).intValue();
+        byte flags = info.isValid() ? validFlag : 0;
+        if (info.getAmount() != null) {
+            BigDecimal amount = info.getAmount().bigDecimalValue();
+            c.amount[row] = amount.unscaledValue().longValueExact();
+            c.amountScale[row] = (byte) amount.scale();
+            flags |= amountFlag;
+        }
+        c.propertyId[row] = properties.id(info.getPropertyId());
+        c.propertyIdDesired[row] = properties.id(info.getPropertyIdDesired());
+        c.sendingAddress[row] = addresses.id(info.getSendingAddress());
+        c.referenceAddress[row] = addresses.id(info.getReferenceAddress());
+        c.flags[row] = flags;
+        return new OmniEntry(row);
+    }
+
+    /**
+     * Dictionary-encode addresses
+     * @param addressList addresses
+     * @return address ids, see {@link #address(int)}
+     */
+    public synchronized int[] addressIds(List<Address> addressList) {
+        return addressList.stream().mapToInt(addresses::id).toArray();
+    }
+
+    /**
+     * @param id address id from {@link #addressIds(List)}
+     * @return the address
+     */
+    public Address address(int id) {
+        return addresses.get(id);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("TransactionColumns[wallet=%d, omni=%d, strings=%d, addresses=%d, properties=%d]",
+                walletCount, omniCount, strings.size(), addresses.size(), properties.size());
+    }
+
+    /**
+     * View of a wallet entry, accessors are named like those of {@link BitcoinTransactionInfo}
+     */
+    public final class WalletEntry {
+        private final int row;
+
+        private WalletEntry(int row) {
+            this.row = row;
+        }
+
+        /**
+         * @return transaction time
+         */
+        public Instant getTime() {
+            return Instant.ofEpochSecond(wallet.time[row]);
+        }
+
+        /**
+         * @return category, e.g. {@code send} or {@code receive}
+         */
+        public String getCategory() {
+            return strings.get(wallet.category[row]);
+        }
+
+        /**
+         * @return address or {@code null} if none
+         */
+        public Address getAddress() {
+            return addresses.get(wallet.address[row]);
+        }
+
+        /**
+         * @return amount (negative for sends)
+         */
+        public Coin getAmount() {
+            return Coin.valueOf(wallet.amount[row]);
+        }
+
+        /**
+         * @return amount in satoshis, see {@link #getAmount()}
+         */
+        public long getAmountValue() {
+            return wallet.amount[row];
+        }
+
+        /**
+         * @return fee (negative) or {@code null} if none
+         */
+        public Coin getFee() {
+            long fee = wallet.fee[row];
+            return (fee != noFee) ? Coin.valueOf(fee) : null;
+        }
+
+        /**
+         * @return {@code true} if the entry has a fee
+         */
+        public boolean hasFee() {
+            return wallet.fee[row] != noFee;
+        }
+
+        /**
+         * @return fee in satoshis (negative), or zero if none
+         */
+        public long getFeeValue() {
+            long fee = wallet.fee[row];
+            return (fee != noFee) ? fee : 0;
+        }
+
+        /**
+         * @return label
+         */
+        public String getLabel() {
+            return strings.get(wallet.label[row]);
+        }
+
+        /**
+         * @return comment, if any
+         */
+        public Optional<String> getComment() {
+            return Optional.ofNullable(strings.get(wallet.comment[row]));
+        }
+
+        /**
+         * @return output index
+         */
+        public int getVout() {
+            return wallet.vout[row];
+        }
+
+        /**
+         * @return {@code true} if the transaction was abandoned
+         */
+        public boolean isAbandoned() {
+            return (wallet.flags[row] & abandonedFlag) != 0;
+        }
+
+        /**
+         * @return {@code true} if the transaction has wallet conflicts
+         */
+        public boolean hasWalletConflicts() {
+            return (wallet.flags[row] & conflictsFlag) != 0;
+        }
+    }
+
+    /**
+     * View of an Omni transaction, accessors are named like those of {@link OmniTransactionInfo}
+     */
+    public final class OmniEntry {
+        private final int row;
+
+        private OmniEntry(int row) {
+            this.row = row;
+        }
+
+        /**
+         * @return transaction type number
+         */
+        public int getTypeInt() {
+            return omni.typeInt[row];
+        }
+
+        /**
+         * @return transaction type name
+         */
+        public String getType() {
+            return strings.get(omni.type[row]);
+        }
+
+        /**
+         * @return transaction type, if known
+         */
+        public Optional<TransactionType> transactionType() {
+            int type = omni.transactionType[row];
+            return (type != 0) ? Optional.of(transactionTypes[type - 1]) : Optional.empty();
+        }
+
+        /**
+         * @return amount or {@code null} if the transaction type has none
+         */
+        public BigDecimal getAmount() {
+            OmniColumns c = omni;
+            return ((c.flags[row] & amountFlag) != 0) ? BigDecimal.valueOf(c.amount[row], c.amountScale[row]) : null;
+        }
+
+        /**
+         * @return {@code true} if the transaction type has an amount
+         */
+        public boolean hasAmount() {
+            return (omni.flags[row] & amountFlag) != 0;
+        }
+
+        /**
+         * @return the amount in units of 10<sup>-scale</sup> (see {@link #getAmountScale()}), or zero if none
+         */
+        public long getAmountUnits() {
+            OmniColumns c = omni;
+            return ((c.flags[row] & amountFlag) != 0) ? c.amount[row] : 0;
+        }
+
+        /**
+         * @return number of decimal places of the amount, or zero if none
+         */
+        public int getAmountScale() {
+            OmniColumns c = omni;
+            return ((c.flags[row] & amountFlag) != 0) ? c.amountScale[row] : 0;
+        }
+
+        /**
+         * @return property id or {@code null} if none
+         */
+        public CurrencyID getPropertyId() {
+            return properties.get(omni.propertyId[row]);
+        }
+
+        /**
+         * @return desired property id (for MetaDEx trades) or {@code null} if none
+         */
+        public CurrencyID getPropertyIdDesired() {
+            return properties.get(omni.propertyIdDesired[row]);
+        }
+
+        /**
+         * @return sending address
+         */
+        public Address getSendingAddress() {
+            return addresses.get(omni.sendingAddress[row]);
+        }
+
+        /**
+         * @return reference address or {@code null} if none
+         */
+        public Address getReferenceAddress() {
+            return addresses.get(omni.referenceAddress[row]);
+        }
+
+        /**
+         * @return {@code true} if valid
+         */
+        public boolean isValid() {
+            return (omni.flags[row] & validFlag) != 0;
+        }
+    }
+}
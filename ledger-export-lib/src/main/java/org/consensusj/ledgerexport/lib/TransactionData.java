@@ -18,11 +18,19 @@ package org.consensusj.ledgerexport.lib;
 import org.bitcoinj.core.Sha256Hash;
 
 import java.time.Instant;
+import java.util.Comparator;
 
 /**
  *
  */
 public interface TransactionData {
+    /**
+     * Chronological order of exported transactions. Transactions with the same time (e.g. in the same block)
+     * are ordered by id, so the order doesn't depend on the order they were fetched in.
+     */
+    Comparator<TransactionData> CHRONOLOGICAL = Comparator.comparing(TransactionData::time)
+            .thenComparing(TransactionData::txId);
+
     /**
      * @return Transaction time
      */
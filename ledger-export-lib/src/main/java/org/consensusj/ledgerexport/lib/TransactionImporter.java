@@ -17,26 +17,29 @@ package org.consensusj.ledgerexport.lib;
 
 import foundation.omni.CurrencyID;
 import foundation.omni.Ecosystem;
-import foundation.omni.json.pojo.OmniTransactionInfo;
 import foundation.omni.money.OmniCurrencyCode;
 import foundation.omni.net.OmniNetworkParameters;
 import org.bitcoinj.core.Address;
-import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.Sha256Hash;
-import org.consensusj.bitcoin.json.pojo.BitcoinTransactionInfo;
+import org.consensusj.ledgerexport.lib.TransactionColumns.OmniEntry;
+import org.consensusj.ledgerexport.lib.TransactionColumns.WalletEntry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 
 
 // TODO: Allow various types of configuration in its constructor (e.g. income/expense account mappings, additional hints, etc.)
@@ -47,14 +50,51 @@ import java.util.stream.Stream;
 public class TransactionImporter {
     private static final Logger log = LoggerFactory.getLogger(TransactionImporter.class);
     private static final String BTC_CODE = OmniCurrencyCode.BTC.toString();
+    private static final int BTC_ID = LedgerTransaction.CURRENCIES.id(BTC_CODE);
+    // Ids of the ledger currency codes of Omni properties
+    private static final Map<CurrencyID, Integer> tickerIds = new ConcurrentHashMap<>();
     private static final String walletAccount = "Assets:Crypto:OmniCore";
     private static final String defaultIncome = "Income:Misc";
     private static final String defaultExpense = "Expense:Misc";
     private static final Map<String, String> tickerMap = Map.of("OMNI_SPT#57", "SAFEAPP");
+    // Chunks per thread for parallel imports, more than one so threads that finish early can take another
+    private static final int chunksPerThread = 4;
+    // Pools for parallel imports by parallelism, shared by all calls (e.g. one per block with --watch). Their
+    // threads are daemon threads and exit when idle.
+    private static final Map<Integer, ForkJoinPool> pools = new ConcurrentHashMap<>();
     private final NetworkParameters netParams;
     private final Address exodusAddr;
 
     private final Map<Address, AddressAccount> addressAccountMap;
+    private final ConversionKind omniReceived;
+    private final ConversionKind omniSent;
+    private final ConversionKind bitcoin;
+    private final ConversionKind bitcoinSelfSend;
+    private final ConversionKind omniMatch;
+
+    // A kind of transaction conversion, reported to the metrics and Flight Recorder
+    private record ConversionKind(String name, ExportTimer timer) {
+        ConversionKind(ExportMetrics metrics, String name) {
+            this(name, metrics.conversion(name));
+        }
+
+        // Convert and report, counting an exception thrown by the conversion as an error
+        <T extends TransactionData> LedgerTransaction convert(T data, Function<T, LedgerTransaction> conversion) {
+            long start = System.nanoTime();
+            ExportEvents.Conversion event = new ExportEvents.Conversion();
+            event.begin();
+            LedgerTransaction transaction;
+            try {
+                transaction = conversion.apply(data);
+            } catch (RuntimeException e) {
+                timer.record(System.nanoTime() - start, 1, 0, 1);
+                throw e;
+            }
+            timer.record(System.nanoTime() - start, 1, 0, 0);
+            event.report(data, name, transaction);
+            return transaction;
+        }
+    }
 
     /**
      * Construct with empty account mapping list
@@ -70,10 +110,26 @@ public class TransactionImporter {
      * @param addressAccounts A list of addresses to map to Ledger income accounts
      */
     public TransactionImporter(NetworkParameters netParams, List<AddressAccount> addressAccounts) {
+        this(netParams, addressAccounts, new ExportMetrics());
+    }
+
+    /**
+     * Construct with account mapping list and metrics
+     * @param netParams bitcoinj network params
+     * @param addressAccounts A list of addresses to map to Ledger income accounts
+     * @param metrics records the time of each conversion (and failed conversions as errors) by kind of transaction: {@code omniReceived},
+     *                {@code omniSent}, {@code bitcoin}, {@code bitcoinSelfSend} and {@code omniMatch}
+     */
+    public TransactionImporter(NetworkParameters netParams, List<AddressAccount> addressAccounts, ExportMetrics metrics) {
         this.netParams = netParams;
         this.exodusAddr = OmniNetworkParameters.fromBitcoinParms(netParams).getExodusAddress();
         this.addressAccountMap = addressAccounts.stream()
                 .collect(Collectors.toMap(AddressAccount::address, Function.identity()));
+        this.omniReceived = new ConversionKind(metrics, "omniReceived");
+        this.omniSent = new ConversionKind(metrics, "omniSent");
+        this.bitcoin = new ConversionKind(metrics, "bitcoin");
+        this.bitcoinSelfSend = new ConversionKind(metrics, "bitcoinSelfSend");
+        this.omniMatch = new ConversionKind(metrics, "omniMatch");
     }
 
     /**
@@ -83,30 +139,60 @@ public class TransactionImporter {
      */
     public List<LedgerTransaction> importTransactions(List<TransactionData> consTxs) {
         return consTxs.stream()
-                .map(this::fromTransactionData)
+                .map(this::importTransaction)
                 .toList();
     }
-    
-    private LedgerTransaction fromTransactionData(TransactionData data) {
+
+    /**
+     * Import consolidated transactions to Ledger objects using multiple threads. The list is split into chunks that
+     * are converted in parallel and concatenated in order, so the result is the same as {@link #importTransactions(List)}.
+     * @param consTxs list of consolidated transactions to import
+     * @param parallelism number of threads to use, {@code 1} to import on the calling thread
+     * @return list of Ledger transactions
+     */
+    public List<LedgerTransaction> importTransactions(List<TransactionData> consTxs, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        if (parallelism == 1 || consTxs.size() < 2) {
+            return importTransactions(consTxs);
+        }
+        int chunkSize = Math.max(1, (consTxs.size() + parallelism * chunksPerThread - 1) / (parallelism * chunksPerThread));
+        ForkJoinPool pool = pools.computeIfAbsent(parallelism, ForkJoinPool::new);
+        List<ForkJoinTask<List<LedgerTransaction>>> chunks = IntStream.iterate(0, start -> start < consTxs.size(), start -> start + chunkSize)
+                .mapToObj(start -> pool.submit(() -> importTransactions(consTxs.subList(start, Math.min(start + chunkSize, consTxs.size())))))
+                .toList();
+        return chunks.stream()
+                .map(ForkJoinTask::join)
+                .flatMap(List::stream)
+                .toList();
+    }
+
+    /**
+     * Import a single consolidated transaction
+     * @param data consolidated transaction to import
+     * @return Ledger transaction
+     */
+    public LedgerTransaction importTransaction(TransactionData data) {
         if (data instanceof OmniTransactionData omniData && omniData.isOmni()) {
-            if (omniData.transactionInfos().size() == 1) {
-                if (omniData.transactionInfos().get(0).getCategory().equals("send")) {
+            if (omniData.walletEntries().size() == 1) {
+                if (omniData.walletEntries().get(0).getCategory().equals("send")) {
                     // THIS SHOULD NEVER HAPPEN ON AN OMNI SEND
                     log.warn("Unexpected: Our wallet sent an Omni tx with only one BitcoinTransactionInfo {}", data.txId());
                 }
-                return fromReceivedOmni(omniData);
+                return omniReceived.convert(omniData, this::fromReceivedOmni);
             } else {
                 log.debug("Omni Tx {}", omniData.txId());
-                return fromSentOmni(omniData);
+                return omniSent.convert(omniData, this::fromSentOmni);
             }
         } else if (data instanceof BitcoinTransactionData bitcoinData) {
-            if (bitcoinData.transactionInfos().size() == 1) {
-                return fromBitcoin(bitcoinData);
+            if (bitcoinData.walletEntries().size() == 1) {
+                return bitcoin.convert(bitcoinData, this::fromBitcoin);
             } else {
-                return fromBitcoinSelfSend(bitcoinData);
+                return bitcoinSelfSend.convert(bitcoinData, this::fromBitcoinSelfSend);
             }
         } else if (data instanceof OmniMatchData omniMatchData) {
-            return fromOmniMatchData(omniMatchData);
+            return omniMatch.convert(omniMatchData, this::fromOmniMatchData);
         } else {
             throw new IllegalStateException();
         }
@@ -127,9 +213,9 @@ public class TransactionImporter {
         splits.add(new LedgerTransaction.Split(walletAccount, amountPurchased, currencyPurchased));
 
 
-        List<String> comments = List.of(
-                commentTxId(omniMatchData.txId()),
-                commentOmniDexTrade(omniMatchData)
+        List<LedgerTransaction.Comment> comments = List.of(
+                new TxIdComment(omniMatchData.txId()),
+                new DexTradeComment(omniMatchData)
         );
 
         return new LedgerTransaction(omniMatchData.txId(),
@@ -140,57 +226,58 @@ public class TransactionImporter {
     }
 
     private LedgerTransaction fromReceivedOmni(OmniTransactionData otd) {
-        if (otd.transactionInfos().size() != 1) {
+        if (otd.walletEntries().size() != 1) {
             throw new IllegalStateException("expected single Bitcoin transaction");
         }
-        if (otd.omniTransactionInfo() == null) {
+        if (otd.omniEntry() == null) {
             throw new IllegalStateException("Expected Omni transaction");
         }
-        BitcoinTransactionInfo bitcoin = otd.transactionInfos().get(0);
-        OmniTransactionInfo omni = otd.omniTransactionInfo();
+        WalletEntry bitcoin = otd.walletEntries().get(0);
+        OmniEntry omni = otd.omniEntry();
         if (omni.getTypeInt() != 0) {
             log.warn("Expected to be receiving Omni and tx type is not SIMPLE_SEND");
         }
         boolean isSend = bitcoin.getCategory().equals("send");
         String account = isSend ? defaultExpense : incomeAccount(bitcoin.getAddress());
-        BigDecimal fee = (bitcoin.getFee() != null) ? bitcoin.getFee().toBtc() : BigDecimal.ZERO;
+        long fee = bitcoin.getFeeValue();
 
         List<LedgerTransaction.Split> splits = new ArrayList<>();
 
         // Wallet account
-        BigDecimal amount = calcAmount(bitcoin, omni);
-        String currency = calcCurrency(omni);
-        BigDecimal accountAmount = isSend ? amount.negate() : amount;
-        splits.add(new LedgerTransaction.Split(walletAccount, accountAmount, currency));
+        long amount = omni.getAmountUnits();
+        int scale = omni.getAmountScale();
+        int currency = calcCurrency(omni);
+        long accountAmount = isSend ? -amount : amount;
+        splits.add(split(walletAccount, accountAmount, scale, currency));
 
         // Add BTC dust to wallet account and also count it as "income"
         if (!isSend) {
-            BigDecimal dustAmount = bitcoin.getAmount().toBtc();
-            splits.add(new LedgerTransaction.Split(walletAccount, dustAmount, BTC_CODE));
-            splits.add(new LedgerTransaction.Split("Income:OmniDust", dustAmount.negate(), BTC_CODE));
+            long dustAmount = bitcoin.getAmountValue();
+            splits.add(btcSplit(walletAccount, dustAmount));
+            splits.add(btcSplit("Income:OmniDust", -dustAmount));
         }
 
         // Other account
 
-        BigDecimal otherAmount = isSend ? amount : amount.negate();
-        splits.add(new LedgerTransaction.Split(account, otherAmount, currency));
+        long otherAmount = isSend ? amount : -amount;
+        splits.add(split(account, otherAmount, scale, currency));
 
         // Fee
         if (isSend) {
-            if (fee.compareTo(BigDecimal.ZERO) != 0) {
+            if (fee != 0) {
                 // Deduct fee from BTC assets
-                splits.add(new LedgerTransaction.Split(walletAccount, fee, BTC_CODE));
-                splits.add(new LedgerTransaction.Split("Expense:TransactionFees",fee.negate(), BTC_CODE));
+                splits.add(btcSplit(walletAccount, fee));
+                splits.add(btcSplit("Expense:TransactionFees", -fee));
             }
         }
 
-        List<String> comments = List.of(
-                commentTxId(bitcoin.getTxId()),
-                commentBtcTx(bitcoin),
-                commentOmniTx(omni)
+        List<LedgerTransaction.Comment> comments = List.of(
+                new TxIdComment(otd.txId()),
+                new WalletEntryComment(bitcoin),
+                new OmniEntryComment(omni)
         );
 
-        return new LedgerTransaction(bitcoin.getTxId(),
+        return new LedgerTransaction(otd.txId(),
                 bitcoin.getTime(),
                 bitcoin.getLabel(),
                 comments,
@@ -198,30 +285,31 @@ public class TransactionImporter {
     }
 
     private LedgerTransaction fromSentOmni(OmniTransactionData otd) {
-        OmniTransactionInfo omniTx = otd.omniTransactionInfo();
+        OmniEntry omniTx = otd.omniEntry();
         if (!omniTx.isValid() || isTestEcosystem(omniTx) ) {
             return fromOmniTestEcosystem(otd);
         }
 
         List<LedgerTransaction.Split> splits = new ArrayList<>();
 
-        BigDecimal amount = omniTx.getAmount() != null ? omniTx.getAmount().bigDecimalValue() : BigDecimal.ZERO;
-        String currency = calcCurrency(omniTx);
+        long amount = omniTx.getAmountUnits();
+        int scale = omniTx.getAmountScale();
+        int currency = calcCurrency(omniTx);
 
         log.debug("Omni Transaction Type: {}", omniTx.getTypeInt());
         omniTx.transactionType().ifPresentOrElse(type -> {
             switch (type) {
                 case SIMPLE_SEND -> {
                     // Wallet account
-                    splits.add(new LedgerTransaction.Split(walletAccount, amount.negate(), currency));
+                    splits.add(split(walletAccount, -amount, scale, currency));
                     // Other account
-                    splits.add(new LedgerTransaction.Split(defaultExpense, amount, currency));
+                    splits.add(split(defaultExpense, amount, scale, currency));
                 }
                 case METADEX_TRADE -> log.warn("Metadex Trade");
                 case CREATE_PROPERTY_FIXED -> {
                     // Add new tokens to Wallet account
-                    splits.add(new LedgerTransaction.Split(walletAccount, amount, currency));
-                    splits.add(new LedgerTransaction.Split("Income:TokenCreation", amount.negate(), currency));
+                    splits.add(split(walletAccount, amount, scale, currency));
+                    splits.add(split("Income:TokenCreation", -amount, scale, currency));
                 }
                 default -> log.warn("Unsupported Transaction Type: {}({})", omniTx.getType(), omniTx.getTypeInt());
             }
@@ -233,10 +321,10 @@ public class TransactionImporter {
 
         splits.addAll(feeSplits);
 
-        List<String> comments = new ArrayList<>();
-        comments.add(commentTxId(otd.txId()));
-        comments.addAll(commentsBtcTxs(otd.transactionInfos()));
-        comments.add(commentOmniTx(omniTx));
+        List<LedgerTransaction.Comment> comments = new ArrayList<>();
+        comments.add(new TxIdComment(otd.txId()));
+        comments.addAll(commentsBtcTxs(otd.walletEntries()));
+        comments.add(new OmniEntryComment(omniTx));
 
         return new LedgerTransaction(otd.txId(),
                 otd.time(),
@@ -248,9 +336,9 @@ public class TransactionImporter {
     private LedgerTransaction fromOmniTestEcosystem(OmniTransactionData otd) {
         List<LedgerTransaction.Split> splits = omniFees(otd);
 
-        List<String> comments = new ArrayList<>();
-        comments.add(commentTxId(otd.txId()));
-        comments.addAll(commentsBtcTxs(otd.transactionInfos()));
+        List<LedgerTransaction.Comment> comments = new ArrayList<>();
+        comments.add(new TxIdComment(otd.txId()));
+        comments.addAll(commentsBtcTxs(otd.walletEntries()));
 
         return new LedgerTransaction(otd.txId(),
                 otd.time(),
@@ -260,110 +348,109 @@ public class TransactionImporter {
     }
 
     private List<LedgerTransaction.Split> omniFees(OmniTransactionData otd) {
-        var omniTx = otd.omniTransactionInfo();
+        var omniTx = otd.omniEntry();
 
         // Miner fee
-        var minerFee = otd.transactionInfos().stream()
-                .map(BitcoinTransactionInfo::getFee)
-                .filter(Objects::nonNull)
+        long minerFee = otd.walletEntries().stream()
+                .filter(WalletEntry::hasFee)
+                .mapToLong(WalletEntry::getFeeValue)
                 .findFirst()
-                .orElse(Coin.ZERO);
-;
+                .orElse(0);
+
         // Exodus Fee
-        var exodusFee = otd.transactionInfos()
+        long exodusFee = otd.walletEntries()
                 .stream()
                 .filter(bti -> exodusAddr.equals(bti.getAddress()))
+                .mapToLong(WalletEntry::getAmountValue)
                 .findFirst()
-                .map(BitcoinTransactionInfo::getAmount)
-                .orElse(Coin.ZERO);
+                .orElse(0);
 
         // Reference Address Dust/Fee
-        var referenceFee = (omniTx.getReferenceAddress() != null)
-                ? otd.transactionInfos()
+        long referenceFee = (omniTx.getReferenceAddress() != null)
+                ? otd.walletEntries()
                     .stream()
                     .filter(bti -> omniTx.getReferenceAddress().equals(bti.getAddress()))
+                    .mapToLong(WalletEntry::getAmountValue)
                     .findFirst()
-                    .map(BitcoinTransactionInfo::getAmount)
-                    .orElse(Coin.ZERO)
-                : Coin.ZERO;
+                    .orElse(0)
+                : 0;
 
         // Class B Multi-sig Dust/Fee
         // TODO: Make this more robust (don't assume a null address is an Omni Class B multi-sig output)
-        var multiSigFee = otd.transactionInfos()
+        long multiSigFee = otd.walletEntries()
                 .stream()
                 .filter(bti -> bti.getAddress() == null)
-                .map(BitcoinTransactionInfo::getAmount)
-                .reduce(Coin.ZERO, Coin::add);
+                .mapToLong(WalletEntry::getAmountValue)
+                .reduce(0, Math::addExact);
 
-        var totalFee = Stream.of(minerFee, exodusFee, referenceFee, multiSigFee)
-                                        .reduce(Coin.ZERO, Coin::add);
+        long totalFee = LongStream.of(minerFee, exodusFee, referenceFee, multiSigFee)
+                                        .reduce(0, Math::addExact);
 
         List<LedgerTransaction.Split> splits = new ArrayList<>();
-        if (totalFee.signum() != 0) {
-            splits.add(new LedgerTransaction.Split(walletAccount, totalFee.toBtc(), BTC_CODE));
+        if (totalFee != 0) {
+            splits.add(btcSplit(walletAccount, totalFee));
         }
-        if (minerFee.signum() != 0) {
-            splits.add(new LedgerTransaction.Split("Expense:TransactionFees", minerFee.negate().toBtc(), BTC_CODE));
+        if (minerFee != 0) {
+            splits.add(btcSplit("Expense:TransactionFees", -minerFee));
         }
-        if (exodusFee.signum() != 0) {
-            splits.add(new LedgerTransaction.Split("Expense:ExodusFees", exodusFee.negate().toBtc(), BTC_CODE));
+        if (exodusFee != 0) {
+            splits.add(btcSplit("Expense:ExodusFees", -exodusFee));
         }
-        if (referenceFee.signum() != 0) {
-            splits.add(new LedgerTransaction.Split("Expense:ReferenceFees", referenceFee.negate().toBtc(), BTC_CODE));
+        if (referenceFee != 0) {
+            splits.add(btcSplit("Expense:ReferenceFees", -referenceFee));
         }
-        if (multiSigFee.signum() != 0) {
-            splits.add(new LedgerTransaction.Split("Expense:MultiSigFees", multiSigFee.negate().toBtc(), BTC_CODE));
+        if (multiSigFee != 0) {
+            splits.add(btcSplit("Expense:MultiSigFees", -multiSigFee));
         }
         return Collections.unmodifiableList(splits);
     }
 
     private LedgerTransaction fromBitcoin(BitcoinTransactionData btd) {
-        if (btd.transactionInfos().size() != 1) {
+        if (btd.walletEntries().size() != 1) {
             throw new IllegalStateException("expected single Bitcoin transaction");
         }
-        BitcoinTransactionInfo bitcoin = btd.transactionInfos().get(0);
+        WalletEntry bitcoin = btd.walletEntries().get(0);
         if (bitcoin.isAbandoned()) {
-            log.warn("abandoned transaction: {}", bitcoin.getTxId());
+            log.warn("abandoned transaction: {}", btd.txId());
         }
-        if (bitcoin.getWalletConflicts().size() > 0) {
-            log.warn("abandoned transaction: {}", bitcoin.getTxId());
+        if (bitcoin.hasWalletConflicts()) {
+            log.warn("abandoned transaction: {}", btd.txId());
         }
         boolean isSend = bitcoin.getCategory().equals("send");
         String account = isSend ? defaultExpense : incomeAccount(bitcoin.getAddress());
-        BigDecimal fee = (bitcoin.getFee() != null) ? bitcoin.getFee().toBtc() : BigDecimal.ZERO;
+        long fee = bitcoin.getFeeValue();
 
         List<LedgerTransaction.Split> splits = new ArrayList<>();
 
         // Wallet account
         // Amount will already be positive for incoming and negative for outgoing
-        BigDecimal amount = bitcoin.getAmount().toBtc();
-        String currency = BTC_CODE;
-        splits.add(new LedgerTransaction.Split(walletAccount, isSend ? amount.add(fee) : amount, currency));
+        long amount = bitcoin.getAmountValue();
+        splits.add(btcSplit(walletAccount, isSend ? Math.addExact(amount, fee) : amount));
 
         // Other account
-        BigDecimal otherAmount = isSend
-                ? amount // .subtract(fee)     // amount is negative, subtracting negative fee reduces magnitude
+        long otherAmount = isSend
+                ? amount // - fee     // amount is negative, subtracting negative fee reduces magnitude
                 : amount;
-        splits.add(new LedgerTransaction.Split(account, otherAmount.negate(), currency));
+        splits.add(btcSplit(account, -otherAmount));
 
         // Fee
         if (isSend) {
-            if (fee.compareTo(BigDecimal.ZERO) != 0) {
-                splits.add(new LedgerTransaction.Split("Expense:TransactionFees",fee.negate(), BTC_CODE));
+            if (fee != 0) {
+                splits.add(btcSplit("Expense:TransactionFees", -fee));
             }
         }
 
         List<Address> addresses = btd.addresses();
-        List<String> addressStrings = (addresses != null)
-                ? addresses.stream().map(Address::toString).toList()
+        List<AddressComment> addressComments = (addresses != null)
+                ? addresses.stream().map(AddressComment::new).toList()
                 : Collections.emptyList();
 
-        List<String> comments = new ArrayList<>();
-        comments.add(commentTxId(bitcoin.getTxId()));
-        comments.add(commentBtcTx(bitcoin));
-        comments.addAll(addressStrings);
+        List<LedgerTransaction.Comment> comments = new ArrayList<>();
+        comments.add(new TxIdComment(btd.txId()));
+        comments.add(new WalletEntryComment(bitcoin));
+        comments.addAll(addressComments);
 
-        return new LedgerTransaction(bitcoin.getTxId(),
+        return new LedgerTransaction(btd.txId(),
                 bitcoin.getTime(),
                 bitcoin.getLabel(),
                 comments,
@@ -371,43 +458,42 @@ public class TransactionImporter {
     }
 
     private LedgerTransaction fromBitcoinSelfSend(BitcoinTransactionData btd) {
-        List<BitcoinTransactionInfo> bts = btd.transactionInfos();
-        BigDecimal fee = bts.stream()
-                .map(BitcoinTransactionInfo::getFee)
-                .filter(Objects::nonNull)
+        List<WalletEntry> bts = btd.walletEntries();
+        long fee = bts.stream()
+                .filter(WalletEntry::hasFee)
+                .mapToLong(WalletEntry::getFeeValue)
                 .findFirst()
-                .orElse(Coin.ZERO)
-                .toBtc();
+                .orElse(0);
 
         List<LedgerTransaction.Split> splits = new ArrayList<>();
 
         // Wallet account
-        splits.add(new LedgerTransaction.Split(walletAccount, fee, BTC_CODE));
+        splits.add(btcSplit(walletAccount, fee));
 
         // Fee
-        if (fee.compareTo(BigDecimal.ZERO) != 0) {
-            splits.add(new LedgerTransaction.Split("Expense:TransactionFees", fee.negate(), BTC_CODE));
+        if (fee != 0) {
+            splits.add(btcSplit("Expense:TransactionFees", -fee));
         }
 
         List<Address> addresses = btd.addresses();
-        List<String> addressStrings = (addresses != null)
-                ? addresses.stream().map(Address::toString).toList()
+        List<AddressComment> addressComments = (addresses != null)
+                ? addresses.stream().map(AddressComment::new).toList()
                 : Collections.emptyList();
 
 
-        List<String> comments = new ArrayList<>();
-        comments.add(commentTxId(bts.get(0).getTxId()));
+        List<LedgerTransaction.Comment> comments = new ArrayList<>();
+        comments.add(new TxIdComment(btd.txId()));
         comments.addAll(commentsBtcTxs(bts));
-        comments.addAll(addressStrings);
+        comments.addAll(addressComments);
 
-        return new LedgerTransaction(bts.get(0).getTxId(),
+        return new LedgerTransaction(btd.txId(),
                 bts.get(0).getTime(),
                 "Self send (consolidating tx)",
                 comments,
                 splits);
     }
 
-    private boolean isTestEcosystem(OmniTransactionInfo tx) {
+    private boolean isTestEcosystem(OmniEntry tx) {
         return tx.transactionType().map(type -> switch(type) {
             case METADEX_TRADE ->  tx.getPropertyIdDesired().ecosystem() == Ecosystem.TOMNI;
             default -> tx.getPropertyId() != null && tx.getPropertyId().ecosystem() == Ecosystem.TOMNI;
@@ -419,57 +505,91 @@ public class TransactionImporter {
         return a != null ? a.account() : defaultIncome;
     }
 
-    private static String commentTxId(Sha256Hash txId) {
-        return txId.toString();
-    }
-
-    private static List<String> commentsBtcTxs(List<BitcoinTransactionInfo> bts) {
+    private static List<WalletEntryComment> commentsBtcTxs(List<WalletEntry> bts) {
         return bts.stream()
-                .map(TransactionImporter::commentBtcTx)
+                .map(WalletEntryComment::new)
                 .toList();
     }
 
-    private static String commentBtcTx(BitcoinTransactionInfo bt) {
-        return String.format("addr: %s (%s%s) %s vout: %d (%s)",
-                bt.getAddress(),
-                bt.getLabel(),
-                bt.getComment().map(s -> " : " + s).orElse(""),
-                bt.getAmount().toPlainString(),
-                bt.getVout(),
-                bt.getCategory());
+    // Comments are rendered only for transactions that are output, see LedgerTransaction.Comment
+
+    private record TxIdComment(Sha256Hash txId) implements LedgerTransaction.Comment {
+        @Override
+        public void appendTo(StringBuilder builder) {
+            HexFormat.of().formatHex(builder, txId.getBytes());
+        }
     }
 
-    private static String commentOmniTx(OmniTransactionInfo ot) {
-        Address refAddress = ot.getReferenceAddress();
-        String refAddrString = (refAddress != null) ? refAddress.toString() : "n/a";
-        return String.format("omni tx type: %s(%d), send-addr: %s, ref-addr: %s",
-                ot.getType(),
-                ot.getTypeInt(),
-                ot.getSendingAddress(),
-                refAddrString);
+    private record AddressComment(Address address) implements LedgerTransaction.Comment {
+        @Override
+        public void appendTo(StringBuilder builder) {
+            builder.append(address);
+        }
     }
 
-    private static String commentOmniDexTrade(OmniMatchData ot) {
-        return String.format("omni dex trade match: matching-addr: %s",
-                ot.match().getAddress());
+    private record WalletEntryComment(WalletEntry bt) implements LedgerTransaction.Comment {
+        @Override
+        public void appendTo(StringBuilder builder) {
+            builder.append("addr: ").append(bt.getAddress())
+                    .append(" (").append(bt.getLabel());
+            bt.getComment().ifPresent(s -> builder.append(" : ").append(s));
+            builder.append(") ");
+            appendPlainBtc(builder, bt.getAmountValue());
+            builder.append(" vout: ").append(bt.getVout())
+                    .append(" (").append(bt.getCategory()).append(')');
+        }
     }
 
-    private static BigDecimal calcAmount(BitcoinTransactionInfo bitcoin, OmniTransactionInfo omni) {
-        if (omni != null) {
-            return omni.getAmount() != null ? omni.getAmount().bigDecimalValue() : BigDecimal.ZERO;
-        } else {
-            return bitcoin.getAmount().toBtc();
+    private record OmniEntryComment(OmniEntry ot) implements LedgerTransaction.Comment {
+        @Override
+        public void appendTo(StringBuilder builder) {
+            Address refAddress = ot.getReferenceAddress();
+            builder.append("omni tx type: ").append(ot.getType())
+                    .append('(').append(ot.getTypeInt())
+                    .append("), send-addr: ").append(ot.getSendingAddress())
+                    .append(", ref-addr: ").append((refAddress != null) ? refAddress : "n/a");
+        }
+    }
+
+    private record DexTradeComment(OmniMatchData ot) implements LedgerTransaction.Comment {
+        @Override
+        public void appendTo(StringBuilder builder) {
+            builder.append("omni dex trade match: matching-addr: ").append(ot.match().getAddress());
+        }
+    }
+
+    // Append the same string as Coin.toPlainString(): no trailing zeros in the fraction
+    private static void appendPlainBtc(StringBuilder builder, long satoshis) {
+        int scale = 8;
+        while (scale > 0 && satoshis % 10 == 0) {
+            satoshis /= 10;
+            scale--;
         }
+        LedgerTransaction.Split.appendAmount(builder, satoshis, scale);
     }
 
-    private static String calcCurrency(OmniTransactionInfo omni) {
+    // BTC amounts have 8 decimal places, like those returned by Coin.toBtc()
+    private static LedgerTransaction.Split btcSplit(String account, long satoshis) {
+        return split(account, satoshis, 8, BTC_ID);
+    }
+
+    private static LedgerTransaction.Split split(String account, long units, int scale, int currencyId) {
+        return new LedgerTransaction.Split(LedgerTransaction.ACCOUNTS.id(account), units, scale, currencyId);
+    }
+
+    // Returns the id of the currency code
+    private static int calcCurrency(OmniEntry omni) {
         if (omni != null) {
-            return omni.getPropertyId() != null ? propertyIdToTicker(omni.getPropertyId()) : BTC_CODE;
+            return omni.getPropertyId() != null ? propertyIdToTickerId(omni.getPropertyId()) : BTC_ID;
         } else {
-            return BTC_CODE;
+            return BTC_ID;
         }
     }
 
+    private static int propertyIdToTickerId(CurrencyID id) {
+        return tickerIds.computeIfAbsent(id, i -> LedgerTransaction.CURRENCIES.id(propertyIdToTicker(i)));
+    }
+
     private static String propertyIdToTicker(CurrencyID id) {
         String code = OmniCurrencyCode.idToCodeString(id);
         String mapped = tickerMap.get(code);    // OMNI_SPT#xx not valid in ledger-cli so map it to something else
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiFunction;
+
+/**
+ * Concurrent hash table keyed by transaction id. It uses much less memory than a
+ * {@code ConcurrentHashMap<Sha256Hash, V>} because the 32-byte ids are stored inline in {@code long[]} arrays
+ * instead of as a {@link Sha256Hash} object (and map node) per entry.
+ * <p>
+ * The table is split into segments, each an open-addressing table with linear probing, guarded by its own lock.
+ * Ids are hashes, so their bits are used to pick the segment and slot directly. Entries can't be removed.
+ * @param <V> value type
+ */
+class TxIdTable<V> {
+    private static final VarHandle longs = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final int segmentBits = 6;
+    private static final int initialSegmentCapacity = 16;
+
+    private final Segment<V>[] segments;
+
+    // All fields are guarded by the segment's lock
+    private static final class Segment<V> {
+        long[] keys = new long[initialSegmentCapacity * 4];
+        Object[] values = new Object[initialSegmentCapacity];
+        int size;
+    }
+
+    @SuppressWarnings("unchecked")
+    TxIdTable() {
+        segments = new Segment[1 << segmentBits];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment<>();
+        }
+    }
+
+    /**
+     * Atomically compute the value for a transaction id, like {@link java.util.Map#compute}
+     * @param txId transaction id
+     * @param function given the id and the existing value (or {@code null}) returns the new value. Returning
+     *                 {@code null} leaves an absent id absent, it can't be used to remove an existing entry.
+     * @return the new value
+     */
+    V compute(Sha256Hash txId, BiFunction<? super Sha256Hash, ? super V, ? extends V> function) {
+        byte[] id = txId.getBytes();
+        long k0 = (long) longs.get(id, 0);
+        long k1 = (long) longs.get(id, 8);
+        long k2 = (long) longs.get(id, 16);
+        long k3 = (long) longs.get(id, 24);
+        Segment<V> segment = segmentFor(k0);
+        synchronized (segment) {
+            int slot = find(segment, k0, k1, k2, k3);
+            @SuppressWarnings("unchecked")
+            V existing = (V) segment.values[slot];
+            V value = function.apply(txId, existing);
+            if (existing != null) {
+                if (value == null) {
+                    throw new IllegalStateException("entries can't be removed");
+                }
+                segment.values[slot] = value;
+            } else if (value != null) {
+                insert(segment, slot, k0, k1, k2, k3, value);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * @param txId transaction id
+     * @param value value to store, replacing any existing value
+     */
+    void put(Sha256Hash txId, V value) {
+        compute(txId, (k, existing) -> value);
+    }
+
+    /**
+     * @param txId transaction id
+     * @return the value or {@code null} if absent
+     */
+    V get(Sha256Hash txId) {
+        byte[] id = txId.getBytes();
+        long k0 = (long) longs.get(id, 0);
+        Segment<V> segment = segmentFor(k0);
+        synchronized (segment) {
+            @SuppressWarnings("unchecked")
+            V value = (V) segment.values[find(segment, k0, (long) longs.get(id, 8), (long) longs.get(id, 16), (long) longs.get(id, 24))];
+            return value;
+        }
+    }
+
+    /**
+     * @return number of entries
+     */
+    int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return a snapshot of the transaction ids
+     */
+    Set<Sha256Hash> keys() {
+        Set<Sha256Hash> keys = new HashSet<>();
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                for (int slot = 0; slot < segment.values.length; slot++) {
+                    if (segment.values[slot] != null) {
+                        byte[] id = new byte[32];
+                        for (int i = 0; i < 4; i++) {
+                            longs.set(id, i * 8, segment.keys[slot * 4 + i]);
+                        }
+                        keys.add(Sha256Hash.wrap(id));
+                    }
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return a snapshot of the values
+     */
+    List<V> values() {
+        List<V> values = new ArrayList<>();
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                for (Object value : segment.values) {
+                    if (value != null) {
+                        @SuppressWarnings("unchecked")
+                        V v = (V) value;
+                        values.add(v);
+                    }
+                }
+            }
+        }
+        return values;
+    }
+
+    private Segment<V> segmentFor(long k0) {
+        return segments[(int) (k0 >>> (64 - segmentBits))];
+    }
+
+    // Return the slot containing the key or, if absent, the empty slot where it belongs. Must hold the segment lock.
+    private static int find(Segment<?> segment, long k0, long k1, long k2, long k3) {
+        int mask = segment.values.length - 1;
+        int slot = (int) k1 & mask;
+        while (segment.values[slot] != null) {
+            int base = slot * 4;
+            if (segment.keys[base] == k0 && segment.keys[base + 1] == k1 && segment.keys[base + 2] == k2 && segment.keys[base + 3] == k3) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // Must hold the segment lock
+    private static void insert(Segment<?> segment, int slot, long k0, long k1, long k2, long k3, Object value) {
+        // Keep the load factor at or below 3/4
+        if ((segment.size + 1) * 4L > segment.values.length * 3L) {
+            resize(segment);
+            slot = find(segment, k0, k1, k2, k3);
+        }
+        int base = slot * 4;
+        segment.keys[base] = k0;
+        segment.keys[base + 1] = k1;
+        segment.keys[base + 2] = k2;
+        segment.keys[base + 3] = k3;
+        segment.values[slot] = value;
+        segment.size++;
+    }
+
+    private static void resize(Segment<?> segment) {
+        long[] oldKeys = segment.keys;
+        Object[] oldValues = segment.values;
+        segment.keys = new long[oldKeys.length * 2];
+        segment.values = new Object[oldValues.length * 2];
+        for (int slot = 0; slot < oldValues.length; slot++) {
+            if (oldValues[slot] != null) {
+                int base = slot * 4;
+                int newSlot = find(segment, oldKeys[base], oldKeys[base + 1], oldKeys[base + 2], oldKeys[base + 3]);
+                System.arraycopy(oldKeys, base, segment.keys, newSlot * 4, 4);
+                segment.values[newSlot] = oldValues[slot];
+            }
+        }
+    }
+}
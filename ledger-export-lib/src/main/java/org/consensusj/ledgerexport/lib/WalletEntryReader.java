@@ -0,0 +1,131 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Streaming decoder for the array of wallet entries returned by {@code listtransactions}. Each entry is read field by
+ * field from the parser and, if it has enough confirmations, added to a {@link BitcoinTransactionsContainer}
+ * without binding it to a {@link org.consensusj.bitcoin.json.pojo.BitcoinTransactionInfo}. Entries with too few
+ * confirmations are skipped without creating any objects for them except the parser's field values.
+ * <p>
+ * Only the fields stored by {@link TransactionColumns} (and {@code txid} and {@code confirmations}) are decoded,
+ * all other fields are skipped.
+ */
+class WalletEntryReader {
+    private final NetworkParameters netParams;
+    private final int minConfirmations;
+    // Wallets use few addresses for many entries, so parse each one once
+    private final Map<String, Address> addresses = new ConcurrentHashMap<>();
+
+    /**
+     * @param netParams network the addresses belong to
+     * @param minConfirmations minimum number of confirmations for an entry to be added
+     */
+    WalletEntryReader(NetworkParameters netParams, int minConfirmations) {
+        this.netParams = netParams;
+        this.minConfirmations = minConfirmations;
+    }
+
+    /**
+     * Read an array of wallet entries, passing the confirmed ones to a sink (e.g. {@link BitcoinTransactionsContainer#add(Sha256Hash, TransactionColumns.WalletRow)})
+     * @param parser parser positioned at the start of the array
+     * @param sink receives the transaction id and fields of each confirmed entry
+     * @return number of entries in the array, including unconfirmed entries
+     * @throws IOException if the array can't be read
+     */
+    int read(JsonParser parser, BiConsumer<Sha256Hash, TransactionColumns.WalletRow> sink) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            throw new IOException("Expected an array of wallet entries, got " + parser.currentToken());
+        }
+        int count = 0;
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            readEntry(parser, sink);
+            count++;
+        }
+        return count;
+    }
+
+    private void readEntry(JsonParser parser, BiConsumer<Sha256Hash, TransactionColumns.WalletRow> sink) throws IOException {
+        String txId = null;
+        int confirmations = 0;
+        long time = 0;
+        long amount = 0;
+        long fee = TransactionColumns.WalletRow.NO_FEE;
+        int vout = 0;
+        String category = null;
+        String label = null;
+        String comment = null;
+        String address = null;
+        boolean abandoned = false;
+        boolean walletConflicts = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            switch (field) {
+                case "txid" -> txId = parser.getText();
+                case "confirmations" -> confirmations = parser.getIntValue();
+                case "time" -> time = parser.getLongValue();
+                case "amount" -> amount = satoshis(parser);
+                case "fee" -> fee = satoshis(parser);
+                case "vout" -> vout = parser.getIntValue();
+                case "category" -> category = parser.getText();
+                case "label" -> label = parser.getText();
+                case "comment" -> comment = parser.getText();
+                case "address" -> address = parser.getText();
+                case "abandoned" -> abandoned = parser.getBooleanValue();
+                case "walletconflicts" -> {
+                    walletConflicts = parser.nextToken() != JsonToken.END_ARRAY;
+                    if (walletConflicts) {
+                        while (parser.nextToken() != JsonToken.END_ARRAY) {
+                            parser.skipChildren();
+                        }
+                    }
+                }
+                default -> parser.skipChildren();
+            }
+        }
+        if (txId == null) {
+            throw new IOException("Wallet entry without txid");
+        }
+        if (confirmations >= minConfirmations) {
+            sink.accept(Sha256Hash.wrap(txId), new TransactionColumns.WalletRow(time, amount, fee, vout, category,
+                    label, comment, address(address), abandoned, walletConflicts, confirmations));
+        }
+    }
+
+    // Amounts are decimal BTC with up to 8 places
+    private static long satoshis(JsonParser parser) throws IOException {
+        return parser.getDecimalValue().movePointRight(8).longValueExact();
+    }
+
+    private Address address(String address) {
+        return (address != null) ? addresses.computeIfAbsent(address, a -> Address.fromString(netParams, a)) : null;
+    }
+}
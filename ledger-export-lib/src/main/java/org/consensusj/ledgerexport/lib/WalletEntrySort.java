@@ -0,0 +1,291 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts wallet entries into chronological order while holding at most {@code maxInMemory} of them in memory.
+ * When more are added, the ones in memory are sorted and written to a temporary file as a <q>run</q> of compact
+ * binary records. {@link #sorted()} does a k-way merge of the runs, read through memory-mapped buffers, and the
+ * entries still in memory.
+ * <p>
+ * Entries are sorted by time, then transaction id, then the order they were added in. All entries of a
+ * transaction have the transaction's time, so they are adjacent in the sorted order, in the order they arrived.
+ * Records keep every stored field of a {@link TransactionColumns.WalletRow} exactly.
+ */
+class WalletEntrySort implements AutoCloseable {
+    // A run file must fit in one mapped buffer, so a run larger than this is split over several files
+    private static final int maxRunFileBytes = 1 << 30;
+    private static final Comparator<Entry> order = Comparator.comparingLong((Entry e) -> e.row().time())
+            .thenComparing(Entry::txId)
+            .thenComparingLong(Entry::sequence);
+    private static final byte abandonedFlag = 1;
+    private static final byte conflictsFlag = 2;
+
+    private final Path tempDir;
+    private final int maxInMemory;
+    private final NetworkParameters netParams;
+    private final List<Entry> buffer = new ArrayList<>();
+    private final List<Path> runFiles = new ArrayList<>();
+    private long count;
+
+    /**
+     * A wallet entry
+     * @param txId transaction id
+     * @param sequence number of entries added before this one
+     * @param row fields of the entry
+     */
+    record Entry(Sha256Hash txId, long sequence, TransactionColumns.WalletRow row) {}
+
+    /**
+     * @param tempDir directory for run files
+     * @param maxInMemory maximum number of entries to hold in memory
+     * @param netParams network the entries' addresses belong to
+     */
+    WalletEntrySort(Path tempDir, int maxInMemory, NetworkParameters netParams) {
+        if (maxInMemory < 1) {
+            throw new IllegalArgumentException("maxInMemory must be at least 1");
+        }
+        this.tempDir = tempDir;
+        this.maxInMemory = maxInMemory;
+        this.netParams = netParams;
+    }
+
+    /**
+     * Add an entry, spilling the entries in memory to a run file if there are too many
+     * @param txId transaction id
+     * @param row fields of the entry
+     * @throws UncheckedIOException if a run file can't be written
+     */
+    synchronized void add(Sha256Hash txId, TransactionColumns.WalletRow row) {
+        buffer.add(new Entry(txId, count++, row));
+        if (buffer.size() >= maxInMemory) {
+            try {
+                spill();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Merge the added entries. Entries must not be added while the result is in use.
+     * @return iterator of all added entries in order
+     * @throws IOException if a run file can't be read
+     */
+    synchronized Iterator<Entry> sorted() throws IOException {
+        buffer.sort(order);
+        PriorityQueue<Cursor> cursors = new PriorityQueue<>((a, b) -> order.compare(a.head, b.head));
+        addIfNotEmpty(cursors, new Cursor(List.copyOf(buffer).iterator()));
+        // Wallets use few addresses for many entries, so parse each one once
+        Map<String, Address> addresses = new HashMap<>();
+        for (Path runFile : runFiles) {
+            try (FileChannel channel = FileChannel.open(runFile, StandardOpenOption.READ)) {
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                addIfNotEmpty(cursors, new Cursor(new RunIterator(mapped, addresses)));
+            }
+        }
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return !cursors.isEmpty();
+            }
+
+            @Override
+            public Entry next() {
+                Cursor cursor = cursors.poll();
+                if (cursor == null) {
+                    throw new NoSuchElementException();
+                }
+                Entry next = cursor.head;
+                addIfNotEmpty(cursors, cursor);
+                return next;
+            }
+        };
+    }
+
+    /**
+     * @return number of entries added
+     */
+    synchronized long count() {
+        return count;
+    }
+
+    /**
+     * @return number of run files written
+     */
+    synchronized int runFileCount() {
+        return runFiles.size();
+    }
+
+    /**
+     * Delete the run files
+     * @throws IOException if a file can't be deleted
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (Path runFile : runFiles) {
+            Files.deleteIfExists(runFile);
+        }
+        runFiles.clear();
+        buffer.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("WalletEntrySort[count=%d, inMemory=%d, runFiles=%d]", count, buffer.size(), runFiles.size());
+    }
+
+    private static void addIfNotEmpty(PriorityQueue<Cursor> cursors, Cursor cursor) {
+        if (cursor.advance()) {
+            cursors.add(cursor);
+        }
+    }
+
+    // Must hold this object's lock
+    private void spill() throws IOException {
+        buffer.sort(order);
+        DataOutputStream out = null;
+        try {
+            for (Entry entry : buffer) {
+                if (out == null || out.size() >= maxRunFileBytes) {
+                    if (out != null) {
+                        out.close();
+                    }
+                    Path runFile = Files.createTempFile(tempDir, "wallet-run-", ".bin");
+                    runFiles.add(runFile);
+                    out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(runFile)));
+                }
+                write(out, entry);
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+        buffer.clear();
+    }
+
+    // The head of a sorted sequence of entries
+    private static final class Cursor {
+        private final Iterator<Entry> entries;
+        private Entry head;
+
+        Cursor(Iterator<Entry> entries) {
+            this.entries = entries;
+        }
+
+        boolean advance() {
+            head = entries.hasNext() ? entries.next() : null;
+            return head != null;
+        }
+    }
+
+    private static void write(DataOutputStream out, Entry entry) throws IOException {
+        TransactionColumns.WalletRow row = entry.row();
+        out.writeLong(row.time());
+        out.write(entry.txId().getBytes());
+        out.writeLong(entry.sequence());
+        out.writeLong(row.amount());
+        out.writeLong(row.fee());
+        out.writeInt(row.vout());
+        out.writeInt(row.confirmations());
+        out.writeByte((row.abandoned() ? abandonedFlag : 0) | (row.walletConflicts() ? conflictsFlag : 0));
+        writeString(out, row.category());
+        writeString(out, row.label());
+        writeString(out, row.comment());
+        writeString(out, (row.address() != null) ? row.address().toString() : null);
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    // Reads the records of a run file
+    private final class RunIterator implements Iterator<Entry> {
+        private final ByteBuffer buffer;
+        private final Map<String, Address> addresses;
+
+        RunIterator(ByteBuffer buffer, Map<String, Address> addresses) {
+            this.buffer = buffer;
+            this.addresses = addresses;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return buffer.hasRemaining();
+        }
+
+        @Override
+        public Entry next() {
+            long time = buffer.getLong();
+            byte[] txId = new byte[32];
+            buffer.get(txId);
+            long sequence = buffer.getLong();
+            long amount = buffer.getLong();
+            long fee = buffer.getLong();
+            int vout = buffer.getInt();
+            int confirmations = buffer.getInt();
+            byte flags = buffer.get();
+            String category = readString();
+            String label = readString();
+            String comment = readString();
+            String address = readString();
+            return new Entry(Sha256Hash.wrap(txId), sequence, new TransactionColumns.WalletRow(time, amount, fee, vout,
+                    category, label, comment,
+                    (address != null) ? addresses.computeIfAbsent(address, a -> Address.fromString(netParams, a)) : null,
+                    (flags & abandonedFlag) != 0, (flags & conflictsFlag) != 0, confirmations));
+        }
+
+        private String readString() {
+            int length = buffer.getInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
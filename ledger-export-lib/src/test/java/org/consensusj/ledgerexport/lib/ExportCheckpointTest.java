@@ -0,0 +1,93 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that {@link ExportCheckpoint} files read back as written
+ */
+public class ExportCheckpointTest {
+    private static final Sha256Hash blockHash = Sha256Hash.wrap("0000000000000000000b4d0b2e8e7e4ef5f8c8e1bbd1a0e4d6c8a9e3f2a1b0c9");
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void roundTripWithTradingAddresses() throws IOException {
+        Path file = tempDir.resolve("export.checkpoint");
+        var addresses = new TreeSet<String>();
+        addresses.add("mfWxJ45yp2SFn7UciZyNpvDKrzbhyfKrY8");
+        addresses.add("n3GNqMveyvaPvUbH469vDRadqpJMPc84JA");
+        ExportCheckpoint checkpoint = new ExportCheckpoint(blockHash, 812_345, addresses);
+        checkpoint.write(file);
+        assertEquals(Optional.of(checkpoint), ExportCheckpoint.read(file));
+        assertFalse(Files.exists(file.resolveSibling("export.checkpoint.tmp")));
+    }
+
+    @Test
+    void roundTripWithoutTradingAddresses() throws IOException {
+        Path file = tempDir.resolve("export.checkpoint");
+        ExportCheckpoint checkpoint = new ExportCheckpoint(blockHash, 1);
+        checkpoint.write(file);
+        assertEquals(Optional.of(checkpoint), ExportCheckpoint.read(file));
+    }
+
+    @Test
+    void overwrite() throws IOException {
+        Path file = tempDir.resolve("export.checkpoint");
+        new ExportCheckpoint(blockHash, 1).write(file);
+        ExportCheckpoint next = new ExportCheckpoint(Sha256Hash.ZERO_HASH, 2);
+        next.write(file);
+        assertEquals(Optional.of(next), ExportCheckpoint.read(file));
+    }
+
+    @Test
+    void fileWithoutTradingAddresses() throws IOException {
+        // Written by an earlier version, so the trading addresses are unknown
+        Path file = tempDir.resolve("export.checkpoint");
+        Files.writeString(file, "blockhash=" + blockHash + "\nheight=7\n");
+        ExportCheckpoint checkpoint = ExportCheckpoint.read(file).orElseThrow();
+        assertEquals(blockHash, checkpoint.blockHash());
+        assertEquals(7, checkpoint.height());
+        assertNull(checkpoint.tradingAddresses());
+    }
+
+    @Test
+    void missingFile() throws IOException {
+        assertEquals(Optional.empty(), ExportCheckpoint.read(tempDir.resolve("missing.checkpoint")));
+    }
+
+    @Test
+    void invalidFile() throws IOException {
+        Path file = tempDir.resolve("export.checkpoint");
+        Files.writeString(file, "height=7\n");
+        assertThrows(IOException.class, () -> ExportCheckpoint.read(file));
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the {@link ExportPipeline} outputs entries in source order and fails when any stage fails
+ */
+public class ExportPipelineTest {
+    private static final int bufferCapacity = 4;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<TransactionData> transactions = transactions(10_000);
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void outputsInSourceOrder() throws Exception {
+        for (int parallelism : new int[] {1, 4}) {
+            List<LedgerTransaction> output = Collections.synchronizedList(new ArrayList<>());
+            AtomicBoolean flushed = new AtomicBoolean();
+            long count = new ExportPipeline(ExportPipelineTest::slowConvert, output::add, () -> flushed.set(true),
+                    parallelism, executor, bufferCapacity)
+                    .run(transactions::forEach, t -> true)
+                    .get(1, TimeUnit.MINUTES);
+            assertEquals(transactions.size(), count);
+            assertEquals(transactions.stream().map(TransactionData::txId).toList(),
+                    output.stream().map(LedgerTransaction::txId).toList(), parallelism + " threads");
+            assertTrue(flushed.get());
+        }
+    }
+
+    @Test
+    void filterDropsEntries() throws Exception {
+        List<LedgerTransaction> output = Collections.synchronizedList(new ArrayList<>());
+        long count = new ExportPipeline(ExportPipelineTest::convert, output::add, () -> {}, 4, executor, bufferCapacity)
+                .run(transactions::forEach, t -> t.time().getEpochSecond() % 2 == 0)
+                .get(1, TimeUnit.MINUTES);
+        List<Sha256Hash> expected = transactions.stream()
+                .filter(t -> t.time().getEpochSecond() % 2 == 0)
+                .map(TransactionData::txId)
+                .toList();
+        assertEquals(expected.size(), count);
+        assertEquals(expected, output.stream().map(LedgerTransaction::txId).toList());
+    }
+
+    @Test
+    void conversionFailureFailsExportAndStopsSource() {
+        for (int parallelism : new int[] {1, 4}) {
+            RuntimeException failure = new IllegalStateException("conversion failed");
+            TransactionData failing = transactions.get(100);
+            Function<TransactionData, LedgerTransaction> convert = t -> {
+                if (t == failing) {
+                    throw failure;
+                }
+                return convert(t);
+            };
+            AtomicInteger collected = new AtomicInteger();
+            Consumer<Consumer<TransactionData>> source = consumer -> transactions.forEach(t -> {
+                collected.incrementAndGet();
+                consumer.accept(t);
+            });
+            AtomicBoolean flushed = new AtomicBoolean();
+            CompletableFuture<Long> result = new ExportPipeline(convert, t -> {}, () -> flushed.set(true),
+                    parallelism, executor, bufferCapacity).run(source, t -> true);
+            assertSame(failure, rootCause(assertThrows(ExecutionException.class, () -> result.get(1, TimeUnit.MINUTES))));
+            assertFalse(flushed.get());
+            assertTrue(collected.get() < transactions.size(), "source wasn't stopped");
+        }
+    }
+
+    @Test
+    void outputFailureFailsExport() {
+        RuntimeException failure = new IllegalStateException("output failed");
+        AtomicInteger outputCount = new AtomicInteger();
+        AtomicBoolean flushed = new AtomicBoolean();
+        CompletableFuture<Long> result = new ExportPipeline(ExportPipelineTest::convert,
+                t -> {
+                    if (outputCount.incrementAndGet() == 10) {
+                        throw failure;
+                    }
+                },
+                () -> flushed.set(true), 4, executor, bufferCapacity)
+                .run(transactions::forEach, t -> true);
+        assertSame(failure, rootCause(assertThrows(ExecutionException.class, () -> result.get(1, TimeUnit.MINUTES))));
+        assertEquals(10, outputCount.get());
+        assertFalse(flushed.get());
+    }
+
+    @Test
+    void sourceFailureFailsExport() {
+        RuntimeException failure = new IllegalStateException("fetch failed");
+        AtomicBoolean flushed = new AtomicBoolean();
+        CompletableFuture<Long> result = new ExportPipeline(ExportPipelineTest::convert, t -> {}, () -> flushed.set(true),
+                4, executor, bufferCapacity)
+                .run(consumer -> {
+                    transactions.subList(0, 50).forEach(consumer);
+                    throw failure;
+                }, t -> true);
+        assertSame(failure, rootCause(assertThrows(ExecutionException.class, () -> result.get(1, TimeUnit.MINUTES))));
+        assertFalse(flushed.get());
+    }
+
+    private static LedgerTransaction convert(TransactionData transaction) {
+        return new LedgerTransaction(transaction.txId(), transaction.time(), "entry", List.of(), List.of());
+    }
+
+    // Conversions take varying time, so concurrent conversions complete out of order
+    private static LedgerTransaction slowConvert(TransactionData transaction) {
+        LockSupport.parkNanos(ThreadLocalRandom.current().nextInt(20_000));
+        return convert(transaction);
+    }
+
+    private static Throwable rootCause(Throwable throwable) {
+        while (throwable.getCause() != null) {
+            throwable = throwable.getCause();
+        }
+        return throwable;
+    }
+
+    private static List<TransactionData> transactions(int count) {
+        TransactionColumns columns = new TransactionColumns();
+        List<TransactionData> transactions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] id = new byte[32];
+            id[0] = (byte) (i >> 8);
+            id[1] = (byte) i;
+            transactions.add(new BitcoinTransactionData(columns, Sha256Hash.wrap(id),
+                    new TransactionColumns.WalletRow(1_500_000_000L + i, 1_000, TransactionColumns.WalletRow.NO_FEE, 0,
+                            "receive", "", null, null, false, false, 1)));
+        }
+        return transactions;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import foundation.omni.rpc.OmniClient;
+import org.bitcoinj.params.RegTestParams;
+import org.consensusj.bitcoin.jsonrpc.RpcConfig;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Measures {@link OmniExportClient#fetch()} throughput against an {@link RpcSimulator} with various
+ * {@link FetchOptions} (with and without streaming {@code listtransactions} results).
+ * {@link OmniExportClientTest} checks that every configuration fetches the same transactions.
+ * <p>
+ * Run with {@code ./gradlew ledger-export-lib:fetchBenchmark}, optionally with
+ * {@code --args="<transactions> <latencyMillis>"}.
+ */
+public class FetchBenchmark {
+    private static final String user = "user";
+    private static final String password = "password";
+
+    record Candidate(String name, FetchOptions options) {}
+
+    /**
+     * @param args optional number of wallet transactions and simulated latency in milliseconds
+     * @throws IOException if the simulator can't be started
+     */
+    public static void main(String[] args) throws IOException {
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        long latencyMillis = args.length > 1 ? Long.parseLong(args[1]) : 5;
+        RpcSimulator.Config config = RpcSimulator.Config.DEFAULT.withTransactions(transactions).withLatency(latencyMillis);
+        List<Candidate> candidates = List.of(
+                new Candidate("default", FetchOptions.DEFAULT),
+                new Candidate("paged", new FetchOptions(1_000, 0, 16, false)),
+                new Candidate("streamed", new FetchOptions(0, 0, 16, false, true)),
+                new Candidate("streamed-paged", new FetchOptions(1_000, 0, 16, false, true)),
+                new Candidate("batched", new FetchOptions(0, 100, 16, false)),
+                new Candidate("in-flight-64", new FetchOptions(0, 0, 64, false)),
+                new Candidate("virtual-256", new FetchOptions(0, 0, 256, true)),
+                new Candidate("all", new FetchOptions(1_000, 100, 64, true)));
+
+        System.out.printf("%d wallet transactions, %d ms simulated latency%n", transactions, latencyMillis);
+        System.out.printf("%-14s %10s %10s %10s %12s %10s%n", "options", "results", "requests", "calls", "time (ms)", "limit");
+        try (RpcSimulator simulator = new RpcSimulator(config)) {
+            for (Candidate candidate : candidates) {
+                long requests = simulator.requestCount();
+                long calls = simulator.callCount();
+                OmniExportClient exportClient = newExportClient(simulator, candidate.options());
+                long start = System.nanoTime();
+                List<TransactionData> result = exportClient.fetch();
+                long millis = (System.nanoTime() - start) / 1_000_000;
+                System.out.printf("%-14s %10d %10d %10d %12d %10d%n", candidate.name(), result.size(),
+                        simulator.requestCount() - requests, simulator.callCount() - calls, millis, exportClient.scheduler().limit());
+            }
+        }
+    }
+
+    // The batch client is also used to stream listtransactions results
+    private static OmniExportClient newExportClient(RpcSimulator simulator, FetchOptions options) {
+        OmniClient client = new OmniClient(new RpcConfig(RegTestParams.get(), simulator.getURI(), user, password));
+        JsonRpcBatchClient batchClient = (options.isBatched() || options.streamed())
+                ? new JsonRpcBatchClient(simulator.getURI(), user, password, client.getMapper())
+                : null;
+        return new OmniExportClient(client, options, batchClient);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.RegTestParams;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how {@link TransactionImporter#importTransactions(List, int)} scales with the number of threads and
+ * checks that every parallelism level produces the same entries as the sequential import.
+ * The transactions are synthetic wallet transactions: receives, sends with fees and self-sends.
+ * <p>
+ * Run with {@code ./gradlew ledger-export-lib:importBenchmark}, optionally with
+ * {@code --args="<transactions> <maxThreads>"}.
+ */
+public class ImportBenchmark {
+    private static final int rounds = 5;
+
+    /**
+     * @param args optional number of transactions and maximum number of threads
+     */
+    public static void main(String[] args) {
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        List<TransactionData> data = randomTransactions(transactions);
+        TransactionImporter importer = new TransactionImporter(RegTestParams.get());
+        List<LedgerTransaction> expected = importer.importTransactions(data);
+
+        System.out.printf("%d transactions, %d available processors%n", transactions, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-8s %12s %16s %10s%n", "threads", "time (ms)", "transactions/s", "speedup");
+        long sequentialMillis = 0;
+        boolean failed = false;
+        for (int threads = 1; threads <= maxThreads; threads = (threads < maxThreads) ? Math.min(threads * 2, maxThreads) : threads + 1) {
+            List<LedgerTransaction> result = importer.importTransactions(data, threads);   // Warm up
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < rounds; i++) {
+                long start = System.nanoTime();
+                result = importer.importTransactions(data, threads);
+                best = Math.min(best, (System.nanoTime() - start) / 1_000_000);
+            }
+            best = Math.max(best, 1);
+            if (threads == 1) {
+                sequentialMillis = best;
+            }
+            System.out.printf("%-8d %12d %16d %10.2f%n", threads, best, transactions * 1000L / best, (double) sequentialMillis / best);
+            if (!result.equals(expected)) {
+                System.out.printf("FAIL: %d threads produced different entries%n", threads);
+                failed = true;
+            }
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    // Sorted like a fetch result
+    private static List<TransactionData> randomTransactions(int count) {
+        Random random = new Random(1);
+        TransactionColumns columns = new TransactionColumns();
+        List<TransactionData> transactions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] id = new byte[32];
+            random.nextBytes(id);
+            long time = 1_500_000_000L + i * 600L;
+            long amount = 1 + random.nextInt(100_000_000);
+            BitcoinTransactionData data;
+            switch (random.nextInt(3)) {
+                case 0 -> data = new BitcoinTransactionData(columns, Sha256Hash.wrap(id),
+                        new TransactionColumns.WalletRow(time, amount, TransactionColumns.WalletRow.NO_FEE, 0, "receive", "label " + (i % 100), null, null, false, false, 1));
+                case 1 -> data = new BitcoinTransactionData(columns, Sha256Hash.wrap(id),
+                        new TransactionColumns.WalletRow(time, -amount, -random.nextInt(100_000), 1, "send", "", "payment " + i, null, false, false, 1));
+                default -> {
+                    data = new BitcoinTransactionData(columns, Sha256Hash.wrap(id),
+                            new TransactionColumns.WalletRow(time, -amount, -1_000, 0, "send", "", null, null, false, false, 1));
+                    data.add(new TransactionColumns.WalletRow(time, amount, TransactionColumns.WalletRow.NO_FEE, 0, "receive", "", null, null, false, false, 1));
+                }
+            }
+            transactions.add(data);
+        }
+        return transactions;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks how {@link JsonRpcBatchClient#send} matches batch responses to requests, against a server that returns a
+ * canned response
+ */
+public class JsonRpcBatchClientTest {
+    private static final List<List<Object>> params = List.of(List.of("a"), List.of("b"), List.of("c"));
+    private HttpServer server;
+    private volatile String responseBody;
+    private JsonRpcBatchClient client;
+
+    @BeforeEach
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            byte[] body = responseBody.getBytes(StandardCharsets.UTF_8);
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        URI uri = URI.create("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/");
+        client = new JsonRpcBatchClient(uri, "user", "password", new ObjectMapper());
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0);
+    }
+
+    @Test
+    void responsesInAnyOrder() throws IOException {
+        responseBody = """
+                [{"id": 2, "result": "C", "error": null},
+                 {"id": 0, "result": "A", "error": null},
+                 {"id": 1, "result": null, "error": {"code": -5, "message": "not found"}}]""";
+        List<JsonRpcBatchClient.Response> responses = client.send("echo", params);
+        assertEquals("A", responses.get(0).result().asText());
+        assertFalse(responses.get(0).isError());
+        assertTrue(responses.get(1).isError());
+        assertEquals("C", responses.get(2).result().asText());
+    }
+
+    @Test
+    void missingId() {
+        responseBody = """
+                [{"id": 0, "result": "A"}, {"result": "B"}, {"id": 2, "result": "C"}]""";
+        assertInvalid();
+    }
+
+    @Test
+    void idOutOfRange() {
+        responseBody = """
+                [{"id": 0, "result": "A"}, {"id": 3, "result": "B"}, {"id": 2, "result": "C"}]""";
+        assertInvalid();
+    }
+
+    @Test
+    void duplicateId() {
+        responseBody = """
+                [{"id": 0, "result": "A"}, {"id": 0, "result": "B"}, {"id": 2, "result": "C"}]""";
+        assertInvalid();
+    }
+
+    @Test
+    void nonNumericId() {
+        responseBody = """
+                [{"id": 0, "result": "A"}, {"id": "one", "result": "B"}, {"id": 2, "result": "C"}]""";
+        assertInvalid();
+    }
+
+    @Test
+    void wrongNumberOfResponses() {
+        responseBody = """
+                [{"id": 0, "result": "A"}, {"id": 1, "result": "B"}]""";
+        assertInvalid();
+    }
+
+    private void assertInvalid() {
+        IOException e = assertThrows(IOException.class, () -> client.send("echo", params));
+        assertTrue(e.getMessage().startsWith("Invalid batch response"), e.getMessage());
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that {@link LedgerWriter} and {@link LedgerTimeFormat} write the same text as the original
+ * {@code String.format} and {@link DateTimeFormatter} based formatting of {@link LedgerTransaction#toLedger()}
+ */
+public class LedgerWriterTest {
+    private static final DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    // UTC, zones with daylight saving time (one with a 30 minute shift), and one that skipped a day
+    private static final List<ZoneId> zones = List.of(ZoneId.of("UTC"), ZoneId.of("America/New_York"),
+            ZoneId.of("Europe/London"), ZoneId.of("Australia/Lord_Howe"), ZoneId.of("Pacific/Apia"),
+            ZoneId.of("Asia/Kolkata"));
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void writesSameTextAsOriginalFormatting() throws IOException {
+        List<LedgerTransaction> transactions = randomTransactions(new Random(1), 2_000);
+        for (ZoneId zone : zones) {
+            String expected = transactions.stream()
+                    .map(t -> originalToLedger(t, zone) + System.lineSeparator())
+                    .collect(Collectors.joining());
+            // A small buffer, so entries are split across flushes
+            assertEquals(expected, write(transactions, zone, 256), zone.toString());
+        }
+    }
+
+    @Test
+    void writesSameTextAsToLedger() throws IOException {
+        List<LedgerTransaction> transactions = randomTransactions(new Random(2), 500);
+        String expected = transactions.stream()
+                .map(t -> t.toLedger() + System.lineSeparator())
+                .collect(Collectors.joining());
+        assertEquals(expected, write(transactions, ZoneId.systemDefault(), 1 << 20));
+    }
+
+    @Test
+    void timeFormatMatchesDateTimeFormatter() {
+        for (ZoneId zone : zones) {
+            LedgerTimeFormat format = new LedgerTimeFormat(zone);
+            List<Instant> times = new ArrayList<>();
+            // Every 15 minutes through 2011 (Apia skipped December 30th), in order, then shuffled
+            for (long s = 1_293_840_000L; s < 1_325_376_000L; s += 900) {
+                times.add(Instant.ofEpochSecond(s));
+            }
+            // Around each transition, second by second
+            zone.getRules().getTransitions().stream()
+                    .filter(t -> t.getInstant().getEpochSecond() > 1_200_000_000L && t.getInstant().getEpochSecond() < 1_700_000_000L)
+                    .forEach(t -> {
+                        for (long s = -3; s <= 3; s++) {
+                            times.add(t.getInstant().plusSeconds(s));
+                        }
+                    });
+            List<Instant> shuffled = new ArrayList<>(times);
+            Collections.shuffle(shuffled, new Random(3));
+            times.addAll(shuffled);
+            for (Instant time : times) {
+                StringBuilder builder = new StringBuilder();
+                format.appendTo(builder, time);
+                assertEquals(timeFormatter.format(time.atZone(zone)), builder.toString(), () -> zone + " " + time);
+            }
+        }
+    }
+
+    @Test
+    void discardDropsBufferedAndWrittenOutput() throws IOException {
+        List<LedgerTransaction> transactions = randomTransactions(new Random(4), 20);
+        Path file = tempDir.resolve("discard.ledger");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             LedgerWriter writer = new LedgerWriter(channel, ZoneId.of("UTC"), 256)) {
+            writer.write(transactions.get(0));
+            writer.mark();
+            writer.write(transactions.get(1));
+            writer.discard();   // Still buffered
+            writer.write(transactions.get(2));
+            writer.mark();
+            transactions.subList(3, 20).forEach(writer::write);
+            writer.discard();   // Mostly flushed already
+            writer.write(transactions.get(3));
+            assertEquals(3, writer.entryCount());
+        }
+        String expected = originalToLedger(transactions.get(0), ZoneId.of("UTC")) + System.lineSeparator()
+                + originalToLedger(transactions.get(2), ZoneId.of("UTC")) + System.lineSeparator()
+                + originalToLedger(transactions.get(3), ZoneId.of("UTC")) + System.lineSeparator();
+        assertEquals(expected, Files.readString(file));
+    }
+
+    private static String write(List<LedgerTransaction> transactions, ZoneId zone, int bufferSize) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (LedgerWriter writer = new LedgerWriter(Channels.newChannel(bytes), zone, bufferSize)) {
+            transactions.forEach(writer::write);
+            assertEquals(transactions.size(), writer.entryCount());
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    // The original LedgerTransaction.toLedger() and Split.toLedger(), with the zone as a parameter
+    private static String originalToLedger(LedgerTransaction transaction, ZoneId zone) {
+        var commentLines = transaction.comments()
+                .stream()
+                .map(c -> String.format("; %s", c.text()))
+                .collect(Collectors.joining("\n", "\n", "\n"));
+        var timeString = transaction.time().atZone(zone).format(timeFormatter);
+        var mainLine = String.format("%s %2$s\n", timeString, transaction.description());
+        var splitLines = transaction.splits().stream()
+                .map(split -> {
+                    String currencyOutput = split.currency().contains("#")
+                            ? String.format("\"%s\"", split.currency())
+                            : split.currency();
+                    return String.format("    %-40s %s %s", split.account(), split.amount().toPlainString(), currencyOutput);
+                })
+                .collect(Collectors.joining("\n", "", "\n"));
+        return commentLines + mainLine + splitLines;
+    }
+
+    private static List<LedgerTransaction> randomTransactions(Random random, int count) {
+        List<String> accounts = List.of("Assets:Wallet", "Income:Unknown", "Expense:TransactionFees",
+                "Expenses:A:Very:Long:Account:Name:That:Is:Wider:Than:The:Column");
+        List<String> currencies = List.of("BTC", "OMNI", "TOMNI", "USDT", "OMNI#2147483651");
+        List<LedgerTransaction> transactions = new ArrayList<>(count);
+        long time = 1_500_000_000L;
+        for (int i = 0; i < count; i++) {
+            byte[] id = new byte[32];
+            random.nextBytes(id);
+            time += random.nextInt(200_000);
+            List<LedgerTransaction.Comment> comments = new ArrayList<>();
+            for (int c = random.nextInt(3); c > 0; c--) {
+                comments.add(LedgerTransaction.Comment.of("comment " + random.nextInt() + (random.nextBoolean() ? " café ₿" : "")));
+            }
+            List<LedgerTransaction.Split> splits = new ArrayList<>();
+            for (int s = random.nextInt(4); s > 0; s--) {
+                BigDecimal amount = BigDecimal.valueOf(random.nextLong() % 10_000_000_000_000L, random.nextBoolean() ? 8 : 0);
+                splits.add(new LedgerTransaction.Split(accounts.get(random.nextInt(accounts.size())), amount,
+                        currencies.get(random.nextInt(currencies.size()))));
+            }
+            transactions.add(new LedgerTransaction(Sha256Hash.wrap(id), Instant.ofEpochSecond(time),
+                    "Transaction " + i, comments, splits));
+        }
+        return transactions;
+    }
+}
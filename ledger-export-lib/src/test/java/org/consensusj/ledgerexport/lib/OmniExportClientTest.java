@@ -0,0 +1,176 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import foundation.omni.rpc.OmniClient;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.RegTestParams;
+import org.consensusj.bitcoin.jsonrpc.RpcConfig;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Fetches from an {@link RpcSimulator} with each kind of {@link FetchOptions} (paging, streaming, batching,
+ * concurrency) and checks that they all fetch the same transactions, that an overloaded server's rejections
+ * are retried and that a failing server fails the fetch.
+ */
+@Timeout(60)
+public class OmniExportClientTest {
+    private static final String user = "user";
+    private static final String password = "password";
+    private static final RpcSimulator.Config config = RpcSimulator.Config.DEFAULT.withTransactions(300).withLatency(1);
+
+    @Test
+    void allOptionsFetchSameTransactions() throws IOException {
+        List<FetchOptions> candidates = List.of(
+                new FetchOptions(50, 0, 16, false),
+                new FetchOptions(0, 0, 16, false, true),
+                new FetchOptions(50, 0, 16, false, true),
+                new FetchOptions(0, 50, 16, false),
+                new FetchOptions(0, 0, 64, false),
+                new FetchOptions(0, 0, 256, true),
+                new FetchOptions(50, 50, 64, true));
+        try (RpcSimulator simulator = new RpcSimulator(config)) {
+            Set<Sha256Hash> expected = txIds(newExportClient(simulator, FetchOptions.DEFAULT).fetch());
+            assertFalse(expected.isEmpty());
+            for (FetchOptions options : candidates) {
+                assertEquals(expected, txIds(newExportClient(simulator, options).fetch()), options.toString());
+            }
+        }
+    }
+
+    @Test
+    void fetchToConsumer() throws IOException {
+        try (RpcSimulator simulator = new RpcSimulator(config)) {
+            Set<Sha256Hash> expected = txIds(newExportClient(simulator, FetchOptions.DEFAULT).fetch());
+            List<TransactionData> consumed = new ArrayList<>();
+            newExportClient(simulator, new FetchOptions(50, 0, 16, false, true)).fetch(consumed::add);
+            assertEquals(expected.size(), consumed.size());
+            assertEquals(expected, txIds(consumed));
+        }
+    }
+
+    @Test
+    void spilledFetchMatchesInMemoryFetch() throws IOException {
+        List<FetchOptions> candidates = List.of(
+                new FetchOptions(0, 0, 16, false, false, 32),
+                new FetchOptions(50, 0, 16, false, true, 32),
+                new FetchOptions(50, 50, 64, true, false, 1));
+        try (RpcSimulator simulator = new RpcSimulator(config.withMatches(3, 20))) {
+            List<String> expected = describe(newExportClient(simulator, FetchOptions.DEFAULT).fetch());
+            assertTrue(expected.stream().anyMatch(d -> d.startsWith("OmniMatchData")));
+            for (FetchOptions options : candidates) {
+                assertEquals(expected, describe(newExportClient(simulator, options).fetch()), options.toString());
+            }
+        }
+    }
+
+    @Test
+    void batchingSendsFewerRequests() throws IOException {
+        try (RpcSimulator simulator = new RpcSimulator(config)) {
+            newExportClient(simulator, FetchOptions.DEFAULT).fetch();
+            long unbatchedRequests = simulator.requestCount();
+            long unbatchedCalls = simulator.callCount();
+            newExportClient(simulator, new FetchOptions(0, 50, 16, false)).fetch();
+            long batchedRequests = simulator.requestCount() - unbatchedRequests;
+            long batchedCalls = simulator.callCount() - unbatchedCalls;
+            assertEquals(unbatchedRequests, unbatchedCalls);
+            assertTrue(batchedRequests < batchedCalls / 10,
+                    batchedRequests + " requests for " + batchedCalls + " calls");
+        }
+    }
+
+    @Test
+    void pagingSendsSeveralListRequests() throws IOException {
+        try (RpcSimulator simulator = new RpcSimulator(config)) {
+            newExportClient(simulator, FetchOptions.DEFAULT).fetch();
+            long unpagedCalls = simulator.callCount();
+            newExportClient(simulator, new FetchOptions(50, 0, 16, false)).fetch();
+            long pagedCalls = simulator.callCount() - unpagedCalls;
+            // 300 wallet transactions in pages of 50, plus a final short page
+            assertTrue(pagedCalls >= unpagedCalls + 6, pagedCalls + " paged calls, " + unpagedCalls + " unpaged");
+        }
+    }
+
+    @Test
+    void overloadedServerIsRetried() throws IOException {
+        Set<Sha256Hash> expected;
+        try (RpcSimulator simulator = new RpcSimulator(config)) {
+            expected = txIds(newExportClient(simulator, FetchOptions.DEFAULT).fetch());
+        }
+        // The server rejects requests beyond its work queue, the scheduler should back off and retry
+        try (RpcSimulator simulator = new RpcSimulator(config.withMaxInProgress(4))) {
+            OmniExportClient exportClient = newExportClient(simulator, new FetchOptions(0, 0, 64, false));
+            assertEquals(expected, txIds(exportClient.fetch()));
+            assertTrue(simulator.rejectedCount() > 0, simulator.toString());
+            assertTrue(exportClient.scheduler().retryCount() > 0, exportClient.scheduler().toString());
+        }
+    }
+
+    @Test
+    void failingServerFailsFetch() throws IOException {
+        // Errors that aren't overload errors aren't retried
+        try (RpcSimulator simulator = new RpcSimulator(config.withErrorRate(0.05))) {
+            OmniExportClient exportClient = newExportClient(simulator, FetchOptions.DEFAULT);
+            assertThrows(CompletionException.class, exportClient::fetch);
+            assertTrue(simulator.errorCount() > 0, simulator.toString());
+        }
+    }
+
+    // The batch client is also used to stream listtransactions results
+    private static OmniExportClient newExportClient(RpcSimulator simulator, FetchOptions options) {
+        OmniClient client = new OmniClient(new RpcConfig(RegTestParams.get(), simulator.getURI(), user, password));
+        JsonRpcBatchClient batchClient = (options.isBatched() || options.streamed())
+                ? new JsonRpcBatchClient(simulator.getURI(), user, password, client.getMapper())
+                : null;
+        return new OmniExportClient(client, options, batchClient);
+    }
+
+    // The fields the exporter reads, in fetch order
+    private static List<String> describe(List<TransactionData> transactions) {
+        return transactions.stream()
+                .map(td -> switch (td) {
+                    case OmniTransactionData otd -> String.join(" ", "OmniTransactionData", otd.txId().toString(), otd.time().toString(),
+                            otd.isOmni() ? otd.omniEntry().getType() + " " + otd.omniEntry().getAmount() : "-",
+                            otd.addresses().toString(),
+                            otd.walletEntries().stream()
+                                    .map(e -> e.getCategory() + " " + e.getVout() + " " + e.getAmount() + " " + e.getFee() + " " + e.getAddress() + " " + e.getLabel())
+                                    .toList().toString());
+                    case OmniMatchData omd -> String.join(" ", "OmniMatchData", omd.txId().toString(), omd.time().toString(),
+                            omd.trade().getTxId().toString(), String.valueOf(omd.match().getBlock()),
+                            omd.match().getAmountSold().bigDecimalValue() + " " + omd.match().getAmountReceived().bigDecimalValue());
+                    default -> td.toString();
+                })
+                .toList();
+    }
+
+    // Transactions in the same block have the same time, so compare without regard to order
+    private static Set<Sha256Hash> txIds(List<TransactionData> transactions) {
+        return transactions.stream().map(TransactionData::txId).collect(Collectors.toSet());
+    }
+}
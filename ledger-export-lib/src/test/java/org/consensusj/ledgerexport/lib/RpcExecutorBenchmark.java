@@ -0,0 +1,75 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Compares executors for running blocking RPC calls through {@link RpcScheduler}: a cached pool
+ * of platform threads (the default) and virtual threads.
+ * Each simulated call blocks for a fixed latency, so a run takes roughly
+ * {@code calls / concurrency * latency} if the executor can keep {@code concurrency} calls in flight.
+ * <p>
+ * Run with {@code ./gradlew ledger-export-lib:rpcExecutorBenchmark}, optionally with
+ * {@code --args="<calls>"} (default 4000).
+ */
+public class RpcExecutorBenchmark {
+    private static final int defaultCalls = 4_000;
+    private static final long latencyMillis = 20;
+    private static final List<Integer> concurrencies = List.of(16, 256, 2048);
+
+    record Candidate(String name, Supplier<ExecutorService> executor) {}
+
+    /**
+     * @param args optional number of calls per run
+     */
+    public static void main(String[] args) {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : defaultCalls;
+        List<Candidate> candidates = List.of(
+                new Candidate("platform-cached", Executors::newCachedThreadPool),
+                new Candidate("virtual", Executors::newVirtualThreadPerTaskExecutor));
+        System.out.printf("%d calls, %d ms simulated latency%n", calls, latencyMillis);
+        System.out.printf("%-16s %12s %12s %14s%n", "executor", "concurrency", "time (ms)", "calls/second");
+        for (int concurrency : concurrencies) {
+            for (Candidate candidate : candidates) {
+                run(candidate, calls, concurrency);    // Warm up
+                long millis = run(candidate, calls, concurrency);
+                System.out.printf("%-16s %12d %12d %14d%n", candidate.name(), concurrency, millis, calls * 1000L / millis);
+            }
+        }
+    }
+
+    private static long run(Candidate candidate, int calls, int concurrency) {
+        ExecutorService executor = candidate.executor().get();
+        RpcScheduler scheduler = new RpcScheduler(executor, concurrency, concurrency);
+        long start = System.nanoTime();
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[calls];
+        for (int i = 0; i < calls; i++) {
+            futures[i] = scheduler.submit(() -> {
+                Thread.sleep(latencyMillis);
+                return null;
+            });
+        }
+        CompletableFuture.allOf(futures).join();
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        executor.shutdown();
+        return millis;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Round trips of responses through the {@code responses.bin} and {@code index.bin} files of an {@link RpcRecording}
+ */
+public class RpcRecordingTest {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void roundTrip() throws IOException {
+        try (RpcRecording recording = RpcRecording.record(tempDir, mapper, 100)) {
+            recordResponses(recording);
+        }
+        assertTrue(Files.exists(tempDir.resolve("index.bin")));
+        try (RpcRecording recording = RpcRecording.replay(tempDir, mapper, 100)) {
+            assertReplayed(recording);
+        }
+    }
+
+    @Test
+    void indexIsRebuiltIfMissing() throws IOException {
+        try (RpcRecording recording = RpcRecording.record(tempDir, mapper, 100)) {
+            recordResponses(recording);
+        }
+        Files.delete(tempDir.resolve("index.bin"));
+        try (RpcRecording recording = RpcRecording.replay(tempDir, mapper, 100)) {
+            assertReplayed(recording);
+        }
+    }
+
+    @Test
+    void truncatedRecordIsIgnored() throws IOException {
+        try (RpcRecording recording = RpcRecording.record(tempDir, mapper, 0)) {
+            recording.putResult("getblockcount", List.of(), mapper.getNodeFactory().numberNode(800_000));
+            recording.putResult("listtransactions", List.of("*", 100, 0), result(100));
+        }
+        Files.delete(tempDir.resolve("index.bin"));
+        try (FileChannel channel = FileChannel.open(tempDir.resolve("responses.bin"), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+        try (RpcRecording recording = RpcRecording.replay(tempDir, mapper, 0)) {
+            assertEquals(800_000, recording.get("getblockcount", List.of()).asInt());
+            assertThrows(IOException.class, () -> recording.get("listtransactions", List.of("*", 100, 0)));
+        }
+    }
+
+    @Test
+    void pageSizeMustMatch() throws IOException {
+        try (RpcRecording recording = RpcRecording.record(tempDir, mapper, 100)) {
+            recordResponses(recording);
+        }
+        IOException e = assertThrows(IOException.class, () -> RpcRecording.replay(tempDir, mapper, 0));
+        assertTrue(e.getMessage().contains("page size 100"), e.getMessage());
+    }
+
+    private static void recordResponses(RpcRecording recording) throws IOException {
+        for (int i = 0; i < 50; i++) {
+            recording.putResult("gettransaction", List.of("tx" + i), result(i));
+        }
+        recording.putError("omni_gettransaction", List.of("tx0"), new IOException("Not an Omni transaction"));
+        // A later response for the same call replaces the earlier one
+        recording.putResult("gettransaction", List.of("tx0"), result(1_000));
+    }
+
+    private static void assertReplayed(RpcRecording recording) throws IOException {
+        assertTrue(recording.isReplay());
+        assertEquals(result(1_000), recording.get("gettransaction", List.of("tx0")));
+        for (int i = 1; i < 50; i++) {
+            assertEquals(result(i), recording.get("gettransaction", List.of("tx" + i)));
+        }
+        RpcRecording.RecordedErrorException e = assertThrows(RpcRecording.RecordedErrorException.class,
+                () -> recording.get("omni_gettransaction", List.of("tx0")));
+        assertEquals("Not an Omni transaction", e.getMessage());
+        // The parameters are part of the key
+        assertThrows(IOException.class, () -> recording.get("gettransaction", List.of("tx50")));
+        assertThrows(IOException.class, () -> recording.get("omni_gettransaction", List.of("tx1")));
+    }
+
+    private static JsonNode result(int n) {
+        return mapper.createObjectNode()
+                .put("txid", "tx" + n)
+                .put("hex", "00".repeat(n % 200));
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks hits, misses, persistence, eviction and compaction of the {@link RpcResultCache} log
+ */
+public class RpcResultCacheTest {
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final int minConfirmations = 6;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void missThenHit() throws IOException {
+        try (RpcResultCache cache = open(1 << 20)) {
+            assertEquals(Optional.empty(), cache.get("gettransaction", txId(1)));
+            assertTrue(cache.putIfConfirmed("gettransaction", txId(1), result(1, 10)));
+            assertEquals(Optional.of(result(1, 10)), cache.get("gettransaction", txId(1)));
+            // Results are keyed by method as well as txid
+            assertEquals(Optional.empty(), cache.get("omni_gettransaction", txId(1)));
+            assertEquals(1, cache.hitCount());
+            assertEquals(2, cache.missCount());
+        }
+    }
+
+    @Test
+    void onlyConfirmedResultsAreCached() throws IOException {
+        try (RpcResultCache cache = open(1 << 20)) {
+            assertFalse(cache.putIfConfirmed("gettransaction", txId(1), result(1, minConfirmations - 1)));
+            assertFalse(cache.putIfConfirmed("gettransaction", txId(2), mapper.createObjectNode().put("txid", "2")));
+            assertTrue(cache.putIfConfirmed("gettransaction", txId(3), result(3, minConfirmations)));
+            assertEquals(1, cache.size());
+        }
+    }
+
+    @Test
+    void resultsPersist() throws IOException {
+        try (RpcResultCache cache = open(1 << 20)) {
+            for (int i = 0; i < 100; i++) {
+                cache.putIfConfirmed("gettransaction", txId(i), result(i, 10));
+            }
+        }
+        try (RpcResultCache cache = open(1 << 20)) {
+            assertEquals(100, cache.size());
+            for (int i = 0; i < 100; i++) {
+                assertEquals(Optional.of(result(i, 10)), cache.get("gettransaction", txId(i)));
+            }
+        }
+    }
+
+    @Test
+    void leastRecentlyUsedResultsAreEvicted() throws IOException {
+        long recordBytes = recordBytes();
+        try (RpcResultCache cache = open(10 * recordBytes)) {
+            for (int i = 0; i < 10; i++) {
+                cache.putIfConfirmed("gettransaction", txId(i), result(i, 10));
+            }
+            // Use 0, so 1 is the least recently used
+            assertTrue(cache.get("gettransaction", txId(0)).isPresent());
+            cache.putIfConfirmed("gettransaction", txId(10), result(10, 10));
+            assertEquals(10, cache.size());
+            assertEquals(1, cache.evictionCount());
+            assertTrue(cache.get("gettransaction", txId(0)).isPresent());
+            assertEquals(Optional.empty(), cache.get("gettransaction", txId(1)));
+        }
+    }
+
+    @Test
+    void logIsCompacted() throws IOException {
+        long recordBytes = recordBytes();
+        Path file = tempDir.resolve("cache.bin");
+        try (RpcResultCache cache = open(10 * recordBytes)) {
+            for (int i = 0; i < 1_000; i++) {
+                cache.putIfConfirmed("gettransaction", txId(i), result(i, 10));
+            }
+            assertEquals(990, cache.evictionCount());
+        }
+        assertTrue(Files.size(file) <= 20 * recordBytes, "log wasn't compacted: " + Files.size(file));
+        try (RpcResultCache cache = open(10 * recordBytes)) {
+            assertEquals(10, cache.size());
+            for (int i = 990; i < 1_000; i++) {
+                assertEquals(Optional.of(result(i, 10)), cache.get("gettransaction", txId(i)));
+            }
+        }
+    }
+
+    @Test
+    void truncatedRecordIsDiscarded() throws IOException {
+        Path file = tempDir.resolve("cache.bin");
+        try (RpcResultCache cache = open(1 << 20)) {
+            cache.putIfConfirmed("gettransaction", txId(1), result(1, 10));
+            cache.putIfConfirmed("gettransaction", txId(2), result(2, 10));
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+        try (RpcResultCache cache = open(1 << 20)) {
+            assertEquals(1, cache.size());
+            assertEquals(Optional.of(result(1, 10)), cache.get("gettransaction", txId(1)));
+            assertEquals(Optional.empty(), cache.get("gettransaction", txId(2)));
+            assertTrue(cache.putIfConfirmed("gettransaction", txId(2), result(2, 10)));
+        }
+        try (RpcResultCache cache = open(1 << 20)) {
+            assertEquals(Optional.of(result(2, 10)), cache.get("gettransaction", txId(2)));
+        }
+    }
+
+    @Test
+    void concurrentLookupsDuringCompaction() throws Exception {
+        // Readers look up results while the writer's evictions compact (and replace) the log
+        long recordBytes = recordBytes();
+        try (RpcResultCache cache = open(50 * recordBytes)) {
+            ExecutorService executor = Executors.newFixedThreadPool(5);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 5_000; i++) {
+                        cache.putIfConfirmed("gettransaction", txId(i), result(i, 10));
+                    }
+                }));
+                for (int r = 0; r < 4; r++) {
+                    futures.add(executor.submit(() -> {
+                        for (int i = 0; i < 20_000; i++) {
+                            int n = i % 5_000;
+                            cache.get("gettransaction", txId(n))
+                                    .ifPresent(result -> assertEquals(result(n, 10), result));
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+            assertEquals(50, cache.size());
+        }
+    }
+
+    private RpcResultCache open(long maxBytes) throws IOException {
+        return new RpcResultCache(tempDir.resolve("cache.bin"), mapper, minConfirmations, maxBytes);
+    }
+
+    // Size of the log record of a result, all results in these tests have the same size
+    private static long recordBytes() throws IOException {
+        return 1 + "gettransaction".length() + 32 + 4 + mapper.writeValueAsBytes(result(0, 10)).length;
+    }
+
+    private static Sha256Hash txId(int n) {
+        return Sha256Hash.of(Integer.toString(n).getBytes());
+    }
+
+    private static JsonNode result(int n, int confirmations) {
+        ObjectNode result = mapper.createObjectNode();
+        result.put("txid", txId(n).toString());
+        result.put("confirmations", confirmations);
+        return result;
+    }
+}
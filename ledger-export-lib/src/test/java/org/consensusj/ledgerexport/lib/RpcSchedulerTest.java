@@ -0,0 +1,161 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Drives {@link RpcScheduler} with fake calls: a server that rejects calls beyond its capacity with HTTP 503, a
+ * server that is always overloaded, and one that fails
+ */
+public class RpcSchedulerTest {
+    private static final Duration retryDelay = Duration.ofMillis(20);
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void limitGrowsWhileCallsSucceed() throws Exception {
+        RpcScheduler scheduler = new RpcScheduler(executor, 2, 32, retryDelay);
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            int n = i;
+            futures.add(scheduler.submit("fast", () -> n));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals(i, futures.get(i).get(1, TimeUnit.MINUTES));
+        }
+        assertTrue(scheduler.limit() > 2, "limit didn't grow: " + scheduler);
+        assertEquals(200, scheduler.completedCount());
+        assertEquals(0, scheduler.errorCount());
+    }
+
+    @Test
+    void overloadedServerCompletesAllCalls() throws Exception {
+        // The server accepts 4 concurrent calls and rejects the rest as overloaded
+        int capacity = 4;
+        AtomicInteger concurrent = new AtomicInteger();
+        AtomicInteger maxAccepted = new AtomicInteger();
+        RpcScheduler scheduler = new RpcScheduler(executor, 16, 64, retryDelay);
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            int n = i;
+            futures.add(scheduler.submit("call", () -> {
+                try {
+                    int current = concurrent.incrementAndGet();
+                    if (current > capacity) {
+                        throw new HttpStatusException(HttpStatusException.SERVICE_UNAVAILABLE, "Work queue depth exceeded");
+                    }
+                    maxAccepted.accumulateAndGet(current, Math::max);
+                    Thread.sleep(2);
+                    return n;
+                } finally {
+                    concurrent.decrementAndGet();
+                }
+            }));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals(i, futures.get(i).get(1, TimeUnit.MINUTES));
+        }
+        assertTrue(scheduler.limit() < 16, "limit wasn't decreased: " + scheduler);
+        assertTrue(scheduler.retryCount() > 0, scheduler.toString());
+        assertEquals(scheduler.retryCount(), scheduler.errorCount());
+        assertEquals(200, scheduler.completedCount());
+        assertEquals(0, scheduler.retryWaiting());
+        assertTrue(maxAccepted.get() <= capacity);
+    }
+
+    @Test
+    void overloadedCallIsRetriedWithBackoffAndThenFails() {
+        RpcScheduler scheduler = new RpcScheduler(executor, 4, 4, retryDelay);
+        List<Long> attemptTimes = new ArrayList<>();
+        CompletableFuture<Object> future = scheduler.submit("call", () -> {
+            synchronized (attemptTimes) {
+                attemptTimes.add(System.nanoTime());
+            }
+            throw new HttpStatusException(HttpStatusException.SERVICE_UNAVAILABLE, "Work queue depth exceeded");
+        });
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(1, TimeUnit.MINUTES));
+        assertInstanceOf(HttpStatusException.class, e.getCause());
+        // The first attempt and three retries, each after at least twice the previous delay
+        assertEquals(4, attemptTimes.size());
+        for (int i = 1; i < attemptTimes.size(); i++) {
+            long minDelayNanos = retryDelay.toNanos() << (i - 1);
+            assertTrue(attemptTimes.get(i) - attemptTimes.get(i - 1) >= minDelayNanos, "retry " + i + " wasn't delayed");
+        }
+        assertEquals(3, scheduler.retryCount());
+        assertEquals(4, scheduler.errorCount());
+        assertEquals(1, scheduler.limit());
+    }
+
+    @Test
+    void otherErrorsAreNotRetried() {
+        RpcScheduler scheduler = new RpcScheduler(executor, 4, 4, retryDelay);
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<Object> future = scheduler.submit("call", () -> {
+            attempts.incrementAndGet();
+            throw new IOException("connection refused");
+        });
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(1, TimeUnit.MINUTES));
+        assertInstanceOf(IOException.class, e.getCause());
+        assertEquals(1, attempts.get());
+        assertEquals(0, scheduler.retryCount());
+        assertEquals(4, scheduler.limit());
+    }
+
+    @Test
+    void dependentStageDoesNotHoldSlot() throws Exception {
+        // With one slot, a stage that runs on the completing thread waits for the next call to start
+        RpcScheduler scheduler = new RpcScheduler(executor, 1, 1, retryDelay);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch secondStarted = new CountDownLatch(1);
+        CompletableFuture<Boolean> first = scheduler.submit("call", () -> release.await(10, TimeUnit.SECONDS))
+                .thenApply(r -> {
+                    try {
+                        return secondStarted.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+        scheduler.submit("call", () -> {
+            secondStarted.countDown();
+            return true;
+        });
+        release.countDown();
+        assertTrue(first.get(1, TimeUnit.MINUTES));
+    }
+}
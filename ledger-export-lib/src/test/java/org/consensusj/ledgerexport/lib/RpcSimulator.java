@@ -0,0 +1,660 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.bitcoinj.core.Base58;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stand-in for an Omni Core JSON-RPC server, serving a synthetic regtest wallet.
+ * Implements the methods used by {@link OmniExportClient}: {@code listtransactions}, {@code gettransaction},
+ * {@code listsinceblock}, {@code getblockhash}, {@code getblockheader}, {@code getrawtransaction}, {@code omni_getinfo},
+ * {@code omni_listtransactions} and {@code omni_gettradehistoryforaddress}, with single and batch requests.
+ * <p>
+ * Every call is delayed by a configurable latency and can fail with a configurable probability. Like Bitcoin Core
+ * with a full {@code rpcworkqueue}, requests beyond a configurable number in progress are rejected with
+ * HTTP 503 {@code Work queue depth exceeded}.
+ * <p>
+ * The wallet is generated from a seed, so the same {@link Config} always produces the same wallet.
+ */
+public class RpcSimulator implements Closeable {
+    // Bitcoin Core writes amounts as plain decimals, e.g. 0.00000001 not 1E-8
+    private static final ObjectMapper mapper = JsonMapper.builder().enable(StreamWriteFeature.WRITE_BIGDECIMAL_AS_PLAIN).build();
+    private static final JsonNodeFactory json = JsonNodeFactory.instance;
+    private static final long genesisTime = 1_600_000_000;
+    private static final int blockInterval = 600;
+    private static final int addressVersion = 111;     // Testnet and regtest P2PKH
+
+    private final Config config;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Random errorRandom;
+    private final AtomicInteger inProgress = new AtomicInteger();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong callCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+
+    private final int tipHeight;
+    private final List<String> addresses = new ArrayList<>();
+    private final List<WalletTx> walletTxs = new ArrayList<>();
+    private final Map<String, WalletTx> walletTxsById = new HashMap<>();
+    private final List<Trade> trades = new ArrayList<>();
+    private final Map<String, Integer> matchTxHeights = new HashMap<>();
+    private final Map<String, Integer> blockHeights = new HashMap<>();
+
+    /**
+     * Simulator configuration
+     * @param transactions number of wallet transactions
+     * @param omniEvery every n-th wallet transaction is also an Omni transaction (0 for none)
+     * @param tradeEvery every n-th Omni transaction is a MetaDEx trade (0 for none)
+     * @param matchesPerTrade number of matches for each trade
+     * @param matchTxPool number of distinct match transactions that matches are drawn from, smaller values mean
+     *                    more matches share a txid (0 for a distinct txid per match)
+     * @param latencyMillis delay before responding to each request
+     * @param errorRate probability that a call returns an error
+     * @param maxInProgress requests in progress beyond this are rejected with HTTP 503 (0 for no limit)
+     * @param seed seed for generating the wallet
+     */
+    public record Config(int transactions, int omniEvery, int tradeEvery, int matchesPerTrade, int matchTxPool,
+                         long latencyMillis, double errorRate, int maxInProgress, long seed) {
+        /**
+         * A 1,000 transaction wallet with a tenth of its transactions on Omni, no latency and no errors
+         */
+        public static final Config DEFAULT = new Config(1_000, 10, 4, 3, 0, 0, 0, 0, 1);
+
+        /**
+         * @param transactions number of wallet transactions
+         * @return a copy with the given number of wallet transactions
+         */
+        public Config withTransactions(int transactions) {
+            return new Config(transactions, omniEvery, tradeEvery, matchesPerTrade, matchTxPool, latencyMillis, errorRate, maxInProgress, seed);
+        }
+
+        /**
+         * @param latencyMillis delay before responding to each request
+         * @return a copy with the given latency
+         */
+        public Config withLatency(long latencyMillis) {
+            return new Config(transactions, omniEvery, tradeEvery, matchesPerTrade, matchTxPool, latencyMillis, errorRate, maxInProgress, seed);
+        }
+
+        /**
+         * @param errorRate probability that a call returns an error
+         * @return a copy with the given error rate
+         */
+        public Config withErrorRate(double errorRate) {
+            return new Config(transactions, omniEvery, tradeEvery, matchesPerTrade, matchTxPool, latencyMillis, errorRate, maxInProgress, seed);
+        }
+
+        /**
+         * @param maxInProgress requests in progress beyond this are rejected with HTTP 503 (0 for no limit)
+         * @return a copy with the given limit
+         */
+        public Config withMaxInProgress(int maxInProgress) {
+            return new Config(transactions, omniEvery, tradeEvery, matchesPerTrade, matchTxPool, latencyMillis, errorRate, maxInProgress, seed);
+        }
+
+        /**
+         * @param matchesPerTrade number of matches for each trade
+         * @param matchTxPool number of distinct match transactions (0 for a distinct txid per match)
+         * @return a copy with the given match configuration
+         */
+        public Config withMatches(int matchesPerTrade, int matchTxPool) {
+            return new Config(transactions, omniEvery, tradeEvery, matchesPerTrade, matchTxPool, latencyMillis, errorRate, maxInProgress, seed);
+        }
+    }
+
+    private record WalletTx(String txid, int height, int blockIndex, String address, String category, BigDecimal amount, boolean omni, Trade trade) {}
+    private record Trade(String txid, int height, String address, List<Match> matches) {}
+    private record Match(String txid, int height, String address) {}
+
+    private static class RpcError extends Exception {
+        final int code;
+
+        RpcError(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    /**
+     * Generate the wallet and start listening on an ephemeral port on the loopback address
+     * @param config simulator configuration
+     * @throws IOException if the server can't be started
+     */
+    public RpcSimulator(Config config) throws IOException {
+        this.config = config;
+        this.errorRandom = new Random(config.seed());
+        this.tipHeight = Math.max(config.transactions() / 10, 1) + 100;
+        generate(new Random(config.seed()));
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return URI of the server
+     */
+    public URI getURI() {
+        return URI.create("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/");
+    }
+
+    /**
+     * @return the configuration
+     */
+    public Config config() {
+        return config;
+    }
+
+    /**
+     * @return number of wallet transactions with at least one confirmation
+     */
+    public int confirmedTransactionCount() {
+        return (int) walletTxs.stream().filter(tx -> confirmations(tx.height()) >= 1).count();
+    }
+
+    /**
+     * @return number of MetaDEx matches for the wallet's trades
+     */
+    public int matchCount() {
+        return trades.stream().mapToInt(t -> t.matches().size()).sum();
+    }
+
+    /**
+     * @return number of HTTP requests received
+     */
+    public long requestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return number of JSON-RPC calls received (a batch request contains several calls)
+     */
+    public long callCount() {
+        return callCount.get();
+    }
+
+    /**
+     * @return number of HTTP requests rejected with 503
+     */
+    public long rejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return number of calls that returned an injected error
+     */
+    public long errorCount() {
+        return errorCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RpcSimulator[requests=%d, calls=%d, rejected=%d, errors=%d]",
+                requestCount(), callCount(), rejectedCount(), errorCount());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void generate(Random random) {
+        for (int height = 0; height <= tipHeight; height++) {
+            blockHeights.put(blockHash(height), height);
+        }
+        int addressCount = 10 + config.transactions() / 100;
+        for (int i = 0; i < addressCount; i++) {
+            addresses.add(address(hash("address", i)));
+        }
+        int omniCount = 0;
+        for (int i = 0; i < config.transactions(); i++) {
+            String txid = hex(hash("tx", i));
+            // Spread transactions over the chain, the last few are unconfirmed (in the block after the tip)
+            int height = 1 + (int) ((long) i * (tipHeight + 1) / config.transactions());
+            String address = addresses.get(random.nextInt(addresses.size()));
+            boolean receive = random.nextInt(3) != 0;
+            BigDecimal amount = BigDecimal.valueOf(1 + random.nextInt(10_000_000), 8);
+            boolean omni = config.omniEvery() > 0 && i % config.omniEvery() == 0;
+            Trade trade = null;
+            if (omni) {
+                if (config.tradeEvery() > 0 && omniCount % config.tradeEvery() == 0) {
+                    trade = new Trade(txid, height, address, generateMatches(random, trades.size(), height));
+                    trades.add(trade);
+                }
+                omniCount++;
+            }
+            WalletTx tx = new WalletTx(txid, height, i % 100, address, receive ? "receive" : "send",
+                    receive ? amount : amount.negate(), omni, trade);
+            walletTxs.add(tx);
+            walletTxsById.put(txid, tx);
+        }
+    }
+
+    private List<Match> generateMatches(Random random, int tradeIndex, int tradeHeight) {
+        List<Match> matches = new ArrayList<>();
+        for (int j = 0; j < config.matchesPerTrade(); j++) {
+            int n = config.matchTxPool() > 0 ? random.nextInt(config.matchTxPool()) : tradeIndex * config.matchesPerTrade() + j;
+            String txid = hex(hash("match", n));
+            // A shared match transaction keeps the height it was first given
+            int height = matchTxHeights.computeIfAbsent(txid, k -> Math.min(tipHeight, tradeHeight + random.nextInt(10)));
+            matches.add(new Match(txid, height, addresses.get(random.nextInt(addresses.size()))));
+        }
+        return matches;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        try (exchange) {
+            if (config.maxInProgress() > 0 && inProgress.incrementAndGet() > config.maxInProgress()) {
+                rejectedCount.incrementAndGet();
+                respond(exchange, 503, "Work queue depth exceeded".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            JsonNode request;
+            try (InputStream in = exchange.getRequestBody()) {
+                request = mapper.readTree(in);
+            }
+            if (config.latencyMillis() > 0) {
+                Thread.sleep(config.latencyMillis());
+            }
+            if (request.isArray()) {
+                ArrayNode responses = json.arrayNode();
+                request.forEach(r -> responses.add(call(r)));
+                respond(exchange, 200, mapper.writeValueAsBytes(responses));
+            } else {
+                ObjectNode response = call(request);
+                // Bitcoin Core returns HTTP 500 for a single call that fails
+                respond(exchange, response.get("error").isNull() ? 200 : 500, mapper.writeValueAsBytes(response));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (config.maxInProgress() > 0) {
+                inProgress.decrementAndGet();
+            }
+        }
+    }
+
+    private void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private ObjectNode call(JsonNode request) {
+        callCount.incrementAndGet();
+        ObjectNode response = json.objectNode();
+        if (request.has("jsonrpc")) {
+            response.put("jsonrpc", "2.0");
+        }
+        String method = request.path("method").asText();
+        JsonNode params = request.path("params");
+        try {
+            if (config.errorRate() > 0 && nextErrorDouble() < config.errorRate()) {
+                errorCount.incrementAndGet();
+                throw new RpcError(-1, "Simulated error");
+            }
+            response.set("result", dispatch(method, params));
+            response.putNull("error");
+        } catch (RpcError e) {
+            response.putNull("result");
+            response.set("error", json.objectNode().put("code", e.code).put("message", e.getMessage()));
+        }
+        response.set("id", request.path("id"));
+        return response;
+    }
+
+    private synchronized double nextErrorDouble() {
+        return errorRandom.nextDouble();
+    }
+
+    private JsonNode dispatch(String method, JsonNode params) throws RpcError {
+        return switch (method) {
+            case "listtransactions" -> listTransactions(params.path(1).asInt(10), params.path(2).asInt(0));
+            case "gettransaction" -> getTransaction(params.path(0).asText());
+            case "listsinceblock" -> listSinceBlock(params.path(0).asText(""), params.path(1).asInt(1));
+            case "getbestblockhash" -> json.textNode(blockHash(tipHeight));
+            case "getblockcount" -> json.numberNode(tipHeight);
+            case "getblockhash" -> getBlockHash(params.path(0).asInt(-1));
+            case "getblockheader" -> getBlockHeader(params.path(0).asText());
+            case "getrawtransaction" -> getRawTransaction(params.path(0).asText());
+            case "omni_getinfo" -> omniGetInfo();
+            case "omni_listtransactions" -> omniListTransactions(params.path(1).asInt(10), params.path(2).asInt(0),
+                    params.path(3).asInt(0), params.path(4).asInt(999_999_999));
+            case "omni_gettradehistoryforaddress" -> omniGetTradeHistoryForAddress(params.path(0).asText(), params.path(1).asInt(10));
+            default -> throw new RpcError(-32601, "Method not found");
+        };
+    }
+
+    // Like Bitcoin Core: skip the most recent transactions, then return up to count of the most recent, oldest first
+    private JsonNode listTransactions(int count, int skip) {
+        ArrayNode result = json.arrayNode();
+        int end = Math.max(walletTxs.size() - skip, 0);
+        walletTxs.subList(Math.max(end - count, 0), end).forEach(tx -> result.add(listEntry(tx)));
+        return result;
+    }
+
+    private JsonNode getTransaction(String txid) throws RpcError {
+        WalletTx tx = walletTxsById.get(txid);
+        if (tx == null) {
+            throw new RpcError(-5, "Invalid or non-wallet transaction id");
+        }
+        ObjectNode result = json.objectNode();
+        result.put("amount", tx.amount());
+        if (tx.category().equals("send")) {
+            result.put("fee", new BigDecimal("-0.00001000"));
+        }
+        putBlockFields(result, tx);
+        result.put("txid", tx.txid());
+        result.set("walletconflicts", json.arrayNode());
+        result.put("time", blockTime(tx.height()));
+        result.put("timereceived", blockTime(tx.height()));
+        result.put("bip125-replaceable", "no");
+        result.set("details", json.arrayNode().add(detail(tx)));
+        result.put("hex", "00");
+        return result;
+    }
+
+    private JsonNode listSinceBlock(String sinceHash, int targetConfirmations) throws RpcError {
+        int sinceHeight = sinceHash.isEmpty() ? 0 : heightOf(sinceHash);
+        ArrayNode transactions = json.arrayNode();
+        walletTxs.stream()
+                .filter(tx -> tx.height() > sinceHeight || confirmations(tx.height()) == 0)
+                .forEach(tx -> transactions.add(listEntry(tx)));
+        ObjectNode result = json.objectNode();
+        result.set("transactions", transactions);
+        result.set("removed", json.arrayNode());
+        result.put("lastblock", blockHash(Math.max(tipHeight - targetConfirmations + 1, 0)));
+        return result;
+    }
+
+    private JsonNode getBlockHash(int height) throws RpcError {
+        if (height < 0 || height > tipHeight) {
+            throw new RpcError(-8, "Block height out of range");
+        }
+        return json.textNode(blockHash(height));
+    }
+
+    private JsonNode getBlockHeader(String hash) throws RpcError {
+        int height = heightOf(hash);
+        ObjectNode result = json.objectNode();
+        result.put("hash", hash);
+        result.put("confirmations", confirmations(height));
+        result.put("height", height);
+        result.put("version", 536870912);
+        result.put("merkleroot", hex(hash("merkle", height)));
+        result.put("time", blockTime(height));
+        result.put("mediantime", blockTime(height) - 5 * blockInterval);
+        result.put("nonce", 0);
+        result.put("bits", "207fffff");
+        result.put("difficulty", 4.656542373906925E-10);
+        result.put("chainwork", String.format("%064x", 2L * (height + 1)));
+        result.put("nTx", 1);
+        if (height > 0) {
+            result.put("previousblockhash", blockHash(height - 1));
+        }
+        if (height < tipHeight) {
+            result.put("nextblockhash", blockHash(height + 1));
+        }
+        return result;
+    }
+
+    private JsonNode getRawTransaction(String txid) throws RpcError {
+        WalletTx walletTx = walletTxsById.get(txid);
+        Integer height = (walletTx != null) ? Integer.valueOf(walletTx.height()) : matchTxHeights.get(txid);
+        if (height == null) {
+            throw new RpcError(-5, "No such mempool or blockchain transaction. Use gettransaction for wallet transactions.");
+        }
+        String address = (walletTx != null) ? walletTx.address() : addresses.get(0);
+        ObjectNode result = json.objectNode();
+        result.put("txid", txid);
+        result.put("hash", txid);
+        result.put("version", 2);
+        result.put("size", 225);
+        result.put("vsize", 225);
+        result.put("weight", 900);
+        result.put("locktime", 0);
+        result.set("vin", json.arrayNode().add(json.objectNode()
+                .put("txid", hex(hash("prevout", txid.hashCode())))
+                .put("vout", 0)
+                .<ObjectNode>set("scriptSig", json.objectNode().put("asm", "").put("hex", ""))
+                .put("sequence", 4294967295L)));
+        result.set("vout", json.arrayNode().add(json.objectNode()
+                .put("value", new BigDecimal("0.00000546"))
+                .put("n", 0)
+                .set("scriptPubKey", json.objectNode()
+                        .put("asm", "")
+                        .put("hex", "")
+                        .put("reqSigs", 1)
+                        .put("type", "pubkeyhash")
+                        .set("addresses", json.arrayNode().add(address)))));
+        result.put("hex", "00");
+        if (confirmations(height) > 0) {
+            result.put("blockhash", blockHash(height));
+            result.put("confirmations", confirmations(height));
+            result.put("time", blockTime(height));
+            result.put("blocktime", blockTime(height));
+        }
+        return result;
+    }
+
+    private JsonNode omniGetInfo() {
+        ObjectNode result = json.objectNode();
+        result.put("omnicoreversion_int", 120000);
+        result.put("omnicoreversion", "0.12.0");
+        result.put("mastercoreversion", "0.12.0");
+        result.put("bitcoincoreversion", "0.20.1");
+        result.put("block", tipHeight);
+        result.put("blocktime", blockTime(tipHeight));
+        result.put("blocktransactions", 0);
+        result.put("totaltrades", trades.size());
+        result.put("totaltransactions", walletTxs.stream().filter(WalletTx::omni).count());
+        result.set("alerts", json.arrayNode());
+        return result;
+    }
+
+    // Like Omni Core: filter by block range, skip the most recent, then return up to count of the most recent
+    private JsonNode omniListTransactions(int count, int skip, int startBlock, int endBlock) {
+        List<WalletTx> omniTxs = walletTxs.stream()
+                .filter(tx -> tx.omni() && confirmations(tx.height()) > 0 && tx.height() >= startBlock && tx.height() <= endBlock)
+                .toList();
+        ArrayNode result = json.arrayNode();
+        int end = Math.max(omniTxs.size() - skip, 0);
+        omniTxs.subList(Math.max(end - count, 0), end).forEach(tx -> result.add(omniTransaction(tx)));
+        return result;
+    }
+
+    private JsonNode omniGetTradeHistoryForAddress(String address, int count) {
+        List<Trade> addressTrades = trades.stream().filter(t -> t.address().equals(address)).toList();
+        ArrayNode result = json.arrayNode();
+        addressTrades.subList(Math.max(addressTrades.size() - count, 0), addressTrades.size())
+                .forEach(t -> result.add(tradeInfo(t)));
+        return result;
+    }
+
+    private ObjectNode listEntry(WalletTx tx) {
+        ObjectNode entry = detail(tx);
+        putBlockFields(entry, tx);
+        entry.put("txid", tx.txid());
+        entry.set("walletconflicts", json.arrayNode());
+        entry.put("time", blockTime(tx.height()));
+        entry.put("timereceived", blockTime(tx.height()));
+        entry.put("bip125-replaceable", "no");
+        return entry;
+    }
+
+    private ObjectNode detail(WalletTx tx) {
+        ObjectNode detail = json.objectNode();
+        detail.put("address", tx.address());
+        detail.put("category", tx.category());
+        detail.put("amount", tx.amount());
+        detail.put("label", "");
+        detail.put("vout", 0);
+        if (tx.category().equals("send")) {
+            detail.put("fee", new BigDecimal("-0.00001000"));
+            detail.put("abandoned", false);
+        }
+        return detail;
+    }
+
+    private void putBlockFields(ObjectNode node, WalletTx tx) {
+        int confirmations = confirmations(tx.height());
+        node.put("confirmations", confirmations);
+        if (confirmations > 0) {
+            node.put("blockhash", blockHash(tx.height()));
+            node.put("blockheight", tx.height());
+            node.put("blockindex", tx.blockIndex());
+            node.put("blocktime", blockTime(tx.height()));
+        } else {
+            node.put("trusted", true);
+        }
+    }
+
+    private ObjectNode omniTransaction(WalletTx tx) {
+        ObjectNode result = omniCommon(tx.txid(), tx.address());
+        if (tx.trade() != null) {
+            putTradeFields(result);
+        } else {
+            result.put("referenceaddress", addresses.get(0));
+            result.put("type_int", 0);
+            result.put("type", "Simple Send");
+            result.put("propertyid", 31);
+            result.put("divisible", true);
+            result.put("amount", tx.amount().abs().toPlainString());
+        }
+        result.put("valid", true);
+        putOmniBlockFields(result, tx.height(), tx.blockIndex());
+        return result;
+    }
+
+    private ObjectNode tradeInfo(Trade trade) {
+        ObjectNode result = omniCommon(trade.txid(), trade.address());
+        putTradeFields(result);
+        result.put("status", "filled");
+        result.put("valid", true);
+        putOmniBlockFields(result, trade.height(), 0);
+        ArrayNode matches = json.arrayNode();
+        trade.matches().forEach(m -> matches.add(json.objectNode()
+                .put("txid", m.txid())
+                .put("block", m.height())
+                .put("address", m.address())
+                .put("amountsold", "1.00000000")
+                .put("amountreceived", "0.50000000")
+                .put("tradingfee", "0.00000000")));
+        result.set("matches", matches);
+        return result;
+    }
+
+    private ObjectNode omniCommon(String txid, String address) {
+        ObjectNode result = json.objectNode();
+        result.put("txid", txid);
+        result.put("fee", "0.00001000");
+        result.put("sendingaddress", address);
+        result.put("ismine", true);
+        result.put("version", 0);
+        return result;
+    }
+
+    private void putTradeFields(ObjectNode node) {
+        node.put("type_int", 25);
+        node.put("type", "MetaDEx trade");
+        node.put("propertyidforsale", 1);
+        node.put("propertyidforsaleisdivisible", true);
+        node.put("amountforsale", "3.00000000");
+        node.put("propertyiddesired", 31);
+        node.put("propertyiddesiredisdivisible", true);
+        node.put("amountdesired", "1.50000000");
+        node.put("unitprice", "0.50000000000000000000000000000000000000000000000000");
+    }
+
+    private void putOmniBlockFields(ObjectNode node, int height, int positionInBlock) {
+        node.put("blockhash", blockHash(height));
+        node.put("blocktime", blockTime(height));
+        node.put("positioninblock", positionInBlock);
+        node.put("block", height);
+        node.put("confirmations", confirmations(height));
+    }
+
+    private int confirmations(int height) {
+        return height <= tipHeight ? tipHeight - height + 1 : 0;
+    }
+
+    private int heightOf(String blockHash) throws RpcError {
+        Integer height = blockHeights.get(blockHash);
+        if (height == null) {
+            throw new RpcError(-5, "Block not found");
+        }
+        return height;
+    }
+
+    private static long blockTime(int height) {
+        return genesisTime + (long) height * blockInterval;
+    }
+
+    private static String blockHash(int height) {
+        return hex(hash("block", height));
+    }
+
+    private static byte[] hash(String kind, int n) {
+        return Sha256Hash.hash((kind + ":" + n).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String hex(byte[] bytes) {
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    // Base58Check-encoded P2PKH address for the first 20 bytes of hash
+    private static String address(byte[] hash) {
+        return Base58.encodeChecked(addressVersion, Arrays.copyOf(hash, 20));
+    }
+}
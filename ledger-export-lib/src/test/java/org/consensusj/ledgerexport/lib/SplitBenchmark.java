@@ -0,0 +1,104 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Random;
+import java.util.function.LongSupplier;
+
+/**
+ * Compares allocation and time of building and formatting the splits of a Bitcoin send, as
+ * {@link TransactionImporter} does, with {@link BigDecimal} amounts (as before fixed-point splits) and with
+ * fixed-point {@link LedgerTransaction.Split} amounts. Allocation is measured with
+ * {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}.
+ * <p>
+ * Run with {@code ./gradlew ledger-export-lib:splitBenchmark}, optionally with {@code --args="<iterations>"}.
+ */
+public class SplitBenchmark {
+    private static final String walletAccount = "Assets:Crypto:OmniCore";
+    private static final String BTC = "BTC";
+
+    record Candidate(String name, LongSupplier run) {}
+
+    private static long[] amounts;
+    private static long[] fees;
+    private static long sink;
+
+    /**
+     * @param args optional number of iterations
+     */
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Random random = new Random(1);
+        amounts = random.longs(iterations, -100_000_000_000L, 0).toArray();
+        fees = random.longs(iterations, -100_000, 0).toArray();
+        List<Candidate> candidates = List.of(
+                new Candidate("BigDecimal", SplitBenchmark::bigDecimalSplits),
+                new Candidate("fixed-point", SplitBenchmark::fixedPointSplits));
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+
+        System.out.printf("%d sends, 3 splits each%n", iterations);
+        System.out.printf("%-12s %14s %14s%n", "amounts", "bytes/send", "ns/send");
+        for (Candidate candidate : candidates) {
+            sink += candidate.run().getAsLong();    // Warm up
+            long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            sink += candidate.run().getAsLong();
+            long nanos = System.nanoTime() - start;
+            long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            System.out.printf("%-12s %14d %14d%n", candidate.name(), allocated / iterations, nanos / iterations);
+        }
+        System.out.printf("(%d characters formatted)%n", sink);
+    }
+
+    // The splits and output of a send before fixed-point splits: Coin.toBtc(), BigDecimal math and String.format
+    private static long bigDecimalSplits() {
+        long length = 0;
+        for (int i = 0; i < amounts.length; i++) {
+            BigDecimal amount = new BigDecimal(amounts[i]).movePointLeft(8);
+            BigDecimal fee = new BigDecimal(fees[i]).movePointLeft(8);
+            BigDecimal[] splitAmounts = {amount.add(fee), amount.negate(), fee.negate()};
+            String[] accounts = {walletAccount, "Expense:Misc", "Expense:TransactionFees"};
+            for (int j = 0; j < splitAmounts.length; j++) {
+                length += String.format("    %-40s %s %s", accounts[j], splitAmounts[j].toPlainString(), BTC).length();
+            }
+        }
+        return length;
+    }
+
+    // The same splits and output with fixed-point amounts, formatted into a reused builder
+    private static long fixedPointSplits() {
+        long length = 0;
+        StringBuilder builder = new StringBuilder(256);
+        for (int i = 0; i < amounts.length; i++) {
+            long amount = amounts[i];
+            long fee = fees[i];
+            LedgerTransaction.Split[] splits = {
+                    new LedgerTransaction.Split(walletAccount, amount + fee, 8, BTC),
+                    new LedgerTransaction.Split("Expense:Misc", -amount, 8, BTC),
+                    new LedgerTransaction.Split("Expense:TransactionFees", -fee, 8, BTC)};
+            for (LedgerTransaction.Split split : splits) {
+                builder.setLength(0);
+                split.appendTo(builder);
+                length += builder.length();
+            }
+        }
+        return length;
+    }
+}
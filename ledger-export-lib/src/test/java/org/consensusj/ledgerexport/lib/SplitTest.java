@@ -0,0 +1,99 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks the fixed-point amounts of {@link LedgerTransaction.Split} against {@link BigDecimal}
+ */
+public class SplitTest {
+    @Test
+    void zero() {
+        assertAmount("0", 0, 0);
+        assertAmount("0.0", 0, 1);
+        assertAmount("0.00000000", 0, 8);
+    }
+
+    @Test
+    void negative() {
+        assertAmount("-1", -1, 0);
+        assertAmount("-0.00000001", -1, 8);
+        assertAmount("-0.5", -5, 1);
+        assertAmount("-1.00000000", -100_000_000, 8);
+        assertAmount("-123.45600000", -12_345_600_000L, 8);
+    }
+
+    @Test
+    void positive() {
+        assertAmount("1", 1, 0);
+        assertAmount("0.00000001", 1, 8);
+        assertAmount("21000000.00000000", 2_100_000_000_000_000L, 8);
+    }
+
+    @Test
+    void scaleEdges() {
+        // Scale equal to and greater than the number of digits, and the long extremes
+        assertAmount("0.123", 123, 3);
+        assertAmount("0.0123", 123, 4);
+        assertAmount("-0.000000000000000000123", -123, 21);
+        assertAmount("9223372036854775807", Long.MAX_VALUE, 0);
+        assertAmount("-9223372036854775808", Long.MIN_VALUE, 0);
+        assertAmount("-0.9223372036854775808", Long.MIN_VALUE, 19);
+        assertAmount("-0.09223372036854775808", Long.MIN_VALUE, 20);
+        assertAmount("92233720368.54775807", Long.MAX_VALUE, 8);
+    }
+
+    @Test
+    void randomAmounts() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100_000; i++) {
+            long units = switch (i % 3) {
+                case 0 -> random.nextLong();
+                case 1 -> random.nextInt();
+                default -> random.nextInt(2_000) - 1_000;
+            };
+            int scale = random.nextInt(24);
+            assertAmount(BigDecimal.valueOf(units, scale).toPlainString(), units, scale);
+        }
+    }
+
+    @Test
+    void negativeScaleIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new LedgerTransaction.Split(0, 1, -1, 0));
+    }
+
+    @Test
+    void bigDecimalWithNegativeScale() {
+        var split = new LedgerTransaction.Split("Assets:Wallet", new BigDecimal("1E+3"), "BTC");
+        assertEquals(1_000, split.units());
+        assertEquals(0, split.scale());
+        assertEquals(new BigDecimal("1000"), split.amount());
+    }
+
+    private static void assertAmount(String expected, long units, int scale) {
+        assertEquals(expected, BigDecimal.valueOf(units, scale).toPlainString(), "BigDecimal");
+        StringBuilder builder = new StringBuilder("prefix ");
+        LedgerTransaction.Split.appendAmount(builder, units, scale);
+        assertEquals("prefix " + expected, builder.toString(), () -> units + " at scale " + scale);
+    }
+}
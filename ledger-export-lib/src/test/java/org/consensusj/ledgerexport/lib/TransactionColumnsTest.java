@@ -0,0 +1,135 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.RegTestParams;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that wallet entries and addresses read back from {@link TransactionColumns} as they were added
+ */
+public class TransactionColumnsTest {
+    @Test
+    void walletRowRoundTrip() {
+        TransactionColumns columns = new TransactionColumns();
+        Address address = address(1);
+        var row = new TransactionColumns.WalletRow(1_600_000_000L, -12_345_678L, -1_000L, 3, "send", "rent",
+                "paid in full", address, true, false, 6);
+        TransactionColumns.WalletEntry entry = columns.add(row);
+        assertEquals(Instant.ofEpochSecond(1_600_000_000L), entry.getTime());
+        assertEquals(Coin.valueOf(-12_345_678L), entry.getAmount());
+        assertEquals(-12_345_678L, entry.getAmountValue());
+        assertTrue(entry.hasFee());
+        assertEquals(Coin.valueOf(-1_000L), entry.getFee());
+        assertEquals(-1_000L, entry.getFeeValue());
+        assertEquals(3, entry.getVout());
+        assertEquals("send", entry.getCategory());
+        assertEquals("rent", entry.getLabel());
+        assertEquals(Optional.of("paid in full"), entry.getComment());
+        assertEquals(address, entry.getAddress());
+        assertTrue(entry.isAbandoned());
+        assertFalse(entry.hasWalletConflicts());
+    }
+
+    @Test
+    void walletRowWithoutOptionalFields() {
+        TransactionColumns columns = new TransactionColumns();
+        var row = new TransactionColumns.WalletRow(0L, 0L, TransactionColumns.WalletRow.NO_FEE, 0, "receive", null,
+                null, null, false, true, 0);
+        TransactionColumns.WalletEntry entry = columns.add(row);
+        assertFalse(entry.hasFee());
+        assertNull(entry.getFee());
+        assertEquals(0L, entry.getFeeValue());
+        assertNull(entry.getLabel());
+        assertEquals(Optional.empty(), entry.getComment());
+        assertNull(entry.getAddress());
+        assertFalse(entry.isAbandoned());
+        assertTrue(entry.hasWalletConflicts());
+    }
+
+    @Test
+    void manyRowsRoundTrip() {
+        // More rows than the initial capacity, so the columns grow
+        Random random = new Random(1);
+        TransactionColumns columns = new TransactionColumns();
+        List<TransactionColumns.WalletRow> rows = new ArrayList<>();
+        List<TransactionColumns.WalletEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 5_000; i++) {
+            var row = new TransactionColumns.WalletRow(1_500_000_000L + i, random.nextLong(),
+                    random.nextBoolean() ? TransactionColumns.WalletRow.NO_FEE : -random.nextInt(100_000),
+                    random.nextInt(10), random.nextBoolean() ? "send" : "receive", "label " + random.nextInt(50),
+                    random.nextBoolean() ? null : "comment " + i, address(random.nextInt(20)),
+                    random.nextBoolean(), random.nextBoolean(), 1);
+            rows.add(row);
+            entries.add(columns.add(row));
+        }
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals(rows.get(i), rowOf(entries.get(i)));
+        }
+    }
+
+    @Test
+    void addressIdsRoundTrip() {
+        TransactionColumns columns = new TransactionColumns();
+        List<Address> addresses = List.of(address(1), address(2), address(1));
+        int[] ids = columns.addressIds(addresses);
+        assertEquals(ids[0], ids[2]);
+        assertEquals(addresses, List.of(columns.address(ids[0]), columns.address(ids[1]), columns.address(ids[2])));
+        assertArrayEquals(ids, columns.addressIds(addresses));
+    }
+
+    @Test
+    void duplicateWalletRowIsAddedOnce() {
+        TransactionColumns columns = new TransactionColumns();
+        var row = new TransactionColumns.WalletRow(1_600_000_000L, 5_000L, TransactionColumns.WalletRow.NO_FEE, 0,
+                "receive", "", null, address(1), false, false, 1);
+        BitcoinTransactionData data = new BitcoinTransactionData(columns, Sha256Hash.ZERO_HASH, row);
+        data.add(row);
+        assertEquals(1, data.walletEntries().size());
+        assertEquals(row, rowOf(data.walletEntries().get(0)));
+        assertEquals(1, data.confirmations());
+    }
+
+    // Confirmations aren't stored, so the entry reads back with one confirmation like the rows it is compared to
+    private static TransactionColumns.WalletRow rowOf(TransactionColumns.WalletEntry entry) {
+        return new TransactionColumns.WalletRow(entry.getTime().getEpochSecond(), entry.getAmountValue(),
+                entry.hasFee() ? entry.getFeeValue() : TransactionColumns.WalletRow.NO_FEE, entry.getVout(),
+                entry.getCategory(), entry.getLabel(), entry.getComment().orElse(null), entry.getAddress(),
+                entry.isAbandoned(), entry.hasWalletConflicts(), 1);
+    }
+
+    private static Address address(int n) {
+        byte[] hash = new byte[20];
+        hash[19] = (byte) n;
+        return LegacyAddress.fromPubKeyHash(RegTestParams.get(), hash);
+    }
+}
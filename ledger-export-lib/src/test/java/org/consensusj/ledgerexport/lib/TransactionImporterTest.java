@@ -0,0 +1,91 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.RegTestParams;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that parallel imports produce the same entries as the sequential import, and that failed conversions are
+ * counted as errors
+ */
+public class TransactionImporterTest {
+    @Test
+    void parallelImportMatchesSequential() {
+        List<TransactionData> data = randomTransactions(20_000);
+        TransactionImporter importer = new TransactionImporter(RegTestParams.get());
+        List<LedgerTransaction> expected = importer.importTransactions(data);
+        assertEquals(data.stream().map(TransactionData::txId).toList(),
+                expected.stream().map(LedgerTransaction::txId).toList());
+        for (int threads : new int[] {1, 2, 3, 8}) {
+            List<LedgerTransaction> result = importer.importTransactions(data, threads);
+            assertEquals(expected, result, threads + " threads");
+            assertEquals(render(expected), render(result), threads + " threads");
+        }
+    }
+
+    @Test
+    void failedConversionIsCountedAsError() {
+        ExportMetrics metrics = new ExportMetrics();
+        TransactionImporter importer = new TransactionImporter(RegTestParams.get(), List.of(), metrics);
+        // The wallet split (amount plus fee) overflows
+        BitcoinTransactionData data = new BitcoinTransactionData(new TransactionColumns(), Sha256Hash.ZERO_HASH,
+                new TransactionColumns.WalletRow(1_500_000_000L, Long.MIN_VALUE, -1, 0, "send", "", null, null, false, false, 1));
+        assertThrows(ArithmeticException.class, () -> importer.importTransaction(data));
+        assertEquals(1, metrics.conversion("bitcoin").getCount());
+        assertEquals(1, metrics.conversion("bitcoin").getErrorCount());
+    }
+
+    // Comments are compared by their text
+    private static List<String> render(List<LedgerTransaction> entries) {
+        return entries.stream().map(LedgerTransaction::toLedger).toList();
+    }
+
+    // Receives, sends with fees and self-sends, sorted like a fetch result
+    private static List<TransactionData> randomTransactions(int count) {
+        Random random = new Random(1);
+        TransactionColumns columns = new TransactionColumns();
+        List<TransactionData> transactions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] id = new byte[32];
+            random.nextBytes(id);
+            long time = 1_500_000_000L + i * 600L;
+            long amount = 1 + random.nextInt(100_000_000);
+            BitcoinTransactionData data;
+            switch (random.nextInt(3)) {
+                case 0 -> data = new BitcoinTransactionData(columns, Sha256Hash.wrap(id),
+                        new TransactionColumns.WalletRow(time, amount, TransactionColumns.WalletRow.NO_FEE, 0, "receive", "label " + (i % 100), null, null, false, false, 1));
+                case 1 -> data = new BitcoinTransactionData(columns, Sha256Hash.wrap(id),
+                        new TransactionColumns.WalletRow(time, -amount, -random.nextInt(100_000), 1, "send", "", "payment " + i, null, false, false, 1));
+                default -> {
+                    data = new BitcoinTransactionData(columns, Sha256Hash.wrap(id),
+                            new TransactionColumns.WalletRow(time, -amount, -1_000, 0, "send", "", null, null, false, false, 1));
+                    data.add(new TransactionColumns.WalletRow(time, amount, TransactionColumns.WalletRow.NO_FEE, 0, "receive", "", null, null, false, false, 1));
+                }
+            }
+            transactions.add(data);
+        }
+        return transactions;
+    }
+}
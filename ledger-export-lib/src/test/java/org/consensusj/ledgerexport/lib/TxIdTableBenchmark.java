@@ -0,0 +1,113 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Compares {@link TxIdTable} with the {@code ConcurrentHashMap<Sha256Hash, V>} it replaced: retained heap and
+ * concurrent insert throughput. Like the container, each insert is given a newly-created {@link Sha256Hash}
+ * (as it would be after parsing a JSON response), so the map retains it and the table doesn't.
+ * <p>
+ * Run with {@code ./gradlew ledger-export-lib:txIdTableBenchmark}, optionally with
+ * {@code --args="<entries> <threads>"}. Run with a heap large enough for the map.
+ */
+public class TxIdTableBenchmark {
+    private static final Object value = new Object();
+
+    record Candidate(String name, Runnable reset, BiConsumer<Sha256Hash, Object> put) {}
+
+    private static Object retained;
+
+    /**
+     * @param args optional number of entries and number of inserting threads
+     */
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        byte[][] ids = randomIds(entries);
+        List<Candidate> candidates = List.of(
+                new Candidate("ConcurrentHashMap", () -> retained = new ConcurrentHashMap<Sha256Hash, Object>(),
+                        (k, v) -> map().put(k, v)),
+                new Candidate("TxIdTable", () -> retained = new TxIdTable<>(),
+                        (k, v) -> table().put(k, v)));
+        System.out.printf("%d entries, %d threads%n", entries, threads);
+        System.out.printf("%-18s %14s %14s %16s%n", "container", "bytes/entry", "time (ms)", "inserts/second");
+        for (Candidate candidate : candidates) {
+            run(candidate, ids, threads);   // Warm up
+            retained = null;
+            long before = usedHeap();
+            long millis = run(candidate, ids, threads);
+            long bytes = usedHeap() - before;
+            System.out.printf("%-18s %14d %14d %16d%n", candidate.name(), bytes / entries, millis, entries * 1000L / Math.max(millis, 1));
+            retained = null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Sha256Hash, Object> map() {
+        return (Map<Sha256Hash, Object>) retained;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static TxIdTable<Object> table() {
+        return (TxIdTable<Object>) retained;
+    }
+
+    private static long run(Candidate candidate, byte[][] ids, int threads) {
+        candidate.reset().run();
+        long start = System.nanoTime();
+        List<Thread> inserters = IntStream.range(0, threads)
+                .mapToObj(t -> Thread.ofPlatform().start(() -> {
+                    for (int i = t; i < ids.length; i += threads) {
+                        candidate.put().accept(Sha256Hash.wrap(ids[i].clone()), value);
+                    }
+                }))
+                .toList();
+        for (Thread inserter : inserters) {
+            try {
+                inserter.join();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static byte[][] randomIds(int count) {
+        Random random = new Random(1);
+        byte[][] ids = new byte[count][32];
+        for (byte[] id : ids) {
+            random.nextBytes(id);
+        }
+        return ids;
+    }
+}
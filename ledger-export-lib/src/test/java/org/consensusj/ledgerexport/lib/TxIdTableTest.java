@@ -0,0 +1,127 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks {@link TxIdTable} against a {@link HashMap}
+ */
+public class TxIdTableTest {
+    @Test
+    void putAndGetManyIds() {
+        Random random = new Random(1);
+        TxIdTable<Integer> table = new TxIdTable<>();
+        Map<Sha256Hash, Integer> expected = new HashMap<>();
+        // Enough to resize every segment several times
+        for (int i = 0; i < 20_000; i++) {
+            Sha256Hash txId = randomId(random);
+            table.put(txId, i);
+            expected.put(txId, i);
+        }
+        assertEquals(expected.size(), table.size());
+        expected.forEach((txId, value) -> assertEquals(value, table.get(txId)));
+        assertNull(table.get(randomId(random)));
+        assertEquals(expected.keySet(), table.keys());
+        assertEquals(expected.values().stream().sorted().toList(), table.values().stream().sorted().toList());
+    }
+
+    @Test
+    void idsThatOnlyDifferInTheLastByte() {
+        // Same segment and same first slot, so they are told apart by the later words of the id
+        TxIdTable<Integer> table = new TxIdTable<>();
+        for (int i = 0; i < 256; i++) {
+            table.put(idEndingWith(i), i);
+        }
+        assertEquals(256, table.size());
+        for (int i = 0; i < 256; i++) {
+            assertEquals(i, table.get(idEndingWith(i)));
+        }
+    }
+
+    @Test
+    void putReplacesValue() {
+        TxIdTable<String> table = new TxIdTable<>();
+        Sha256Hash txId = idEndingWith(1);
+        table.put(txId, "first");
+        table.put(txId, "second");
+        assertEquals(1, table.size());
+        assertEquals("second", table.get(txId));
+    }
+
+    @Test
+    void computeWithNullResult() {
+        TxIdTable<String> table = new TxIdTable<>();
+        Sha256Hash txId = idEndingWith(1);
+        assertNull(table.compute(txId, (k, existing) -> null));
+        assertEquals(0, table.size());
+        table.put(txId, "value");
+        assertThrows(IllegalStateException.class, () -> table.compute(txId, (k, existing) -> null));
+        assertEquals("value", table.get(txId));
+    }
+
+    @Test
+    void concurrentCompute() throws Exception {
+        int threads = 8;
+        Random random = new Random(2);
+        List<Sha256Hash> ids = new ArrayList<>();
+        for (int i = 0; i < 5_000; i++) {
+            ids.add(randomId(random));
+        }
+        TxIdTable<Integer> table = new TxIdTable<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> ids.forEach(txId ->
+                        table.compute(txId, (k, count) -> (count == null) ? 1 : count + 1))));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(ids.size(), table.size());
+        ids.forEach(txId -> assertEquals(threads, table.get(txId)));
+    }
+
+    private static Sha256Hash randomId(Random random) {
+        byte[] id = new byte[32];
+        random.nextBytes(id);
+        return Sha256Hash.wrap(id);
+    }
+
+    private static Sha256Hash idEndingWith(int b) {
+        byte[] id = new byte[32];
+        id[31] = (byte) b;
+        return Sha256Hash.wrap(id);
+    }
+}
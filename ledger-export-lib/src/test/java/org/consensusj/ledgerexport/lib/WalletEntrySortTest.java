@@ -0,0 +1,136 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.lib;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.RegTestParams;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that {@link WalletEntrySort} returns entries in order with all their fields, whether they were spilled to
+ * run files or not, and deletes its run files when closed.
+ */
+public class WalletEntrySortTest {
+    private static final Address address = LegacyAddress.fromPubKeyHash(RegTestParams.get(), new byte[20]);
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void sortsInMemory() throws IOException {
+        List<WalletEntrySort.Entry> entries = randomEntries(100);
+        try (WalletEntrySort sort = new WalletEntrySort(tempDir, 1_000, RegTestParams.get())) {
+            entries.forEach(e -> sort.add(e.txId(), e.row()));
+            assertEquals(0, sort.runFileCount());
+            assertEquals(sorted(entries), toList(sort.sorted()));
+        }
+    }
+
+    @Test
+    void spillsToRunFiles() throws IOException {
+        List<WalletEntrySort.Entry> entries = randomEntries(1_000);
+        try (WalletEntrySort sort = new WalletEntrySort(tempDir, 64, RegTestParams.get())) {
+            entries.forEach(e -> sort.add(e.txId(), e.row()));
+            assertEquals(1_000, sort.count());
+            assertEquals(1_000 / 64, sort.runFileCount());
+            assertEquals(sorted(entries), toList(sort.sorted()));
+        }
+    }
+
+    @Test
+    void keepsEntriesOfATransactionInOrderAdded() throws IOException {
+        Sha256Hash txId = Sha256Hash.of(new byte[] {1});
+        try (WalletEntrySort sort = new WalletEntrySort(tempDir, 2, RegTestParams.get())) {
+            for (int vout = 0; vout < 5; vout++) {
+                sort.add(txId, row(1_000, vout, "receive"));
+            }
+            sort.add(Sha256Hash.of(new byte[] {2}), row(999, 0, "send"));
+            List<WalletEntrySort.Entry> sorted = toList(sort.sorted());
+            assertEquals(999, sorted.get(0).row().time());
+            assertEquals(List.of(0, 1, 2, 3, 4), sorted.stream().skip(1).map(e -> e.row().vout()).toList());
+        }
+    }
+
+    @Test
+    void deletesRunFilesOnClose() throws IOException {
+        WalletEntrySort sort = new WalletEntrySort(tempDir, 8, RegTestParams.get());
+        randomEntries(100).forEach(e -> sort.add(e.txId(), e.row()));
+        assertTrue(sort.runFileCount() > 0);
+        sort.close();
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertFalse(files.findAny().isPresent());
+        }
+    }
+
+    private static List<WalletEntrySort.Entry> randomEntries(int count) {
+        Random random = new Random(42);
+        List<WalletEntrySort.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] txId = new byte[32];
+            random.nextBytes(txId);
+            // Few distinct times, so ties are broken by txId
+            entries.add(new WalletEntrySort.Entry(Sha256Hash.wrap(txId), i, new TransactionColumns.WalletRow(
+                    1_600_000_000L + random.nextInt(50),
+                    random.nextLong(-100_000_000, 100_000_000),
+                    random.nextBoolean() ? -random.nextInt(10_000) : TransactionColumns.WalletRow.NO_FEE,
+                    random.nextInt(4),
+                    random.nextBoolean() ? "send" : "receive",
+                    random.nextBoolean() ? "label " + random.nextInt(5) : null,
+                    random.nextInt(10) == 0 ? "comment é " + i : null,
+                    random.nextBoolean() ? address : null,
+                    random.nextInt(20) == 0,
+                    random.nextInt(20) == 0,
+                    random.nextInt(1, 1_000))));
+        }
+        return entries;
+    }
+
+    private static TransactionColumns.WalletRow row(long time, int vout, String category) {
+        return new TransactionColumns.WalletRow(time, 1_000, TransactionColumns.WalletRow.NO_FEE, vout, category,
+                null, null, address, false, false, 6);
+    }
+
+    private static List<WalletEntrySort.Entry> sorted(List<WalletEntrySort.Entry> entries) {
+        return entries.stream()
+                .sorted(Comparator.comparingLong((WalletEntrySort.Entry e) -> e.row().time())
+                        .thenComparing(WalletEntrySort.Entry::txId)
+                        .thenComparingLong(WalletEntrySort.Entry::sequence))
+                .toList();
+    }
+
+    private static List<WalletEntrySort.Entry> toList(Iterator<WalletEntrySort.Entry> iterator) {
+        List<WalletEntrySort.Entry> list = new ArrayList<>();
+        iterator.forEachRemaining(list::add);
+        return list;
+    }
+}
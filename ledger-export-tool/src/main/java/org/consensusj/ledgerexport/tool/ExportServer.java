@@ -0,0 +1,289 @@
+/*
+ * Copyright 2022 M. Sean Gilligan.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.consensusj.ledgerexport.tool;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.consensusj.ledgerexport.lib.ExportCheckpoint;
+import org.consensusj.ledgerexport.lib.LedgerTransaction;
+import org.consensusj.ledgerexport.lib.LedgerWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+
+/**
+ * HTTP server for slices of the exported ledger, so other services don't have to run an export. Entries are held in
+ * memory and refreshed by {@link #update(List, ExportCheckpoint)}, e.g. as blocks arrive.
+ * <p>
+ * {@code GET /ledger} returns Ledger-CLI text and {@code GET /ledger.json} returns a JSON array. Both accept the
+ * query parameters {@code account} (an account name prefix), {@code from} (inclusive) and {@code to} (exclusive), where
+ * times are ISO-8601 dates (in the server's time zone) or instants. Responses have an {@code ETag} that changes when
+ * entries are added, and a matching {@code If-None-Match} gets {@code 304 Not Modified}.
+ */
+final class ExportServer {
+    private static final Logger log = LoggerFactory.getLogger(ExportServer.class);
+    private static final int writeBufferSize = 64 * 1024;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final JsonFactory jsonFactory;
+    private final ZoneId zone = ZoneId.systemDefault();
+    private volatile Snapshot snapshot = new Snapshot(List.of(), "\"empty\"");
+
+    // Entries in chronological order, replaced (not modified) by update()
+    private record Snapshot(List<LedgerTransaction> entries, String etag) {}
+
+    /**
+     * @param address address to listen on
+     * @param jsonFactory factory for JSON responses
+     * @throws IOException if the server can't listen on the address
+     */
+    ExportServer(InetSocketAddress address, JsonFactory jsonFactory) throws IOException {
+        this.jsonFactory = jsonFactory;
+        server = HttpServer.create(address, 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+    }
+
+    void start() {
+        server.start();
+        log.info("Serving ledger at http://{}:{}/ledger", server.getAddress().getHostString(), server.getAddress().getPort());
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.close();
+    }
+
+    /**
+     * Add entries, e.g. those of newly confirmed blocks. Their comments are rendered, so the collected transaction
+     * data they were converted from isn't retained.
+     * @param newEntries entries to add
+     * @param checkpoint checkpoint of the last block the entries are from
+     */
+    synchronized void update(List<LedgerTransaction> newEntries, ExportCheckpoint checkpoint) {
+        List<LedgerTransaction> added = newEntries.stream()
+                .map(LedgerTransaction::withRenderedComments)
+                .sorted(LedgerTransaction.CHRONOLOGICAL)
+                .toList();
+        List<LedgerTransaction> entries = merge(snapshot.entries(), added);
+        String etag = "\"" + checkpoint.blockHash().toString().substring(0, 16) + "-" + entries.size() + "\"";
+        snapshot = new Snapshot(Collections.unmodifiableList(entries), etag);
+    }
+
+    // Merge two chronologically sorted lists. Times aren't strictly increasing across blocks, but new entries are
+    // rarely earlier than more than a few of the existing ones, so the existing entries before the first new one
+    // are copied in bulk.
+    private static List<LedgerTransaction> merge(List<LedgerTransaction> existing, List<LedgerTransaction> added) {
+        List<LedgerTransaction> merged = new ArrayList<>(existing.size() + added.size());
+        int i = added.isEmpty() ? existing.size() : insertionPoint(existing, added.get(0));
+        merged.addAll(existing.subList(0, i));
+        int j = 0;
+        while (i < existing.size() && j < added.size()) {
+            merged.add(LedgerTransaction.CHRONOLOGICAL.compare(existing.get(i), added.get(j)) <= 0
+                    ? existing.get(i++)
+                    : added.get(j++));
+        }
+        merged.addAll(existing.subList(i, existing.size()));
+        merged.addAll(added.subList(j, added.size()));
+        return merged;
+    }
+
+    // Index of the first entry that is after the given one
+    private static int insertionPoint(List<LedgerTransaction> entries, LedgerTransaction entry) {
+        int low = 0;
+        int high = entries.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (LedgerTransaction.CHRONOLOGICAL.compare(entries.get(mid), entry) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            boolean json = path.equals("/ledger.json");
+            if (!json && !path.equals("/ledger")) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            Snapshot current = snapshot;
+            List<LedgerTransaction> slice;
+            Predicate<LedgerTransaction> filter;
+            try {
+                Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                slice = timeRange(current.entries(), parseTime(query.get("from")), parseTime(query.get("to")));
+                String account = query.get("account");
+                filter = (account != null) ? LedgerTransaction.accountPrefixFilter(account) : t -> true;
+            } catch (IllegalArgumentException | DateTimeParseException e) {
+                byte[] message = (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(400, message.length);
+                exchange.getResponseBody().write(message);
+                return;
+            }
+            exchange.getResponseHeaders().set("ETag", current.etag());
+            if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), current.etag())) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", json ? "application/json" : "text/plain; charset=utf-8");
+            if (method.equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, 0);
+            if (json) {
+                writeJson(exchange.getResponseBody(), slice, filter);
+            } else {
+                writeLedger(exchange.getResponseBody(), slice, filter);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Request {} failed: {}", exchange.getRequestURI(), e.toString());
+        }
+    }
+
+    private void writeLedger(OutputStream body, List<LedgerTransaction> entries, Predicate<LedgerTransaction> filter) throws IOException {
+        try (LedgerWriter writer = new LedgerWriter(Channels.newChannel(body), zone, writeBufferSize)) {
+            for (LedgerTransaction entry : entries) {
+                if (filter.test(entry)) {
+                    writer.write(entry);
+                }
+            }
+        }
+    }
+
+    private void writeJson(OutputStream body, List<LedgerTransaction> entries, Predicate<LedgerTransaction> filter) throws IOException {
+        try (JsonGenerator generator = jsonFactory.createGenerator(body)) {
+            generator.writeStartArray();
+            for (LedgerTransaction entry : entries) {
+                if (!filter.test(entry)) {
+                    continue;
+                }
+                generator.writeStartObject();
+                generator.writeStringField("txid", entry.txId().toString());
+                generator.writeStringField("time", entry.time().toString());
+                generator.writeStringField("description", entry.description());
+                generator.writeArrayFieldStart("comments");
+                for (LedgerTransaction.Comment comment : entry.comments()) {
+                    generator.writeString(comment.text());
+                }
+                generator.writeEndArray();
+                generator.writeArrayFieldStart("splits");
+                for (LedgerTransaction.Split split : entry.splits()) {
+                    generator.writeStartObject();
+                    generator.writeStringField("account", split.account());
+                    generator.writeFieldName("amount");
+                    generator.writeNumber(split.amount());
+                    generator.writeStringField("currency", split.currency());
+                    generator.writeEndObject();
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    // Entries with from <= time < to, either bound may be null
+    private static List<LedgerTransaction> timeRange(List<LedgerTransaction> entries, Instant from, Instant to) {
+        int start = (from != null) ? firstAtOrAfter(entries, from) : 0;
+        int end = (to != null) ? firstAtOrAfter(entries, to) : entries.size();
+        return entries.subList(start, Math.max(start, end));
+    }
+
+    // Binary search of the chronologically sorted entries
+    private static int firstAtOrAfter(List<LedgerTransaction> entries, Instant time) {
+        int low = 0;
+        int high = entries.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (entries.get(mid).time().isBefore(time)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private Instant parseTime(String value) {
+        if (value == null) {
+            return null;
+        }
+        return value.contains("T")
+                ? Instant.parse(value)
+                : LocalDate.parse(value).atStartOfDay(zone).toInstant();
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery != null) {
+            for (String param : rawQuery.split("&")) {
+                int equals = param.indexOf('=');
+                if (equals > 0) {
+                    query.put(URLDecoder.decode(param.substring(0, equals), StandardCharsets.UTF_8),
+                            URLDecoder.decode(param.substring(equals + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return query;
+    }
+
+    // If-None-Match is "*" or a list of (possibly weak) entity tags
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -15,16 +15,28 @@
  */
 package org.consensusj.ledgerexport.tool;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import foundation.omni.rpc.OmniClient;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.RegTestParams;
 import org.bitcoinj.params.TestNet3Params;
 import org.consensusj.bitcoin.jsonrpc.RpcConfig;
 import org.consensusj.bitcoin.jsonrpc.RpcURI;
 import org.consensusj.bitcoin.jsonrpc.bitcoind.BitcoinConfFile;
-import org.consensusj.ledgerexport.lib.AccountingExporter;
+import org.consensusj.ledgerexport.lib.ExportCheckpoint;
+import org.consensusj.ledgerexport.lib.ExportMetrics;
+import org.consensusj.ledgerexport.lib.FetchOptions;
+import org.consensusj.ledgerexport.lib.JsonRpcBatchClient;
 import org.consensusj.ledgerexport.lib.LedgerTransaction;
+import org.consensusj.ledgerexport.lib.LedgerWriter;
+import org.consensusj.ledgerexport.lib.OmniExportClient;
 import org.consensusj.ledgerexport.lib.OmniLedgerExporter;
+import org.consensusj.ledgerexport.lib.RpcRecording;
+import org.consensusj.ledgerexport.lib.RpcResultCache;
 import org.consensusj.ledgerexport.lib.TransactionData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,12 +46,28 @@ import picocli.CommandLine.Mixin;
 import picocli.CommandLine.Option;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.time.Duration;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.function.LongSupplier;
 
 /**
  * Tool to export Bitcoin Core (or Omni Core) wallet transactions to ledger-cli plain-text files.
@@ -82,6 +110,76 @@ public class WalletAccountingExport implements Callable<Integer> {
         @Option(names = {"-f", "--account-filter"},
                 description = "Account filter for output, e.g. \"Income:Consulting\" (default is none)")
         String filterAccount;
+        @Option(names = {"-p", "--page-size"},
+                description = "Number of wallet (and Omni) transactions to fetch per request (default is 0, fetch all in one request)",
+                defaultValue = "0")
+        int pageSize;
+        @Option(names = {"-b", "--batch-size"},
+                description = "Number of per-transaction lookups to send in one JSON-RPC batch request (default is 0, no batching)",
+                defaultValue = "0")
+        int batchSize;
+        @Option(names = {"--max-in-flight"},
+                description = "Maximum number of concurrent JSON-RPC requests, the actual limit adapts to server load (default is 16)",
+                defaultValue = "16")
+        int maxInFlight;
+        @Option(names = {"--virtual-threads"},
+                description = "Run JSON-RPC requests on virtual threads, useful with a large --max-in-flight (default is false)")
+        boolean virtualThreads;
+        @Option(names = {"--stream"},
+                description = "Decode wallet transactions while they are read from the server, pages are fetched without overlap and it is ignored with --record and --replay (default is false)")
+        boolean streamed;
+        @Option(names = {"--cache"},
+                description = "Cache file for results of deeply-confirmed transactions, use one file per wallet (default is none)")
+        File cacheFile;
+        @Option(names = {"--cache-depth"},
+                description = "Confirmations required for a result to be cached (default is 100)",
+                defaultValue = "100")
+        int cacheDepth;
+        @Option(names = {"--cache-size"},
+                description = "Maximum size of cached results in megabytes (default is 256)",
+                defaultValue = "256")
+        long cacheSizeMegabytes;
+        @Option(names = {"-c", "--checkpoint"},
+                description = "Checkpoint file for incremental export. If it exists, only transactions since the checkpoint are exported and appended to the output file (default is none)")
+        File checkpointFile;
+        @Option(names = {"--safe-depth"},
+                description = "Confirmations required for a transaction to be included in an incremental export, also with --watch and --serve. Lower values export sooner but are less safe against reorgs (default is 6)",
+                defaultValue = "6")
+        int safeDepth;
+        @Option(names = {"--record"},
+                description = "Directory to record JSON-RPC responses in, for use with --replay (default is none)")
+        File recordDir;
+        @Option(names = {"--replay"},
+                description = "Directory of responses recorded with --record to answer JSON-RPC requests from, no server is needed. Use the --page-size and --checkpoint the responses were recorded with (default is none)")
+        File replayDir;
+        @Option(names = {"--memory-budget"},
+                description = "Maximum number of wallet entries to hold in memory while fetching, more are sorted in temporary files. Not used with --checkpoint, --watch or --serve (default is 0, no limit)",
+                defaultValue = "0")
+        int memoryBudget;
+        @Option(names = {"--import-threads"},
+                description = "Number of threads to convert transactions to ledger entries with (default is 1)",
+                defaultValue = "1")
+        int importThreads;
+        @Option(names = {"--watch"},
+                description = "Keep running and append entries for new transactions as blocks arrive. Starts after the checkpoint, if any. Transactions are appended once they have --safe-depth confirmations, about an hour after the first with the default of 6 (default is false)")
+        boolean watch;
+        @Option(names = {"--poll-interval"},
+                description = "Seconds between checks for a new block with --watch (default is 10)",
+                defaultValue = "10")
+        int pollInterval;
+        @Option(names = {"--serve"},
+                description = "Serve the ledger over HTTP on this port instead of writing it, refreshing as blocks arrive (default is 0, don't serve)",
+                defaultValue = "0")
+        int servePort;
+        @Option(names = {"--serve-address"},
+                description = "Address to serve on with --serve, e.g. 0.0.0.0 for all interfaces (default is the loopback address, local clients only)")
+        String serveAddress;
+        @Option(names = {"--stats"},
+                description = "Print a JSON summary of RPC, stage and conversion timings to standard error when done or stopped (default is false)")
+        boolean stats;
+        @Option(names = {"--jfr"},
+                description = "Path of a JDK Flight Recorder file to record the export (with RPC, batch, container, conversion and output events) to (default is none)")
+        File jfrFile;
     }
 
     @Mixin
@@ -93,9 +191,40 @@ public class WalletAccountingExport implements Callable<Integer> {
      * @throws IOException if problem communicating with the server
      */
     public Integer call() throws IOException {
-        final PrintStream out = options.outputFile != null
-                ? new PrintStream(new FileOutputStream(options.outputFile))
-                :  System.out;
+        // --watch and --serve run until interrupted (e.g. with Ctrl-C), and then the JVM exits without returning
+        // here. The hook stops the export between blocks and closes the output and files, so they are complete.
+        ExportResources resources = new ExportResources();
+        Thread exportThread = Thread.currentThread();
+        Thread shutdownHook = new Thread(() -> resources.closeOnExit(exportThread), "ledger-export-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        try {
+            run(resources);
+        } finally {
+            resources.close();
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // The JVM is exiting and the hook is running
+            }
+        }
+        return 0;
+    }
+
+    private void run(ExportResources resources) throws IOException {
+        // Started first to record the whole export, and also written if the JVM exits (e.g. when --watch is interrupted)
+        if (options.jfrFile != null) {
+            resources.flightRecording = startFlightRecording(options.jfrFile.toPath());
+        }
+        // An incremental export appends to the output from the previous export
+        Optional<ExportCheckpoint> checkpoint = options.checkpointFile != null
+                ? ExportCheckpoint.read(options.checkpointFile.toPath())
+                : Optional.empty();
+        final FileChannel outChannel = options.outputFile != null
+                ? FileChannel.open(options.outputFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        checkpoint.isPresent() ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)
+                : new FileOutputStream(FileDescriptor.out).getChannel();
+        final LedgerWriter out = new LedgerWriter(outChannel);
+        resources.setOutput(out, (options.outputFile != null) ? outChannel : null);
 
         // Read password from standard bitcoin.conf file
         RpcConfig passwordConfig = BitcoinConfFile.readDefaultConfig().getRPCConfig();
@@ -107,21 +236,290 @@ public class WalletAccountingExport implements Callable<Integer> {
             case "regtest" -> new RpcConfig(RegTestParams.get(), RpcURI.getDefaultRegTestURI().resolve(options.wallet), username, password);
             default -> throw new IllegalArgumentException("invalid network");
         };
-        log.info("Connecting to {}", config.getURI());
+        if (options.recordDir != null && options.replayDir != null) {
+            throw new IllegalArgumentException("--record and --replay can't be used together");
+        }
+        if ((options.watch || options.servePort != 0) && options.replayDir != null) {
+            throw new IllegalArgumentException("--watch and --serve can't be used with --replay");
+        }
+        if (options.servePort != 0 && (options.outputFile != null || options.checkpointFile != null)) {
+            throw new IllegalArgumentException("--serve can't be used with --output or --checkpoint");
+        }
+        if (options.memoryBudget != 0 && (options.checkpointFile != null || options.watch || options.servePort != 0)) {
+            throw new IllegalArgumentException("--memory-budget can't be used with --checkpoint, --watch or --serve");
+        }
         OmniClient client = new OmniClient(config);
+        if (options.replayDir == null) {
+            log.info("Connecting to {}", config.getURI());
+        }
+        FetchOptions fetchOptions = new FetchOptions(options.pageSize, options.batchSize, options.maxInFlight, options.virtualThreads, options.streamed, options.memoryBudget);
+        // Also used to stream listtransactions results, so create it even if not batching
+        // Timers are also available over JMX while the export runs
+        ExportMetrics metrics = new ExportMetrics(ManagementFactory.getPlatformMBeanServer());
+        JsonRpcBatchClient batchClient = new JsonRpcBatchClient(config.getURI(), username, password, client.getMapper(), metrics);
 
-        AccountingExporter exporter = new OmniLedgerExporter(client, options.accountMapFile, out);
-
-        exporter.initialize();
-        List<TransactionData> transactions = exporter.collectData();
-        List<LedgerTransaction> entries = exporter.convertToLedger(transactions);
+        // Closed even if the export fails, so the recording (and cache) written so far can be used
+        resources.recording = openRecording(client);
+        resources.cache = options.cacheFile != null
+                ? new RpcResultCache(options.cacheFile.toPath(), client.getMapper(), options.cacheDepth, options.cacheSizeMegabytes * 1024 * 1024)
+                : null;
+        OmniExportClient exportClient = new OmniExportClient(client, fetchOptions, batchClient, resources.cache, resources.recording, metrics);
+        // Printed when the export returns or fails, or is stopped (--watch and --serve only stop that way)
+        if (options.stats) {
+            resources.stats = () -> {
+                try {
+                    System.err.println(client.getMapper().writerWithDefaultPrettyPrinter()
+                            .writeValueAsString(metrics.toJson(client.getMapper())));
+                } catch (JsonProcessingException e) {
+                    log.error("Writing stats failed", e);
+                }
+            };
+        }
+        OmniLedgerExporter exporter = new OmniLedgerExporter(client, options.accountMapFile, out, exportClient, options.importThreads);
 
         // If options.filterAccount was present, only output entries that match specified account
         Predicate<LedgerTransaction> predicate = (options.filterAccount != null)
-                ? t -> t.matchesAccount(options.filterAccount)
+                ? LedgerTransaction.accountFilter(options.filterAccount)
                 : t -> true;
-        List<LedgerTransaction> outputEntries = entries.stream().filter(predicate).toList();
-        exporter.output(outputEntries);
-        return 0;
+
+        exporter.initialize();
+        if (options.servePort != 0) {
+            serve(exporter, exportClient, predicate, client.getMapper().getFactory());
+        } else {
+            export(exporter, exportClient, predicate, out, checkpoint.orElse(null));
+        }
+    }
+
+    /**
+     * The output, cache, recording and flight recording of an export, and the stats to print. They are closed
+     * (and the stats printed) once: when the export returns or fails, or when the JVM exits. At exit, the export thread is interrupted first and given time to
+     * stop between blocks, so a partly written block isn't flushed.
+     */
+    private static final class ExportResources {
+        // Time for an interrupted export to finish (or discard) its current block
+        private static final Duration stopTimeout = Duration.ofSeconds(10);
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private LedgerWriter out;
+        private FileChannel outFile;
+        Recording flightRecording;
+        RpcRecording recording;
+        RpcResultCache cache;
+        Runnable stats;
+
+        /**
+         * @param out writer for the output
+         * @param outFile the output file channel, or {@code null} if writing to standard output (which isn't closed)
+         */
+        void setOutput(LedgerWriter out, FileChannel outFile) {
+            this.out = out;
+            this.outFile = outFile;
+        }
+
+        // Called by the shutdown hook
+        void closeOnExit(Thread exportThread) {
+            exportThread.interrupt();
+            boolean stopped = false;
+            try {
+                stopped = closed.await(stopTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!stopped) {
+                log.warn("Export didn't stop within {}, closing without writing its buffered output", stopTimeout);
+                close(false);
+            }
+        }
+
+        void close() {
+            close(true);
+        }
+
+        // If the export thread may still be writing, only close the output channel, without flushing
+        private synchronized void close(boolean flush) {
+            if (closed.getCount() == 0) {
+                return;
+            }
+            try {
+                if (flush && out != null) {
+                    out.flush();
+                }
+                if (outFile != null) {
+                    outFile.close();
+                }
+            } catch (IOException e) {
+                log.error("Closing output failed", e);
+            }
+            closeQuietly(recording);
+            closeQuietly(cache);
+            if (flightRecording != null && flush) {
+                // Otherwise it is written by the JVM, see startFlightRecording()
+                try {
+                    flightRecording.stop();     // Writes the file
+                    flightRecording.close();
+                    log.info("Wrote flight recording to {}", flightRecording.getDestination());
+                } catch (IllegalStateException e) {
+                    log.warn("Flight recording already closed: {}", e.toString());
+                }
+            }
+            if (stats != null) {
+                stats.run();
+            }
+            closed.countDown();
+        }
+
+        private static void closeQuietly(AutoCloseable closeable) {
+            if (closeable != null) {
+                try {
+                    closeable.close();
+                } catch (Exception e) {
+                    log.error("Closing {} failed", closeable, e);
+                }
+            }
+        }
+    }
+
+    // Recording to replay from, recording to add responses to, or null
+    private RpcRecording openRecording(OmniClient client) throws IOException {
+        if (options.replayDir != null) {
+            return RpcRecording.replay(options.replayDir.toPath(), client.getMapper(), options.pageSize);
+        }
+        return options.recordDir != null
+                ? RpcRecording.record(options.recordDir.toPath(), client.getMapper(), options.pageSize)
+                : null;
+    }
+
+    // Default (low-overhead) JVM settings. The export's own events are enabled by default.
+    private static Recording startFlightRecording(Path file) throws IOException {
+        Configuration configuration;
+        try {
+            configuration = Configuration.getConfiguration("default");
+        } catch (ParseException e) {
+            throw new IllegalStateException(e);
+        }
+        Recording recording = new Recording(configuration);
+        recording.setName("ledger-export");
+        recording.setDestination(file);
+        recording.setDumpOnExit(true);
+        recording.start();
+        return recording;
+    }
+
+    // Write the ledger (or the entries since the checkpoint), then keep appending with --watch
+    private void export(OmniLedgerExporter exporter, OmniExportClient exportClient, Predicate<LedgerTransaction> predicate, LedgerWriter out, ExportCheckpoint checkpoint) throws IOException {
+        // Watching continues from the checkpoint of an incremental export
+        boolean incrementalExport = options.checkpointFile != null || options.watch;
+        OmniExportClient.IncrementalFetch incremental = null;
+        long outputCount;
+        // Fetch, convert, filter and output concurrently, with bounded buffers between the stages. Transactions
+        // arrive in order, so entries are written as they are converted without sorting.
+        Consumer<Consumer<TransactionData>> source;
+        if (incrementalExport) {
+            incremental = exporter.collectDataSince(checkpoint, options.safeDepth);
+            source = incremental.transactions()::forEach;
+        } else {
+            source = exporter::collectData;
+        }
+        try (ExecutorService executor = Executors.newCachedThreadPool()) {
+            outputCount = writeOrDiscard(out, () -> exporter.exportStreaming(source, predicate, executor, Flow.defaultBufferSize()).join());
+        }
+        out.flush();
+        // Only advance the checkpoint once the entries have been written
+        if (incremental != null) {
+            advanceCheckpoint(incremental.checkpoint(), outputCount);
+        }
+        if (options.watch) {
+            try (ExecutorService executor = Executors.newCachedThreadPool()) {
+                watch(exporter, exportClient, incremental.checkpoint(), fetched -> writeOrDiscard(out, () ->
+                        exporter.exportStreaming(fetched.transactions()::forEach, predicate, executor, Flow.defaultBufferSize()).join()));
+            }
+        }
+    }
+
+    // Serve the entire history over HTTP, adding the transactions of each new block until interrupted
+    private void serve(OmniLedgerExporter exporter, OmniExportClient exportClient, Predicate<LedgerTransaction> predicate, JsonFactory jsonFactory) throws IOException {
+        InetAddress address = (options.serveAddress != null)
+                ? InetAddress.getByName(options.serveAddress)
+                : InetAddress.getLoopbackAddress();
+        ExportServer server = new ExportServer(new InetSocketAddress(address, options.servePort), jsonFactory);
+        // Only called by one thread at a time, so the predicate can be shared
+        BlockExporter update = fetched -> {
+            List<LedgerTransaction> entries = exporter.convertToLedger(fetched.transactions()).stream()
+                    .filter(predicate)
+                    .toList();
+            server.update(entries, fetched.checkpoint());
+            return entries.size();
+        };
+        OmniExportClient.IncrementalFetch initial = exporter.collectDataSince(null, options.safeDepth);
+        advanceCheckpoint(initial.checkpoint(), update.export(initial));
+        server.start();
+        try {
+            watch(exporter, exportClient, initial.checkpoint(), update);
+        } finally {
+            server.stop();
+        }
+    }
+
+    // Exports the transactions of an incremental fetch, returning the number exported. A RuntimeException fails
+    // the fetch (it is retried when watching), an IOException fails the export.
+    @FunctionalInterface
+    private interface BlockExporter {
+        long export(OmniExportClient.IncrementalFetch fetched) throws IOException;
+    }
+
+    // Write entries, discarding the output written so far if writing fails, so the entries can be written again
+    // (e.g. at the next poll with --watch) without duplicating those written before the failure
+    private static long writeOrDiscard(LedgerWriter out, LongSupplier write) throws IOException {
+        out.mark();
+        try {
+            return write.getAsLong();
+        } catch (RuntimeException e) {
+            try {
+                out.discard();
+            } catch (IOException discardFailure) {
+                discardFailure.addSuppressed(e);
+                throw discardFailure;
+            }
+            throw e;
+        }
+    }
+
+    // Export the transactions of each new block until interrupted. The JVM, account map and caches stay warm, so each
+    // block only costs a listsinceblock call and lookups for its own transactions.
+    private void watch(OmniLedgerExporter exporter, OmniExportClient exportClient, ExportCheckpoint checkpoint, BlockExporter exportNew) throws IOException {
+        log.info("Watching for new blocks every {} seconds", options.pollInterval);
+        Sha256Hash bestBlock = null;
+        // Interrupted by the shutdown hook, the current block is finished first
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Sha256Hash newBestBlock = exportClient.getBestBlockHash();
+                if (!newBestBlock.equals(bestBlock)) {
+                    // A new block may make an earlier block safeDepth deep
+                    OmniExportClient.IncrementalFetch incremental = exporter.collectDataSince(checkpoint, options.safeDepth);
+                    if (!incremental.checkpoint().equals(checkpoint)) {
+                        long count = exportNew.export(incremental);
+                        checkpoint = incremental.checkpoint();
+                        advanceCheckpoint(checkpoint, count);
+                    }
+                    bestBlock = newBestBlock;
+                }
+            } catch (RuntimeException e) {
+                // E.g. the server is restarting, try again at the next poll. The block's output has been discarded.
+                log.warn("Watch failed, retrying: {}", e.toString());
+            }
+            try {
+                Thread.sleep(Duration.ofSeconds(options.pollInterval));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        log.info("Stopped watching at block {}", checkpoint.height());
+    }
+
+    // Must be called after the entries through the checkpoint have been written
+    private void advanceCheckpoint(ExportCheckpoint checkpoint, long outputCount) throws IOException {
+        if (options.checkpointFile != null) {
+            checkpoint.write(options.checkpointFile.toPath());
+        }
+        log.info("Exported {} transactions through block {}", outputCount, checkpoint.height());
     }
 }